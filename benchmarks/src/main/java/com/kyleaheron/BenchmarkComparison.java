@@ -0,0 +1,108 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two JMH JSON result files and lists every benchmark that got slower, or allocates more per operation, by
+ * more than a tolerance. Exits with status 1 if there is a regression, so it can gate a build.
+ *
+ * Usage: {@code BenchmarkComparison <baseline.json> <current.json> [tolerance, default 0.10]}
+ */
+public class BenchmarkComparison {
+
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    // Allocation is exact, but a few bytes per operation come and go with JIT decisions
+    private static final double ALLOCATION_SLACK = 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkComparison <baseline.json> <current.json> [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+        Map<String, JsonObject> baseline = read(args[0]);
+        Map<String, JsonObject> current = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.println("NEW        " + entry.getKey());
+                continue;
+            }
+            JsonObject after = entry.getValue();
+            boolean higherIsBetter = after.get("mode").getAsString().equals("thrpt");
+            double oldScore = score(before.getAsJsonObject("primaryMetric"));
+            double newScore = score(after.getAsJsonObject("primaryMetric"));
+            double change = (newScore - oldScore) / oldScore;
+            boolean slower = higherIsBetter ? change < -tolerance : change > tolerance;
+
+            double oldAllocation = allocation(before);
+            double newAllocation = allocation(after);
+            boolean allocates = !Double.isNaN(oldAllocation) && !Double.isNaN(newAllocation)
+                    && newAllocation > oldAllocation * (1 + tolerance) + ALLOCATION_SLACK;
+
+            if (slower || allocates) regressions++;
+            System.out.println(String.format("%-10s %s: %.3f -> %.3f %s (%+.1f%%)%s",
+                    slower || allocates ? "REGRESSION" : "ok", entry.getKey(), oldScore, newScore,
+                    after.getAsJsonObject("primaryMetric").get("scoreUnit").getAsString(), change * 100,
+                    Double.isNaN(newAllocation) ? "" : String.format(", %.0f -> %.0f B/op", oldAllocation, newAllocation)));
+        }
+        System.out.println(regressions + " regression(s)");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Reads a result file into its runs, keyed by benchmark name, mode and parameters.
+     */
+    private static Map<String, JsonObject> read(String file) throws IOException {
+        Map<String, JsonObject> runs = new LinkedHashMap<>();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            JsonArray results = new JsonParser().parse(reader).getAsJsonArray();
+            for (JsonElement element : results) {
+                JsonObject run = element.getAsJsonObject();
+                StringBuilder key = new StringBuilder(run.get("benchmark").getAsString())
+                        .append(" [").append(run.get("mode").getAsString());
+                if (run.has("params")) {
+                    for (Map.Entry<String, JsonElement> param : run.getAsJsonObject("params").entrySet()) {
+                        key.append(", ").append(param.getKey()).append('=').append(param.getValue().getAsString());
+                    }
+                }
+                runs.put(key.append(']').toString(), run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * The median for sampled runs, whose mean is dragged around by a few outliers, and the score otherwise.
+     */
+    private static double score(JsonObject metric) {
+        if (metric.has("scorePercentiles")) {
+            JsonObject percentiles = metric.getAsJsonObject("scorePercentiles");
+            if (percentiles.has("50.0")) return percentiles.get("50.0").getAsDouble();
+        }
+        return metric.get("score").getAsDouble();
+    }
+
+    private static double allocation(JsonObject run) {
+        if (!run.has("secondaryMetrics")) return Double.NaN;
+        JsonObject metrics = run.getAsJsonObject("secondaryMetrics");
+        for (Map.Entry<String, JsonElement> metric : metrics.entrySet()) {
+            // Older JMH versions prefix profiler metrics with a middle dot
+            if (metric.getKey().endsWith(ALLOCATION)) return metric.getValue().getAsJsonObject().get("score").getAsDouble();
+        }
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,78 @@
+package com.kyleaheron;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RGB to xy conversion, one colour at a time and in bulk, and the reverse conversion used for {@code getColor()}.
+ * {@link #toXYOriginal()} runs the conversion {@code setColor} used before {@link HueColorConverter}, for comparison
+ * with {@link #toXY()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorConversionBenchmark {
+
+    private static final int COLORS = 1024;
+
+    private final HueColorConverter converter = HueColorConverter.forGamut(HueColorConverter.Gamut.C);
+    private final int[] rgb = new int[COLORS];
+    private final float[] xy = new float[COLORS * 2];
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < COLORS; i++) {
+            rgb[i] = random.nextInt(0x1000000);
+        }
+        converter.convert(rgb, xy);
+    }
+
+    @Benchmark
+    public long toXY() {
+        int color = rgb[next++ & (COLORS - 1)];
+        return converter.toXY((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+    }
+
+    @Benchmark
+    public double[] toXYOriginal() {
+        int color = rgb[next++ & (COLORS - 1)];
+        return RGBtoXY((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLORS)
+    public float[] convertBulk() {
+        converter.convert(rgb, xy);
+        return xy;
+    }
+
+    @Benchmark
+    public int toRGB() {
+        int i = (next++ & (COLORS - 1)) * 2;
+        return converter.toRGB(xy[i], xy[i + 1], HueLight.MAX_BRIGHTNESS);
+    }
+
+    // HueLight's conversion before HueColorConverter, unchanged: no lookup table and no gamut clamping
+    private static double[] RGBtoXY(double r, double g, double b) {
+        double[] color = new double[2];
+        double redRatio = (r / 255f);
+        double greenRatio = (g / 255f);
+        double blueRatio = (b / 255f);
+        double red = ((redRatio > 0.04045f) ? Math.pow((redRatio + 0.055f) / (1.0f + 0.055f), 2.4f) : (redRatio / 12.92f));
+        double green = ((greenRatio > 0.04045f) ? Math.pow((greenRatio + 0.055f) / (1.0f + 0.055f), 2.4f) : (greenRatio / 12.92f));
+        double blue = ((blueRatio > 0.04045f) ? Math.pow((blueRatio + 0.055f) / (1.0f + 0.055f), 2.4f) : (blueRatio / 12.92f));
+        double x = (red * 0.664511f + green * 0.154324f + blue * 0.162028f);
+        double y = (red * 0.283881f + green * 0.668433f + blue * 0.047685f);
+        double z = (red * 0.000088f + green * 0.072310f + blue * 0.986039f);
+        color[0] = x / (x + y + z);
+        color[1] = y / (x + y + z);
+        return color;
+    }
+}
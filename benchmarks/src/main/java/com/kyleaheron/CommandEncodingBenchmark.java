@@ -0,0 +1,47 @@
+package com.kyleaheron;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a state update and encoding it into a command body. Run with {@code -prof gc}: encoding should not allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandEncodingBenchmark {
+
+    private final HueCommandEncoder encoder = new HueCommandEncoder();
+    private HueStateUpdate color;
+    private HueStateUpdate full;
+    private int brightness;
+
+    @Setup
+    public void setup() {
+        color = HueStateUpdate.EMPTY.withOn(true).withBrightness(200).withXY(0.3127f, 0.329f).withTransitionTime(4);
+        full = color.withHue(46920).withSaturation(254).withColorTemperature(366)
+                .withEffect(HueLight.HueEffect.COLORLOOP).withAlert(HueLight.HueAlert.SELECT);
+    }
+
+    @Benchmark
+    public int encodeColor() {
+        encoder.encode(color);
+        return encoder.length();
+    }
+
+    @Benchmark
+    public int encodeAllAttributes() {
+        encoder.encode(full);
+        return encoder.length();
+    }
+
+    @Benchmark
+    public HueStateUpdate buildUpdate() {
+        brightness = brightness % HueLight.MAX_BRIGHTNESS + 1;
+        return HueStateUpdate.EMPTY.withOn(true).withBrightness(brightness).withXY(0.3127f, 0.329f).withTransitionTime(4);
+    }
+}
@@ -0,0 +1,64 @@
+package com.kyleaheron;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch over every light of a {@link HueFederation} of in-process {@link HueBridgeSimulator}s that each take 2 ms
+ * per request. Every bridge has the same number of lights, so with independent lanes the time per batch should stay
+ * flat as bridges are added.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class FederationBenchmark {
+
+    private static final int LIGHTS_PER_BRIDGE = 25;
+
+    @Param({"1", "2", "4"})
+    public int bridgeCount;
+
+    private final List<HueBridgeSimulator> simulators = new ArrayList<>();
+    private HueFederation federation;
+    private List<HueLight> lights;
+    private int brightness;
+
+    @Setup
+    public void setup() throws IOException {
+        federation = new HueFederation();
+        for (int i = 0; i < bridgeCount; i++) {
+            HueBridgeSimulator simulator = new HueBridgeSimulator("federated-" + i, LIGHTS_PER_BRIDGE);
+            simulator.setRecording(false);
+            simulator.setLatency(2, 0);
+            simulators.add(simulator);
+            HueBridge bridge = simulator.createBridge();
+            bridge.getCommandScheduler().setAdaptiveRate(false);
+            bridge.getCommandScheduler().setLightCommandRate(Double.MAX_VALUE / 2, Integer.MAX_VALUE);
+            federation.add(bridge);
+        }
+        if (federation.connect().join().size() != bridgeCount) throw new IOException("Simulated bridges did not connect");
+        lights = federation.getLights();
+    }
+
+    @TearDown
+    public void tearDown() {
+        federation.close();
+        for (HueBridgeSimulator simulator : simulators) {
+            simulator.close();
+        }
+    }
+
+    @Benchmark
+    public boolean batch() {
+        brightness = brightness % HueLight.MAX_BRIGHTNESS + 1;
+        int value = brightness;
+        return federation.apply(lights, light -> light.setBrightness(value).setTransitionTime(0)).join();
+    }
+}
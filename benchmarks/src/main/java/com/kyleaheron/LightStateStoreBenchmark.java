@@ -0,0 +1,85 @@
+package com.kyleaheron;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk passes over the state of a large installation: capturing and diffing the bridge's {@link HueLightStateStore},
+ * against reading the same state light by light through the getters, and applying a scene to every light. Run with
+ * {@code -prof gc} to see what each pass allocates.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class LightStateStoreBenchmark {
+
+    private static final int LIGHTS = 2000;
+
+    private HueBridge bridge;
+    private HueLightStateStore store;
+    private List<HueLight> lights;
+    private HueLightStateStore.Snapshot previous;
+    private HueLightStateStore.Snapshot current;
+    private int[] changed;
+    private HueLightStateStore.Snapshot[] scenes;
+    private int[] slots;
+    private int scene;
+
+    @Setup
+    public void setup() throws IOException {
+        bridge = new StubBridge(LIGHTS).connect();
+        store = bridge.getLightStateStore();
+        lights = bridge.getLights();
+        previous = store.newSnapshot();
+        current = store.newSnapshot();
+        store.capture(previous);
+        changed = new int[store.getSlotCount()];
+
+        // Two scenes that differ in brightness for every light, applied in turn
+        scenes = new HueLightStateStore.Snapshot[2];
+        slots = new int[lights.size()];
+        for (int s = 0; s < scenes.length; s++) {
+            scenes[s] = store.newSnapshot();
+            store.capture(scenes[s]);
+        }
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = lights.get(i).getSlot();
+            scenes[0].setBrightness(slots[i], 100);
+            scenes[1].setBrightness(slots[i], 200);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.close();
+    }
+
+    @Benchmark
+    public int captureAndDiff() {
+        store.capture(current);
+        return current.diff(previous, changed);
+    }
+
+    @Benchmark
+    public int apply() {
+        scene ^= 1;
+        return store.apply(scenes[scene], slots, slots.length);
+    }
+
+    @Benchmark
+    public long readThroughLights() {
+        long sum = 0;
+        for (HueLight light : lights) {
+            sum += (light.isOn() ? 1 : 0) + light.getBrightness() + light.getHue() + light.getSaturation()
+                    + Float.floatToRawIntBits(light.getColorX()) + Float.floatToRawIntBits(light.getColorY())
+                    + light.getColorTemperature() + light.getEffect().ordinal();
+        }
+        return sum;
+    }
+}
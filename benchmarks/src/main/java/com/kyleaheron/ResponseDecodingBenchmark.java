@@ -0,0 +1,80 @@
+package com.kyleaheron;
+
+import com.google.gson.stream.JsonReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding bridge responses: the reply to a state write, which is applied through {@code updateStateVariables}, and the
+ * config, lights and groups bodies read during the initial sync.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseDecodingBenchmark {
+
+    @Param({"10", "50"})
+    public int lightCount;
+
+    private StubBridge stub;
+    private HueBridge bridge;
+    private HueLight light;
+    private String statePath;
+    private byte[] config;
+    private byte[] lights;
+    private byte[] groups;
+
+    @Setup
+    public void setup() {
+        stub = new StubBridge(lightCount);
+        bridge = new HueBridge("127.0.0.1", "benchmark", stub);
+        light = new HueLight(bridge, 1);
+        statePath = "/api/" + StubBridge.USERNAME + "/lights/1/state";
+        config = StubBridge.configJson().getBytes(StandardCharsets.UTF_8);
+        lights = StubBridge.lightsJson(lightCount).getBytes(StandardCharsets.UTF_8);
+        groups = StubBridge.groupsJson(lightCount).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        bridge.close();
+    }
+
+    @Benchmark
+    public int stateResponse() {
+        return HueBridgeComm.requestResults(stub, HueBridgeComm.requestMethod.PUT, statePath, null, 0, light::updateStateVariables);
+    }
+
+    @Benchmark
+    public List<HueLight> initialSyncLights() throws IOException {
+        List<HueLight> decoded = HueJsonDecoder.readLights(reader(lights), bridge);
+        // The registry never adopts these, so give their slots back as a merge would
+        for (HueLight light : decoded) {
+            light.release();
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public List<HueGroup> initialSyncGroups() throws IOException {
+        return HueJsonDecoder.readGroups(reader(groups), bridge);
+    }
+
+    @Benchmark
+    public Boolean initialSyncConfig() throws IOException {
+        return HueJsonDecoder.readConfig(reader(config), bridge);
+    }
+
+    private static JsonReader reader(byte[] body) {
+        return new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,75 @@
+package com.kyleaheron;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end {@code show()}: mailbox, command scheduler, encoding, the exchange with an in-process {@link StubBridge} and
+ * decoding of the reply. The bridge's command rate limit is lifted, so the numbers are the library's own overhead.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShowBenchmark {
+
+    private static final int LIGHTS = 50;
+
+    @State(Scope.Benchmark)
+    public static class Bridge {
+        HueBridge bridge;
+        List<HueLight> lights;
+        final AtomicInteger nextLight = new AtomicInteger();
+
+        @Setup
+        public void setup() throws IOException {
+            bridge = new StubBridge(LIGHTS).connect();
+            bridge.getCommandScheduler().setLightCommandRate(Double.MAX_VALUE / 2, Integer.MAX_VALUE);
+            lights = bridge.getLights();
+        }
+
+        @TearDown
+        public void tearDown() {
+            bridge.close();
+        }
+    }
+
+    /**
+     * Each benchmark thread drives its own light, as separate callers would.
+     */
+    @State(Scope.Thread)
+    public static class Light {
+        HueLight light;
+        int brightness;
+
+        @Setup
+        public void setup(Bridge bridge) {
+            light = bridge.lights.get(bridge.nextLight.getAndIncrement() % bridge.lights.size());
+        }
+
+        void show() {
+            // A different brightness each time, since unchanged attributes are not sent
+            brightness = brightness % HueLight.MAX_BRIGHTNESS + 1;
+            light.setBrightness(brightness).setXY(0.3127f, 0.329f).setTransitionTime(0);
+            light.show();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public void throughput(Light light) {
+        light.show();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency(Light light) {
+        light.show();
+    }
+}
@@ -0,0 +1,78 @@
+package com.kyleaheron;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code show()} against a {@link HueBridgeSimulator} over loopback HTTP, so the connection pool and real sockets are
+ * measured along with the rest of the library. The simulator answers at once and neither side limits the command rate.
+ * The fork turns off Nagle's algorithm in the simulator's HTTP server; see {@link HueBridgeSimulator#start()}.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class SimulatedBridgeBenchmark {
+
+    private static final int LIGHTS = 200;
+
+    @State(Scope.Benchmark)
+    public static class Bridge {
+        HueBridgeSimulator simulator;
+        HueBridge bridge;
+        List<HueLight> lights;
+        final AtomicInteger nextLight = new AtomicInteger();
+
+        @Setup
+        public void setup() throws IOException {
+            simulator = new HueBridgeSimulator(LIGHTS);
+            simulator.setRecording(false);
+            bridge = simulator.createHttpBridge();
+            if (!bridge.whenSynchronized().join()) throw new IOException("Simulated bridge did not connect");
+            bridge.getCommandScheduler().setAdaptiveRate(false);
+            bridge.getCommandScheduler().setLightCommandRate(Double.MAX_VALUE / 2, Integer.MAX_VALUE);
+            lights = bridge.getLights();
+        }
+
+        @TearDown
+        public void tearDown() {
+            bridge.close();
+            simulator.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Light {
+        HueLight light;
+        int brightness;
+
+        @Setup
+        public void setup(Bridge bridge) {
+            light = bridge.lights.get(bridge.nextLight.getAndIncrement() % bridge.lights.size());
+        }
+
+        void show() {
+            brightness = brightness % HueLight.MAX_BRIGHTNESS + 1;
+            light.setBrightness(brightness).setXY(0.3127f, 0.329f).setTransitionTime(0);
+            light.show();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public void throughput(Light light) {
+        light.show();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency(Light light) {
+        light.show();
+    }
+}
@@ -0,0 +1,109 @@
+package com.kyleaheron;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-process bridge that answers every request from canned responses, so benchmarks measure the library rather than
+ * the network or a real bridge. Responses are built once up front; answering a request only looks one up.
+ */
+final class StubBridge implements HueTransport {
+
+    static final String USERNAME = "benchmark";
+
+    private final Map<String, byte[]> responses = new HashMap<>();
+
+    StubBridge(int lightCount) {
+        put("POST", "/api", "[{\"success\":{\"username\":\"" + USERNAME + "\"}}]");
+        put("GET", path("config"), configJson());
+        put("GET", path("lights"), lightsJson(lightCount));
+        put("GET", path("groups"), groupsJson(lightCount));
+        put("GET", path("scenes"), "{}");
+        for (int id = 1; id <= lightCount; id++) {
+            put("PUT", path("lights/" + id + "/state"), stateResponseJson(id));
+        }
+    }
+
+    /**
+     * Creates a bridge backed by this stub and waits until it has connected. Its snapshot goes to a temporary file.
+     */
+    HueBridge connect() throws IOException {
+        HueBridge bridge = new HueBridge("127.0.0.1", "benchmark", this);
+        File snapshot = File.createTempFile("hue-benchmark", ".snapshot");
+        snapshot.delete();
+        snapshot.deleteOnExit();
+        bridge.setSnapshotFile(snapshot);
+        if (!bridge.whenSynchronized().join()) throw new IOException("Stub bridge did not connect");
+        return bridge;
+    }
+
+    @Override
+    public <T> T exchange(String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException {
+        byte[] response = responses.get(method + " " + path);
+        if (response == null) throw new IOException("No stub response for " + method + " " + path);
+        return handler.handle(200, new ByteArrayInputStream(response));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void put(String method, String path, String json) {
+        responses.put(method + " " + path, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String path(String resource) {
+        return "/api/" + USERNAME + "/" + resource;
+    }
+
+    static String configJson() {
+        return "{\"name\":\"Stub bridge\",\"zigbeechannel\":15,\"mac\":\"00:17:88:00:00:00\",\"dhcp\":true,"
+                + "\"ipaddress\":\"127.0.0.1\",\"netmask\":\"255.255.255.0\",\"gateway\":\"127.0.0.1\","
+                + "\"swversion\":\"1935144040\",\"apiversion\":\"1.35.0\"}";
+    }
+
+    /**
+     * A {@code GET /lights} body in the shape a real bridge sends, including the attributes the library skips.
+     */
+    static String lightsJson(int count) {
+        StringBuilder json = new StringBuilder("{");
+        for (int id = 1; id <= count; id++) {
+            if (id > 1) json.append(',');
+            json.append('"').append(id).append("\":{\"state\":{\"on\":true,\"bri\":").append(id % 254 + 1)
+                    .append(",\"hue\":").append(id * 1000 % 65535).append(",\"sat\":200,\"effect\":\"none\",")
+                    .append("\"xy\":[0.4573,0.41],\"ct\":366,\"alert\":\"none\",\"colormode\":\"xy\",")
+                    .append("\"mode\":\"homeautomation\",\"reachable\":true},")
+                    .append("\"swupdate\":{\"state\":\"noupdates\",\"lastinstall\":\"2019-01-01T00:00:00\"},")
+                    .append("\"type\":\"Extended color light\",\"name\":\"Light ").append(id).append("\",")
+                    .append("\"modelid\":\"LCT015\",\"manufacturername\":\"Philips\",\"productname\":\"Hue color lamp\",")
+                    .append("\"uniqueid\":\"00:17:88:01:00:00:00:").append(String.format("%02x", id % 256)).append("-0b\",")
+                    .append("\"swversion\":\"1.46.13_r26312\"}");
+        }
+        return json.append('}').toString();
+    }
+
+    static String groupsJson(int lightCount) {
+        StringBuilder json = new StringBuilder("{\"1\":{\"name\":\"Stub room\",\"type\":\"Room\",\"lights\":[");
+        for (int id = 1; id <= lightCount; id++) {
+            if (id > 1) json.append(',');
+            json.append('"').append(id).append('"');
+        }
+        return json.append("],\"action\":{\"on\":true,\"bri\":254,\"hue\":8402,\"sat\":140,\"effect\":\"none\",")
+                .append("\"xy\":[0.4573,0.41],\"ct\":366,\"alert\":\"none\",\"colormode\":\"xy\"}}}").toString();
+    }
+
+    /**
+     * The response to a state write of on, brightness, xy and transition time to light {@code id}.
+     */
+    static String stateResponseJson(int id) {
+        String prefix = "/lights/" + id + "/state/";
+        return "[{\"success\":{\"" + prefix + "on\":true}},"
+                + "{\"success\":{\"" + prefix + "bri\":200}},"
+                + "{\"success\":{\"" + prefix + "xy\":[0.3127,0.329]}},"
+                + "{\"success\":{\"" + prefix + "transitiontime\":0}}]";
+    }
+}
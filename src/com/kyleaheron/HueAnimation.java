@@ -0,0 +1,117 @@
+package com.kyleaheron;
+
+import java.util.Arrays;
+
+/**
+ * A keyframed colour and brightness timeline, played on lights and groups by a {@link HueAnimator}.
+ *
+ * Keyframes give a CIE xy colour and a brightness (0 for off, up to {@link HueLight#MAX_BRIGHTNESS}) at a time in
+ * milliseconds from the start; in between, both are interpolated linearly. Keyframes are kept in parallel primitive
+ * arrays, so sampling the timeline on every frame does not allocate. An animation can be shared by any number of
+ * targets, but should not be changed while it is playing.
+ */
+public class HueAnimation {
+
+    private long[] times = new long[4];
+    private float[] xs = new float[4];
+    private float[] ys = new float[4];
+    private int[] brightnesses = new int[4];
+    private int count = 0;
+    private boolean looping = false;
+
+    /**
+     * Adds a keyframe. Keyframes may be added in any order; one at the same time as an existing keyframe replaces it.
+     */
+    public HueAnimation addKeyframe(long time, float x, float y, int brightness) {
+        if (time < 0) throw new IllegalArgumentException("Keyframe time must not be negative");
+        int index = Arrays.binarySearch(times, 0, count, time);
+        if (index < 0) {
+            index = -index - 1;
+            if (count == times.length) grow();
+            System.arraycopy(times, index, times, index + 1, count - index);
+            System.arraycopy(xs, index, xs, index + 1, count - index);
+            System.arraycopy(ys, index, ys, index + 1, count - index);
+            System.arraycopy(brightnesses, index, brightnesses, index + 1, count - index);
+            count++;
+        }
+        times[index] = time;
+        xs[index] = x;
+        ys[index] = y;
+        brightnesses[index] = Math.max(0, Math.min(HueLight.MAX_BRIGHTNESS, brightness));
+        return this;
+    }
+
+    /**
+     * Adds a keyframe from an 8-bit sRGB colour, converted with {@code converter} (e.g. the target light's
+     * {@link HueLight#getColorConverter()}).
+     */
+    public HueAnimation addKeyframe(long time, int red, int green, int blue, int brightness, HueColorConverter converter) {
+        long xy = converter.toXY(red, green, blue);
+        return addKeyframe(time, HueColorConverter.x(xy), HueColorConverter.y(xy), brightness);
+    }
+
+    /**
+     * A looping animation wraps from its last keyframe back to its first and never finishes.
+     */
+    public HueAnimation setLooping(boolean looping) {
+        this.looping = looping;
+        return this;
+    }
+
+    public boolean isLooping() {
+        return looping;
+    }
+
+    /**
+     * The time of the last keyframe.
+     */
+    public long getDuration() {
+        return count == 0 ? 0 : times[count - 1];
+    }
+
+    public int getKeyframeCount() {
+        return count;
+    }
+
+    boolean isFinished(long elapsed) {
+        return !looping && elapsed >= getDuration();
+    }
+
+    /**
+     * Writes the x, y and brightness at {@code elapsed} milliseconds into {@code out[offset..offset + 2]}.
+     */
+    void sample(long elapsed, float[] out, int offset) {
+        if (count == 0) throw new IllegalStateException("Animation has no keyframes");
+        long duration = getDuration();
+        if (looping && duration > 0) elapsed %= duration;
+
+        if (elapsed <= times[0] || count == 1) {
+            write(out, offset, 0, 0, 0);
+        } else if (elapsed >= duration) {
+            write(out, offset, count - 1, count - 1, 0);
+        } else {
+            int index = Arrays.binarySearch(times, 0, count, elapsed);
+            if (index >= 0) {
+                write(out, offset, index, index, 0);
+            } else {
+                int next = -index - 1;
+                float fraction = (elapsed - times[next - 1]) / (float) (times[next] - times[next - 1]);
+                write(out, offset, next - 1, next, fraction);
+            }
+        }
+    }
+
+    private void write(float[] out, int offset, int from, int to, float fraction) {
+        out[offset] = xs[from] + (xs[to] - xs[from]) * fraction;
+        out[offset + 1] = ys[from] + (ys[to] - ys[from]) * fraction;
+        out[offset + 2] = brightnesses[from] + (brightnesses[to] - brightnesses[from]) * fraction;
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        brightnesses = Arrays.copyOf(brightnesses, capacity);
+    }
+}
@@ -0,0 +1,275 @@
+package com.kyleaheron;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays {@link HueAnimation}s on a bridge's lights and groups.
+ *
+ * Animations are sampled at a fixed frame rate on the bridge's timer, but a bridge can only take about ten light
+ * commands a second, so most frames cannot be sent to every light. Each frame the animator works out how far every
+ * light is from where its animation wants it, as a CIELUV colour difference, and spends the command budget for that
+ * frame on the lights that are furthest off. A light that can only be updated every so often is sent the state it
+ * should reach by its next update, with a matching {@code transitiontime}, so the bulb fades smoothly between the
+ * sparse commands instead of stepping.
+ */
+public class HueAnimator {
+
+    static Logger logger = Logger.getLogger(HueAnimator.class.getName());
+
+    public static final int DEFAULT_FRAME_RATE = 20;
+
+    // A CIELUV difference of about one is the smallest change most people can see
+    private static final float MIN_ERROR = 1f;
+    // Transition times beyond this make an animation feel unresponsive to changes
+    private static final int MAX_LEAD = 3000;
+    // The bridge stores transition times in tenths of a second
+    private static final int TRANSITION_UNIT = 100;
+
+    private static final float WHITE_U = 0.1978f;
+    private static final float WHITE_V = 0.4683f;
+
+    private final HueBridge bridge;
+    private final Map<Object, Track> tracks = new ConcurrentHashMap<>();
+    private final List<Track> candidates = new ArrayList<>();
+    private final float[] sample = new float[3];
+
+    private volatile int frameRate = DEFAULT_FRAME_RATE;
+    private ScheduledFuture<?> ticker;
+    private double lightCredit;
+    private double groupCredit;
+
+    HueAnimator(HueBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Plays {@code animation} on {@code light}, replacing anything already playing on it. The future completes once a
+     * non-looping animation has sent its last keyframe, and is cancelled if the animation is stopped or replaced.
+     */
+    public CompletableFuture<Void> play(HueLight light, HueAnimation animation) {
+        return play(new Track(light, null, animation));
+    }
+
+    /**
+     * Plays {@code animation} on {@code group}. Group commands come from the bridge's much smaller group budget, so
+     * only slow animations play smoothly on groups.
+     */
+    public CompletableFuture<Void> play(HueGroup group, HueAnimation animation) {
+        return play(new Track(null, group, animation));
+    }
+
+    private synchronized CompletableFuture<Void> play(Track track) {
+        if (track.animation.getKeyframeCount() == 0) throw new IllegalArgumentException("Animation has no keyframes");
+        Track previous = tracks.put(track.target(), track);
+        if (previous != null) previous.done.cancel(false);
+        if (ticker == null) start();
+        return track.done;
+    }
+
+    public void stop(HueLight light) {
+        stopTarget(light);
+    }
+
+    public void stop(HueGroup group) {
+        stopTarget(group);
+    }
+
+    private void stopTarget(Object target) {
+        Track track = tracks.remove(target);
+        if (track != null) track.done.cancel(false);
+    }
+
+    public synchronized void stopAll() {
+        for (Object target : new ArrayList<>(tracks.keySet())) {
+            stopTarget(target);
+        }
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    /**
+     * Sets how many times a second animations are sampled. Higher rates react faster but do not raise the command rate,
+     * which is set by the bridge's {@link HueCommandScheduler}.
+     */
+    public synchronized void setFrameRate(int frameRate) {
+        if (frameRate < 1 || frameRate > 1000) throw new IllegalArgumentException("Frame rate must be between 1 and 1000");
+        this.frameRate = frameRate;
+        if (ticker != null) {
+            ticker.cancel(false);
+            start();
+        }
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public int getActiveCount() {
+        return tracks.size();
+    }
+
+    private void start() {
+        lightCredit = 0;
+        groupCredit = 0;
+        ticker = bridge.getScheduler().scheduleAtFixedRate(() -> {
+            try {
+                tick(System.nanoTime() / 1000000);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Animation frame failed", e);
+            }
+        }, 0, 1000000 / frameRate, TimeUnit.MICROSECONDS);
+    }
+
+    synchronized void tick(long now) {
+        if (tracks.isEmpty()) {
+            if (ticker != null) ticker.cancel(false);
+            ticker = null;
+            return;
+        }
+        HueCommandScheduler commandScheduler = bridge.getCommandScheduler();
+        double lightRate = commandScheduler.getLightCommandRate();
+        double groupRate = commandScheduler.getGroupCommandRate();
+        long frameInterval = 1000 / frameRate;
+
+        candidates.clear();
+        candidates.addAll(tracks.values());
+        int lightTracks = 0;
+        for (Track track : candidates) {
+            if (track.light != null) lightTracks++;
+        }
+        int groupTracks = candidates.size() - lightTracks;
+
+        // How long each light waits between commands when the budget is shared evenly
+        long lightLead = lead(lightTracks, lightRate, frameInterval);
+        long groupLead = lead(groupTracks, groupRate, frameInterval);
+
+        for (Track track : candidates) {
+            if (track.start < 0) track.start = now;
+            long elapsed = now - track.start;
+            long lead = track.light != null ? lightLead : groupLead;
+            long target = track.animation.isLooping() ? elapsed + lead : Math.min(elapsed + lead, track.animation.getDuration());
+            track.animation.sample(target, sample, 0);
+            track.x = sample[0];
+            track.y = sample[1];
+            track.brightness = Math.round(sample[2]);
+            track.lead = (int) Math.min(lead, Math.max(0, track.animation.isLooping() ? lead : track.animation.getDuration() - elapsed));
+            track.error = track.sent ? difference(track.sentX, track.sentY, track.sentBrightness, track.x, track.y, track.brightness) : Float.MAX_VALUE;
+
+            if (track.error < MIN_ERROR && track.animation.isFinished(elapsed)) {
+                tracks.remove(track.target(), track);
+                track.done.complete(null);
+            }
+        }
+
+        // Credit only builds up while the scheduler keeps pace, so a slow bridge does not collect a backlog of stale frames
+        if (commandScheduler.getQueuedCommandCount() < Math.max(1, candidates.size())) {
+            lightCredit = Math.min(lightCredit + lightRate / frameRate, Math.max(1, lightRate / frameRate));
+            groupCredit = Math.min(groupCredit + groupRate / frameRate, Math.max(1, groupRate / frameRate));
+        }
+        while (lightCredit >= 1 && send(true)) {
+            lightCredit--;
+        }
+        while (groupCredit >= 1 && send(false)) {
+            groupCredit--;
+        }
+    }
+
+    private static long lead(int tracks, double rate, long frameInterval) {
+        if (tracks == 0 || rate <= 0) return frameInterval;
+        return Math.min(MAX_LEAD, Math.max(frameInterval, (long) (tracks * 1000 / rate)));
+    }
+
+    /**
+     * Sends the frame of the light (or group) track that is furthest from its animation. Returns {@code false} if none
+     * is far enough off to be worth a command.
+     */
+    private boolean send(boolean lights) {
+        Track worst = null;
+        for (Track track : candidates) {
+            if ((track.light != null) != lights || track.error < MIN_ERROR || track.done.isDone()) continue;
+            if (worst == null || track.error > worst.error) worst = track;
+        }
+        if (worst == null) return false;
+
+        int transition = Math.round(worst.lead / (float) TRANSITION_UNIT) * TRANSITION_UNIT;
+        boolean on = worst.brightness > 0;
+        if (worst.light != null) {
+            worst.light.setOn(on);
+            if (on) worst.light.setBrightness(worst.brightness).setXY(worst.x, worst.y);
+            worst.light.setTransitionTime(transition).showAsync();
+        } else {
+            worst.group.setOn(on);
+            if (on) worst.group.setBrightness(worst.brightness).setXY(worst.x, worst.y);
+            worst.group.setTransitionTime(transition).showAsync();
+        }
+        worst.sent = true;
+        worst.sentX = worst.x;
+        worst.sentY = worst.y;
+        worst.sentBrightness = worst.brightness;
+        worst.error = 0;
+        return true;
+    }
+
+    /**
+     * The CIELUV colour difference between two xy and brightness states, treating brightness as relative luminance.
+     */
+    static float difference(float x1, float y1, int brightness1, float x2, float y2, int brightness2) {
+        float l1 = lightness(brightness1);
+        float l2 = lightness(brightness2);
+        float d1 = -2 * x1 + 12 * y1 + 3;
+        float d2 = -2 * x2 + 12 * y2 + 3;
+        float u1 = 13 * l1 * (4 * x1 / d1 - WHITE_U);
+        float v1 = 13 * l1 * (9 * y1 / d1 - WHITE_V);
+        float u2 = 13 * l2 * (4 * x2 / d2 - WHITE_U);
+        float v2 = 13 * l2 * (9 * y2 / d2 - WHITE_V);
+        float dl = l1 - l2;
+        float du = u1 - u2;
+        float dv = v1 - v2;
+        return (float) Math.sqrt(dl * dl + du * du + dv * dv);
+    }
+
+    private static float lightness(int brightness) {
+        float luminance = Math.max(0, brightness) / (float) HueLight.MAX_BRIGHTNESS;
+        return luminance > 0.008856f ? 116 * (float) Math.cbrt(luminance) - 16 : 903.3f * luminance;
+    }
+
+    private static class Track {
+        final HueLight light;
+        final HueGroup group;
+        final HueAnimation animation;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        long start = -1;
+
+        // The frame this tick wants to send, and how far it is from the last one sent
+        float x;
+        float y;
+        int brightness;
+        int lead;
+        float error;
+
+        boolean sent;
+        float sentX;
+        float sentY;
+        int sentBrightness;
+
+        Track(HueLight light, HueGroup group, HueAnimation animation) {
+            this.light = light;
+            this.group = group;
+            this.animation = animation;
+        }
+
+        Object target() {
+            return light != null ? light : group;
+        }
+    }
+}
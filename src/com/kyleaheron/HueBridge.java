@@ -1,13 +1,17 @@
 package com.kyleaheron;
 
-import com.google.gson.JsonElement;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,6 +19,13 @@ public class HueBridge {
 
     Logger logger = Logger.getLogger(HueBridge.class.getName());
 
+    private static final int AUTHENTICATION_TIMEOUT = 30000;
+    private static final int AUTHENTICATION_POLL_INTERVAL = 2000;
+    private static final int LIGHT_SEARCH_DURATION = 40000;
+    private static final int SNAPSHOT_INTERVAL = 300000;
+    // Usernames were saved here, for one bridge only, before per-bridge snapshots
+    private static final File LEGACY_USERNAME_FILE = new File("username.json");
+
     private String ipAddress;
     private String uniqueDeviceId;
     private String username;
@@ -22,195 +33,711 @@ public class HueBridge {
     private String macAddress;
     private String netmask;
     private boolean dhcp;
-    private File usernameJsonFile;
-
-    private boolean isAuthenticated = false;
-    private boolean initialSyncComplete = false;
-
-    private static List<HueLight> connectedLights = new ArrayList<>();
+    private volatile File snapshotFile;
+    private final Object snapshotLock = new Object();
+    private ScheduledFuture<?> snapshotTask;
+    private final HueTransport transport;
+    private final HueJournalTransport journalTransport;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final HueCommandScheduler commandScheduler;
+    private volatile HueStatePoller poller;
+    private final List<HueLightListener> lightListeners = new CopyOnWriteArrayList<>();
+    private final List<HueSensorListener> sensorListeners = new CopyOnWriteArrayList<>();
+    private volatile HueEventStream eventStream;
+    private HueAnimator animator;
+
+    private volatile boolean isAuthenticated = false;
+    private CompletableFuture<Boolean> connection;
+    private CompletableFuture<Boolean> synchronization;
+
+    // Before the groups below, whose mailboxes report to it
+    private final HueMetrics metrics = new HueMetrics(this);
+    private final HueLightStateStore lightStateStore = new HueLightStateStore();
+
+    private final HueLightRegistry lights = new HueLightRegistry();
+    private final CopyOnWriteArrayList<HueGroup> groups = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<HueScene> scenes = new CopyOnWriteArrayList<>();
+    private final HueGroup allLightsGroup = new HueGroup(this, HueGroup.ALL_LIGHTS_ID, "All lights", "LightGroup", Collections.<Integer>emptyList());
 
     HueBridge(String ipAddress, String uniqueDeviceId) {
+        this(ipAddress, uniqueDeviceId, HueConnectionPool.forAddress(ipAddress));
+    }
+
+    public HueBridge(String ipAddress, String uniqueDeviceId, HueTransport transport) {
         this.ipAddress = ipAddress;
         this.uniqueDeviceId = uniqueDeviceId;
-        usernameJsonFile = new File("username.json");
-        try {
-            if (!usernameJsonFile.exists()) {
-                logger.log(Level.INFO, "'username.json' does not exist! Creating...");
-                usernameJsonFile.createNewFile();
-            } else {
-                logger.log(Level.INFO, "'username.json' found! Loading username for bridge...");
-
-                FileReader reader = new FileReader(usernameJsonFile);
-                BufferedReader readBuffer = new BufferedReader(reader);
-                StringBuilder builder = new StringBuilder();
-                JsonParser parser = new JsonParser();
-                String line;
-                JsonObject usernameJson;
-
-                while ((line = readBuffer.readLine()) != null) {
-                    builder.append(line).append("\n");
-                }
+        this.journalTransport = new HueJournalTransport(transport);
+        this.transport = new HueMetricsTransport(journalTransport, metrics);
+        this.executor = Executors.newCachedThreadPool(daemonThreads("hue-" + uniqueDeviceId + "-io"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("hue-" + uniqueDeviceId + "-timer"));
+        this.commandScheduler = new HueCommandScheduler(this);
+        this.snapshotFile = new File("hue-" + uniqueDeviceId.replaceAll("[^A-Za-z0-9_-]", "_") + ".snapshot");
+    }
 
-                reader.close();
-                readBuffer.close();
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 
-                usernameJson = parser.parse(builder.toString()).getAsJsonObject();
+    /**
+     * Finds bridges on the local network, falling back to the meethue.com lookup. See {@link HueDiscovery} for
+     * finer control and for receiving bridges as they are found.
+     */
+    public static List<HueBridge> discover() {
+        return new HueDiscovery().discover();
+    }
 
-                if (usernameJson.get("id").getAsString().equals(getUniqueDeviceId())) {
-                    this.isAuthenticated = true;
-                    this.username = usernameJson.get("username").getAsString();
+    /**
+     * Connects to every bridge at once, pairing the ones without a saved username in parallel. The future completes
+     * with the bridges that connected once each has either connected or given up.
+     */
+    public static CompletableFuture<List<HueBridge>> connectAll(Collection<HueBridge> bridges) {
+        List<HueBridge> pending = new ArrayList<>(bridges);
+        List<CompletableFuture<Boolean>> connections = new ArrayList<>();
+        for (HueBridge bridge : pending) {
+            connections.add(bridge.connect().exceptionally(error -> false));
+        }
+        return CompletableFuture.allOf(connections.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<HueBridge> connected = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                if (connections.get(i).join()) connected.add(pending.get(i));
+            }
+            return connected;
+        });
+    }
 
-                    completeInitialSync();
+    /**
+     * Connects to the bridge without blocking: loads the bridge's snapshot, pairs with the bridge if there is no saved
+     * username, then fetches config, lights, groups and scenes concurrently. The future completes with {@code true} as
+     * soon as the lights are known, so commands can be sent while the rest is still loading; {@link #whenSynchronized()}
+     * completes once everything has arrived. It completes with {@code false} if the bridge could not be paired.
+     *
+     * When the snapshot holds lights, they are usable as soon as it has loaded and the fetch reconciles them in the
+     * background.
+     */
+    public synchronized CompletableFuture<Boolean> connect() {
+        if (connection == null || connection.isCompletedExceptionally() || (connection.isDone() && !connection.join())) {
+            connection = CompletableFuture.supplyAsync(this::loadSavedState, executor)
+                    .thenCompose(loaded -> loaded ? CompletableFuture.completedFuture(true) : pair())
+                    .thenCompose(paired -> {
+                        if (!paired) return CompletableFuture.completedFuture(false);
+                        CompletableFuture<Boolean> lightsLoaded = synchronize();
+                        scheduleSnapshots();
+                        return lights.size() > 0 ? CompletableFuture.completedFuture(true) : lightsLoaded;
+                    });
+        }
+        return connection;
+    }
 
-                    if (isAuthenticated && initialSyncComplete) {
-                        logger.log(Level.INFO, String.format("Successfully connected to bridge: %s", getUniqueDeviceId()));
-                    }
-                } else {
-                    logger.log(Level.WARNING, "Username not found for bridge, call 'authenticate' to create one.");
-                }
+    /**
+     * Completes with {@code true} once {@link #connect()} has finished and config, groups and scenes have all loaded.
+     */
+    public CompletableFuture<Boolean> whenSynchronized() {
+        return connect().thenCompose(connected -> {
+            synchronized (this) {
+                return connected ? synchronization : CompletableFuture.completedFuture(false);
             }
+        });
+    }
+
+    public void authenticate() {
+        authenticateAsync().join();
+    }
+
+    /**
+     * Same as {@link #connect()}; pairing polls the bridge every two seconds until the link button is pressed or
+     * thirty seconds pass.
+     */
+    public CompletableFuture<Boolean> authenticateAsync() {
+        return connect();
+    }
+
+    private boolean loadSavedState() {
+        if (isAuthenticated) return true;
+        HueBridgeSnapshot snapshot = null;
+        try {
+            snapshot = HueBridgeSnapshot.read(this, snapshotFile);
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.log(Level.WARNING, "Could not read bridge snapshot " + snapshotFile, e);
+        }
+        if (snapshot != null && snapshot.username != null) {
+            this.username = snapshot.username;
+            this.isAuthenticated = true;
+            initializeConfig(snapshot.name, snapshot.macAddress, snapshot.netmask, snapshot.dhcp);
+            lights.merge(snapshot.lights);
+            groups.addAll(snapshot.groups);
+            scenes.addAll(snapshot.scenes);
+            logger.log(Level.INFO, String.format("Restored bridge %s from snapshot with %d lights", getUniqueDeviceId(), snapshot.lights.size()));
+            return true;
         }
+        if (snapshot != null) snapshot.release();
+        return loadLegacyUsername();
     }
 
-    public static List<HueBridge> discover() {
-        return HueBridgeComm.discover();
+    private boolean loadLegacyUsername() {
+        File usernameJsonFile = LEGACY_USERNAME_FILE;
+        if (!usernameJsonFile.exists() || usernameJsonFile.length() == 0) {
+            logger.log(Level.INFO, "'username.json' does not exist! Pairing with bridge...");
+            return false;
+        }
+        logger.log(Level.INFO, "'username.json' found! Loading username for bridge...");
+        try (BufferedReader reader = new BufferedReader(new FileReader(usernameJsonFile))) {
+            JsonObject usernameJson = new JsonParser().parse(reader).getAsJsonObject();
+            if (usernameJson.get("id").getAsString().equals(getUniqueDeviceId())) {
+                this.username = usernameJson.get("username").getAsString();
+                this.isAuthenticated = true;
+                return true;
+            }
+            logger.log(Level.WARNING, "Username not found for bridge, pairing with bridge...");
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        return false;
     }
 
-    public void authenticate() {
-        if (!isAuthenticated) {
-            logger.log(Level.INFO, "Bridge not authenticated! Authenticating...");
+    private CompletableFuture<Boolean> pair() {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        logger.log(Level.INFO, "Bridge not authenticated! Authenticating...");
 
-            boolean accessGranted = false;
-            List<JsonObject> response;
-            JsonObject output = new JsonObject();
+        JsonObject output = new JsonObject();
+        output.addProperty("devicetype", getClass().getName());
 
-            output.addProperty("devicetype", getClass().getName());
+        if (username != null) {
+            output.addProperty("username", username);
+        }
 
-            if (username != null) {
-                output.addProperty("username", username);
-            }
+        pollAuthentication(output, System.currentTimeMillis() + AUTHENTICATION_TIMEOUT, result);
+        return result;
+    }
 
-            int waitInSeconds = 30;
-            long startTime = System.currentTimeMillis();
-
-            do {
-                response = HueBridgeComm.request(HueBridgeComm.requestMethod.POST, String.format("http://%s/api", getIpAddress()), output);
-
-                if (response.size() > 0) {
-                    for (JsonObject responseObj : response) {
-                        if (responseObj.has("success")) {
-                            try {
-                                username = responseObj.get("success").getAsJsonObject().get("username").getAsString();
-                                isAuthenticated = true;
-
-                                FileWriter writer = new FileWriter(usernameJsonFile);
-                                BufferedWriter bufferedWriter = new BufferedWriter(writer);
-                                JsonObject usernameJson = new JsonObject();
-                                usernameJson.addProperty("id", getUniqueDeviceId());
-                                usernameJson.addProperty("username", getUsername());
-                                bufferedWriter.write(usernameJson.toString());
-                                bufferedWriter.close();
-                                writer.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            } finally {
-                                logger.log(Level.INFO, String.format("Successfully authenticated with bridge: %s!", getUniqueDeviceId()));
-                                completeInitialSync();
-                                accessGranted = true;
-                            }
-                        } else {
-                            // Button not pressed
-                        }
-                    }
+    /**
+     * Tries to pair on the I/O executor, and if the link button has not been pressed yet hands the next try back to it
+     * after the poll interval. The timer thread only ever does the hand-off, since it also drives the command scheduler
+     * and animations, and a try only starts once the previous one is over.
+     */
+    private void pollAuthentication(JsonObject output, long deadline, CompletableFuture<Boolean> result) {
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) return;
+                if (tryAuthenticate(output)) {
+                    result.complete(true);
+                } else if (System.currentTimeMillis() > deadline) {
+                    logger.log(Level.WARNING, String.format("Link button was not pressed on bridge: %s", getUniqueDeviceId()));
+                    result.complete(false);
                 } else {
-                    // No response
-                }
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    try {
+                        scheduler.schedule(() -> pollAuthentication(output, deadline, result),
+                                AUTHENTICATION_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // Closed while pairing
+                        result.complete(false);
+                    }
                 }
-            } while (!accessGranted || (System.currentTimeMillis() - startTime) > (waitInSeconds * 1000));
+            });
+        } catch (RejectedExecutionException e) {
+            result.complete(false);
+        }
+    }
+
+    private boolean tryAuthenticate(JsonObject output) {
+        List<JsonObject> response = HueBridgeComm.request(transport, HueBridgeComm.requestMethod.POST, "/api", output);
+
+        for (JsonObject responseObj : response) {
+            if (responseObj.has("success")) {
+                username = responseObj.get("success").getAsJsonObject().get("username").getAsString();
+                isAuthenticated = true;
+                saveSnapshot();
+                logger.log(Level.INFO, String.format("Successfully authenticated with bridge: %s!", getUniqueDeviceId()));
+                return true;
+            }
+            // Button not pressed
         }
+        return false;
+    }
+
+    /**
+     * Starts the initial fetches side by side over the connection pool and returns a future for the lights alone.
+     */
+    private synchronized CompletableFuture<Boolean> synchronize() {
+        CompletableFuture<Boolean> config = fetch("config", reader -> HueJsonDecoder.readConfig(reader, this))
+                .thenApply(response -> response != null);
+        CompletableFuture<Boolean> lightsLoaded = fetch("lights", reader -> HueJsonDecoder.readLights(reader, this))
+                .thenApply(response -> {
+                    if (response == null) return false;
+                    lights.merge(response);
+                    return true;
+                });
+        CompletableFuture<Boolean> groupsLoaded = fetch("groups", reader -> HueJsonDecoder.readGroups(reader, this))
+                .thenApply(response -> {
+                    if (response == null) return false;
+                    mergeGroups(response);
+                    return true;
+                });
+        CompletableFuture<Boolean> scenesLoaded = fetch("scenes", reader -> HueJsonDecoder.readScenes(reader, this))
+                .thenApply(response -> {
+                    if (response == null) return false;
+                    // Swapped without an empty moment, since readers iterate concurrently
+                    scenes.addAllAbsent(response);
+                    scenes.retainAll(response);
+                    return true;
+                });
+        synchronization = config.thenCombine(lightsLoaded, Boolean::logicalAnd)
+                .thenCombine(groupsLoaded, Boolean::logicalAnd)
+                .thenCombine(scenesLoaded, Boolean::logicalAnd)
+                .whenComplete((complete, error) -> {
+                    if (error == null && complete) {
+                        logger.log(Level.INFO, String.format("Successfully connected to bridge: %s", getUniqueDeviceId()));
+                        saveSnapshot();
+                    }
+                });
+        return lightsLoaded;
     }
 
-    private void completeInitialSync() {
-        if (isAuthenticated && !initialSyncComplete) {
-            List<JsonObject> configResponse = HueBridgeComm.request(HueBridgeComm.requestMethod.GET, formatPath(getIpAddress(), getUsername(), "config"));
-            if (configResponse.size() > 0) {
-                JsonObject configuration = configResponse.get(0);
-                this.name = configuration.get("name").getAsString();
-                this.macAddress = configuration.get("mac").getAsString();
-                this.netmask = configuration.get("netmask").getAsString();
-                this.dhcp = configuration.get("dhcp").getAsBoolean();
-            } else {
-                // No response
+    /**
+     * Updates the groups already known (e.g. from the snapshot) in place, so references to them stay valid.
+     */
+    private void mergeGroups(List<HueGroup> listed) {
+        List<HueGroup> merged = new ArrayList<>(listed.size());
+        for (HueGroup group : listed) {
+            HueGroup existing = getGroup(group.getId());
+            if (existing == null || existing == allLightsGroup) {
+                merged.add(group);
+                continue;
             }
-            List<JsonObject> lightResponse = HueBridgeComm.request(HueBridgeComm.requestMethod.GET, formatPath(getIpAddress(), getUsername(), "lights"));
-            if (lightResponse.size() > 0 ) {
-                for (Entry<String, JsonElement> property : lightResponse.get(0).entrySet()) {
-                    HueLight light = new HueLight(this, Integer.parseInt(property.getKey()));
-                    JsonObject stateObject = property.getValue().getAsJsonObject().get("state").getAsJsonObject();
-                    light.initializeStateVariables(
-                            stateObject.get("on").getAsBoolean(),
-                            stateObject.get("bri").getAsInt(),
-                            stateObject.get("hue").getAsInt(),
-                            stateObject.get("sat").getAsInt(),
-                            stateObject.get("xy").getAsJsonArray().get(0).getAsFloat(),
-                            stateObject.get("xy").getAsJsonArray().get(1).getAsFloat(),
-                            stateObject.get("ct").getAsInt(),
-                            stateObject.get("alert").getAsString(),
-                            stateObject.get("effect").getAsString(),
-                            property.getValue().getAsJsonObject().get("type").getAsString(),
-                            property.getValue().getAsJsonObject().get("name").getAsString(),
-                            property.getValue().getAsJsonObject().get("modelid").getAsString(),
-                            property.getValue().getAsJsonObject().get("swversion").getAsString()
-                    );
-                    connectedLights.add(light);
-                }
-            } else {
-                // No response was recieved
+            existing.updateAttributes(group.getName(), group.getLightIds());
+            existing.initializeActionVariables(group.isOn(), group.getBrightness(), group.getHue(), group.getSaturation(),
+                    group.getColorX(), group.getColorY(), group.getColorTemperature());
+            merged.add(existing);
+        }
+        groups.addAllAbsent(merged);
+        groups.retainAll(merged);
+    }
+
+    private synchronized void scheduleSnapshots() {
+        if (snapshotTask != null) return;
+        snapshotTask = scheduler.scheduleWithFixedDelay(() -> executor.execute(this::saveSnapshot),
+                SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the bridge's username and last known config, lights, groups and scenes to its snapshot file. This happens
+     * on its own after pairing, after each full sync, every five minutes while connected, and on {@link #close()}.
+     */
+    public void saveSnapshot() {
+        if (!isAuthenticated) return;
+        synchronized (snapshotLock) {
+            try {
+                HueBridgeSnapshot.write(this, snapshotFile);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not write bridge snapshot " + snapshotFile, e);
             }
-        } else {
-            // Device not authenticated
         }
-        initialSyncComplete = true;
     }
 
-    public boolean searchForLights() {
-        List<JsonObject> response = HueBridgeComm.request(HueBridgeComm.requestMethod.POST, formatPath(getIpAddress(), getUsername(), "lights"));
-        try {
-            if (response.size() > 0) {
-                logger.log(Level.INFO, "Searching for new lights...");
-                Thread.sleep(40000);
-                return true;
-            } else {
-                return false;
+    /**
+     * Where the snapshot is kept; defaults to {@code hue-<bridge id>.snapshot} in the working directory. Set it before
+     * {@link #connect()}.
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    private <T> CompletableFuture<T> fetch(String resource, HueBridgeComm.ResponseDecoder<T> decoder) {
+        return CompletableFuture.supplyAsync(
+                () -> HueBridgeComm.request(transport, HueBridgeComm.requestMethod.GET, formatPath(getUsername(), resource), decoder),
+                executor);
+    }
+
+    void initializeConfig(String name, String macAddress, String netmask, boolean dhcp) {
+        this.name = name;
+        this.macAddress = macAddress;
+        this.netmask = netmask;
+        this.dhcp = dhcp;
+    }
+
+    static JsonArray toIdArray(List<Integer> ids) {
+        JsonArray array = new JsonArray();
+        for (int id : ids) {
+            array.add(String.valueOf(id));
+        }
+        return array;
+    }
+
+    public HueGroup createGroup(String name, List<HueLight> lights) {
+        return createGroupAsync(name, lights).join();
+    }
+
+    /**
+     * Creates a new light group on the bridge. The future completes with the new group, or {@code null} if the bridge
+     * refused to create it.
+     */
+    public CompletableFuture<HueGroup> createGroupAsync(String name, List<HueLight> lights) {
+        List<Integer> ids = new ArrayList<>();
+        for (HueLight light : lights) {
+            ids.add(light.getId());
+        }
+        JsonObject groupToSend = new JsonObject();
+        groupToSend.addProperty("name", name);
+        groupToSend.addProperty("type", "LightGroup");
+        groupToSend.add("lights", toIdArray(ids));
+        return CompletableFuture.supplyAsync(() -> {
+            String id = postForId("groups", groupToSend);
+            if (id == null) return null;
+            HueGroup group = new HueGroup(this, Integer.parseInt(id), name, "LightGroup", ids);
+            groups.add(group);
+            return group;
+        }, executor);
+    }
+
+    public HueScene createScene(String name, List<HueLight> lights) {
+        return createSceneAsync(name, lights).join();
+    }
+
+    /**
+     * Creates a scene on the bridge that captures the current state of {@code lights}.
+     */
+    public CompletableFuture<HueScene> createSceneAsync(String name, List<HueLight> lights) {
+        List<Integer> ids = new ArrayList<>();
+        for (HueLight light : lights) {
+            ids.add(light.getId());
+        }
+        JsonObject sceneToSend = new JsonObject();
+        sceneToSend.addProperty("name", name);
+        sceneToSend.addProperty("recycle", false);
+        sceneToSend.add("lights", toIdArray(ids));
+        return CompletableFuture.supplyAsync(() -> {
+            String id = postForId("scenes", sceneToSend);
+            if (id == null) return null;
+            HueScene scene = new HueScene(this, id, name, ids);
+            scenes.add(scene);
+            return scene;
+        }, executor);
+    }
+
+    private String postForId(String resource, JsonObject body) {
+        List<JsonObject> response = HueBridgeComm.request(transport, HueBridgeComm.requestMethod.POST, formatPath(getUsername(), resource), body);
+        for (JsonObject responseObj : response) {
+            if (responseObj.has("success")) {
+                return responseObj.get("success").getAsJsonObject().get("id").getAsString();
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
-        return false;
+        return null;
+    }
+
+    public boolean searchForLights() {
+        return searchForLightsAsync().join();
+    }
+
+    /**
+     * Starts a light search on the bridge. Once the bridge's forty second search window has closed the light list is
+     * fetched again and merged into {@link #getLights()}, and the future completes. It completes immediately with
+     * {@code false} if the bridge did not accept the request.
+     */
+    public CompletableFuture<Boolean> searchForLightsAsync() {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        CompletableFuture.supplyAsync(() -> HueBridgeComm.request(transport, HueBridgeComm.requestMethod.POST, formatPath(getUsername(), "lights")), executor)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else if (response.size() > 0) {
+                        logger.log(Level.INFO, "Searching for new lights...");
+                        scheduler.schedule(() -> executor.execute(() -> result.complete(refreshLights())), LIGHT_SEARCH_DURATION, TimeUnit.MILLISECONDS);
+                    } else {
+                        result.complete(false);
+                    }
+                });
+        return result;
     }
 
-    static String formatPath(String ipAddr, String username, String path) {
-        return String.format("http://%s/api/%s/%s", ipAddr, username, path);
+    private boolean refreshLights() {
+        int before = lights.size();
+        List<HueLight> lightResponse = HueBridgeComm.request(transport, HueBridgeComm.requestMethod.GET, formatPath(getUsername(), "lights"),
+                reader -> HueJsonDecoder.readLights(reader, this));
+        if (lightResponse == null) return false;
+        List<HueLight> added = lights.merge(lightResponse);
+        logger.log(Level.INFO, String.format("Light search finished: %d new, %d removed", added.size(), before + added.size() - lights.size()));
+        return true;
+    }
+
+    static String formatPath(String username, String path) {
+        return String.format("/api/%s/%s", username, path);
     }
 
     public void setName(String name) {
+        setNameAsync(name).join();
+    }
+
+    public CompletableFuture<Boolean> setNameAsync(String name) {
+        return CompletableFuture.supplyAsync(() -> putName(name), executor);
+    }
+
+    private boolean putName(String name) {
         JsonObject nameToSend = new JsonObject();
         nameToSend.addProperty("name", name);
         List<JsonObject> response = HueBridgeComm.request(
+                transport,
                 HueBridgeComm.requestMethod.PUT,
-                formatPath(getIpAddress(), getUsername(), "config"),
+                formatPath(getUsername(), "config"),
                 nameToSend);
-        if (response.size() > 0 && response.get(0).getAsJsonObject().has("success")) this.name = name;
+        if (response.size() > 0 && response.get(0).getAsJsonObject().has("success")) {
+            this.name = name;
+            return true;
+        }
+        return false;
+    }
+
+    public void startPolling() {
+        startPolling(HueStatePoller.DEFAULT_MIN_INTERVAL, HueStatePoller.DEFAULT_MAX_INTERVAL);
+    }
+
+    /**
+     * Starts polling the bridge for changes made outside the library. The poll interval adapts between the two bounds,
+     * in milliseconds, depending on how much is changing.
+     */
+    public synchronized void startPolling(int minInterval, int maxInterval) {
+        stopPolling();
+        poller = new HueStatePoller(this, minInterval, maxInterval);
+        poller.start();
+    }
+
+    public synchronized void stopPolling() {
+        if (poller != null) {
+            poller.stop();
+            poller = null;
+        }
+    }
+
+    /**
+     * Subscribes to the bridge's push event stream at {@code address} and {@code path}, applying updates to the cached
+     * lights and groups as they happen. This is an alternative to {@link #startPolling()}.
+     *
+     * The stream is read over plain HTTP. Bridges serve {@code /eventstream/clip/v2} only over TLS on port 443, so
+     * {@code address} has to be a plain-HTTP endpoint for it, such as a local TLS-terminating proxy or a simulator.
+     */
+    public synchronized void startEventStream(InetSocketAddress address, String path) {
+        stopEventStream();
+        eventStream = new HueEventStream(this, address, path);
+        eventStream.start();
+    }
+
+    public synchronized void stopEventStream() {
+        if (eventStream != null) {
+            eventStream.stop();
+            eventStream = null;
+        }
+    }
+
+    public void addSensorListener(HueSensorListener listener) {
+        sensorListeners.add(listener);
+    }
+
+    public void removeSensorListener(HueSensorListener listener) {
+        sensorListeners.remove(listener);
+    }
+
+    void fireSensorChanged(int sensorId, String type, JsonObject data) {
+        for (HueSensorListener listener : sensorListeners) {
+            try {
+                listener.sensorChanged(sensorId, type, data);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Sensor listener failed", e);
+            }
+        }
+    }
+
+    public void addLightListener(HueLightListener listener) {
+        lightListeners.add(listener);
+    }
+
+    public void removeLightListener(HueLightListener listener) {
+        lightListeners.remove(listener);
+    }
+
+    void fireLightChanged(HueLight light) {
+        for (HueLightListener listener : lightListeners) {
+            try {
+                listener.lightChanged(light);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Light listener failed", e);
+            }
+        }
+    }
+
+    void onLightRenamed(HueLight light) {
+        lights.reindex();
+    }
+
+    void onCommandSent() {
+        HueStatePoller current = poller;
+        if (current != null) current.onLocalCommand();
+    }
+
+    public void close() {
+        stopPolling();
+        stopEventStream();
+        synchronized (this) {
+            if (animator != null) animator.stopAll();
+        }
+        saveSnapshot();
+        stopRecording();
+        metrics.unregisterMBean();
+        scheduler.shutdownNow();
+        executor.shutdown();
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
+    /**
+     * Records every request to this bridge, with its timing and response status, into a new {@link HueJournal} at
+     * {@code file} until {@link #stopRecording()}. A recording already running is stopped first.
+     */
+    public HueJournal startRecording(File file) throws IOException {
+        HueJournal journal = HueJournal.create(file);
+        HueJournal previous;
+        synchronized (journalTransport) {
+            previous = journalTransport.getJournal();
+            journalTransport.setJournal(journal);
+        }
+        if (previous != null) previous.close();
+        return journal;
+    }
+
+    public void stopRecording() {
+        HueJournal journal;
+        synchronized (journalTransport) {
+            journal = journalTransport.getJournal();
+            journalTransport.setJournal(null);
+        }
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        logger.log(Level.INFO, String.format("Recorded %d requests to %s", journal.getRecordCount(), journal.getFile()));
+    }
+
+    /**
+     * The state of all this bridge's lights in primitive arrays, for bulk snapshots, diffs and changes across many
+     * lights. See {@link HueLight#getSlot()}.
+     */
+    public HueLightStateStore getLightStateStore() {
+        return lightStateStore;
+    }
+
+    public HueCommandScheduler getCommandScheduler() {
+        return commandScheduler;
+    }
+
+    /**
+     * Creates a stream to the lights of an entertainment group over UDP to the bridge's streaming port. Call
+     * {@link HueStream#start()} to begin sending.
+     */
+    public HueStream createStream(HueGroup entertainmentGroup) {
+        String host = HueBridgeComm.resolveAddress(getIpAddress(), 80).getHostString();
+        return createStream(entertainmentGroup, new HueUdpStreamTransport(host, HueUdpStreamTransport.DEFAULT_PORT));
+    }
+
+    public HueStream createStream(HueGroup entertainmentGroup, HueStreamTransport transport) {
+        return new HueStream(this, entertainmentGroup, entertainmentGroup.getLights(), transport);
+    }
+
+    /**
+     * Creates a stream to {@code lights} without switching a group into streaming mode, e.g. for a bridge that is
+     * already streaming or a local receiver.
+     */
+    public HueStream createStream(List<HueLight> lights, HueStreamTransport transport) {
+        return new HueStream(this, null, lights, transport);
+    }
+
+    /**
+     * The bridge's animation engine, which shares its command budget between every animation playing on the bridge.
+     */
+    public synchronized HueAnimator getAnimator() {
+        if (animator == null) animator = new HueAnimator(this);
+        return animator;
+    }
+
+    /**
+     * Latency, throughput and error measurements for this bridge. Call {@link HueMetrics#registerMBean()} to publish
+     * them over JMX.
+     */
+    public HueMetrics getMetrics() {
+        return metrics;
+    }
+
+    HueTransport getTransport() {
+        return transport;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * A snapshot of the bridge's lights ordered by id. It is not affected by later changes, so it can be iterated while
+     * lights are being added or removed.
+     */
     public List<HueLight> getLights() {
-        return connectedLights;
+        return lights.getAll();
+    }
+
+    public HueLight getLight(int id) {
+        return lights.get(id);
+    }
+
+    /**
+     * Light names are not unique on a bridge, so every light with the given name is returned.
+     */
+    public List<HueLight> getLightsByName(String name) {
+        return lights.getByName(name);
+    }
+
+    public List<HueLight> getLightsByModel(String modelId) {
+        return lights.getByModel(modelId);
+    }
+
+    public List<HueLight> getLightsByType(String type) {
+        return lights.getByType(type);
+    }
+
+    public List<HueGroup> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+
+    public HueGroup getGroup(int id) {
+        if (id == HueGroup.ALL_LIGHTS_ID) return allLightsGroup;
+        for (HueGroup group : groups) {
+            if (group.getId() == id) return group;
+        }
+        return null;
+    }
+
+    /**
+     * The bridge's built-in group 0, which always contains every light on the bridge.
+     */
+    public HueGroup getAllLightsGroup() {
+        return allLightsGroup;
+    }
+
+    public List<HueScene> getScenes() {
+        return Collections.unmodifiableList(scenes);
     }
 
     public String getName() {
@@ -1,9 +1,12 @@
 package com.kyleaheron;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
@@ -22,6 +25,17 @@ class HueBridgeComm
         GET, POST, PUT, DELETE
     }
 
+    /**
+     * Splits a bridge address of the form {@code host} or {@code host:port} without resolving it.
+     */
+    static InetSocketAddress resolveAddress(String address, int defaultPort) {
+        int separator = address.lastIndexOf(':');
+        if (separator > 0 && address.indexOf(':') == separator) {
+            return InetSocketAddress.createUnresolved(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        }
+        return InetSocketAddress.createUnresolved(address, defaultPort);
+    }
+
     static List<HueBridge> discover() {
         // Implement UPnP
         List<HueBridge> bridgeList = new ArrayList<>();
@@ -59,65 +73,199 @@ class HueBridgeComm
         return bridgeList;
     }
 
-    static List<JsonObject> request(requestMethod rm, String fullPath, String json) {
-        List<JsonObject> response = new ArrayList<>();
-        JsonParser parser = new JsonParser();
-        HttpURLConnection connection;
-        URL reqUrl;
+    interface ResponseDecoder<T> {
+        T decode(JsonReader reader) throws IOException;
+    }
 
-        try {
+    interface SuccessHandler {
+        /**
+         * Consumes the object under one {@code success} entry of a write response.
+         */
+        void success(JsonReader reader) throws IOException;
+    }
 
-            reqUrl = new URL(fullPath);
-            connection = (HttpURLConnection) reqUrl.openConnection();
+    /**
+     * Sends a write and streams each {@code success} entry of the response to {@code handler} as it is read. Error
+     * entries are collected and logged. Returns the number of successful entries, or zero if the request failed.
+     */
+    static int requestResults(HueTransport transport, requestMethod rm, String path, byte[] body, int length, SuccessHandler handler) {
+        List<HueException> errors = new ArrayList<>();
+        int successes = 0;
 
-            connection.setRequestMethod(rm.name());
+        try {
+            successes = requestResults(transport, rm, path, body, length, handler, errors);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        logErrors(errors);
+        return successes;
+    }
 
-            if (!json.equals("")) {
-                connection.setRequestProperty("Content-Length", String.valueOf(json.getBytes().length));
-                connection.setDoOutput(true);
-                connection.getOutputStream().write(json.getBytes(requestCharset));
+    /**
+     * Like {@link #requestResults(HueTransport, requestMethod, String, byte[], int, SuccessHandler)}, but leaves failures
+     * to the caller: error entries are added to {@code errors}, and a request that got no usable response, including a
+     * 503 from an overloaded bridge, throws.
+     */
+    static int requestResults(HueTransport transport, requestMethod rm, String path, byte[] body, int length, SuccessHandler handler,
+                              List<HueException> errors) throws IOException {
+        return transport.exchange(rm.name(), path, body, length, (status, in) -> {
+            checkStatus(status);
+            JsonReader reader = newReader(in);
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                collectErrors(transport, readResponseList(reader), errors);
+                return 0;
             }
+            int count = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String result = reader.nextName();
+                    if (result.equals("success")) {
+                        handler.success(reader);
+                        count++;
+                    } else if (result.equals("error")) {
+                        JsonObject error = new JsonObject();
+                        error.add(result, new JsonParser().parse(reader));
+                        HueException exception = new HueException(error);
+                        HueMetrics.bridgeError(transport, exception);
+                        errors.add(exception);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+            return count;
+        });
+    }
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), requestCharset));
-            StringBuilder builder = new StringBuilder();
-            String line;
+    static List<JsonObject> request(HueTransport transport, requestMethod rm, String path, String json) {
+        byte[] body;
+        try {
+            body = json.getBytes(requestCharset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return request(transport, rm, path, body, body.length);
+    }
 
-            while ((line = reader.readLine()) != null) {
-                builder.append(line).append("\n");
-            }
+    static List<JsonObject> request(HueTransport transport, requestMethod rm, String path, byte[] body, int length) {
+        List<HueException> errors = new ArrayList<>();
+        List<JsonObject> response = new ArrayList<>();
 
-            reader.close();
-            connection.disconnect();
+        try {
+            response = request(transport, rm, path, body, length, errors);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        logErrors(errors);
+        return response;
+    }
 
-            String jsonString = builder.toString().trim();
+    /**
+     * Like {@link #request(HueTransport, requestMethod, String, byte[], int)}, but leaves failures to the caller. Error
+     * entries stay in the returned list and are also added to {@code errors}.
+     */
+    static List<JsonObject> request(HueTransport transport, requestMethod rm, String path, byte[] body, int length,
+                                    List<HueException> errors) throws IOException {
+        List<JsonObject> response = transport.exchange(rm.name(), path, body, length, (status, in) -> {
+            checkStatus(status);
+            return readResponseList(newReader(in));
+        });
+        collectErrors(transport, response, errors);
+        return response;
+    }
 
-            if (jsonString.trim().startsWith("{")) {
-                response.add((JsonObject) parser.parse(jsonString));
-            } else {
-                for (JsonElement element : (JsonArray) parser.parse(jsonString)) {
-                    response.add(element.getAsJsonObject());
-                }
-            }
+    /**
+     * Streams the response body straight into {@code decoder} without building a string or a JSON tree first. Reads
+     * of a resource answer with an object on success and an array of errors on failure, in which case the errors are
+     * logged and {@code null} is returned.
+     */
+    static <T> T request(HueTransport transport, requestMethod rm, String path, String json, ResponseDecoder<T> decoder) {
+        List<JsonObject> errors = new ArrayList<>();
+        T result = null;
 
-            for (JsonObject object : response) {
-                if (object.has("error")) {
-                    throw new HueException(object);
+        try {
+            byte[] body = json.getBytes(requestCharset);
+            result = transport.exchange(rm.name(), path, body, body.length, (status, in) -> {
+                JsonReader reader = newReader(in);
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    errors.addAll(readResponseList(reader));
+                    return null;
                 }
-            }
+                return decoder.decode(reader);
+            });
+
+            throwErrors(transport, errors);
         } catch (HueException e) {
             logger.log(Level.WARNING, e.getMessage());
             e.printStackTrace();
-        } catch (IOException e) {
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
             e.printStackTrace();
         }
-        return response;
+        return result;
+    }
+
+    static <T> T request(HueTransport transport, requestMethod rm, String path, ResponseDecoder<T> decoder) {
+        return request(transport, rm, path, "", decoder);
+    }
+
+    static List<JsonObject> request(HueTransport transport, requestMethod rm, String path, JsonObject json) {
+        return request(transport, rm, path, json.toString());
+    }
+
+    static List<JsonObject> request(HueTransport transport, requestMethod rm, String path) {
+        return request(transport, rm, path, "");
     }
 
-    static List<JsonObject> request(requestMethod rm, String fullPath, JsonObject json) {
-        return request(rm, fullPath, json.toString());
+    private static void throwErrors(HueTransport transport, List<JsonObject> objects) throws HueException {
+        List<HueException> errors = new ArrayList<>();
+        collectErrors(transport, objects, errors);
+        if (!errors.isEmpty()) throw errors.get(0);
     }
 
-    static List<JsonObject> request(requestMethod rm, String fullPath) {
-        return request(rm, fullPath, "");
+    /**
+     * Adds every error entry in {@code objects} to {@code errors} and records it against the bridge's metrics.
+     */
+    private static void collectErrors(HueTransport transport, List<JsonObject> objects, List<HueException> errors) {
+        for (JsonObject object : objects) {
+            if (object.has("error")) {
+                HueException error = new HueException(object);
+                HueMetrics.bridgeError(transport, error);
+                errors.add(error);
+            }
+        }
+    }
+
+    private static void logErrors(List<HueException> errors) {
+        if (errors.isEmpty()) return;
+        logger.log(Level.WARNING, errors.get(0).getMessage());
+        errors.get(0).printStackTrace();
+    }
+
+    static void checkStatus(int status) throws IOException {
+        if (status == HttpURLConnection.HTTP_UNAVAILABLE) throw new IOException("Bridge is overloaded (HTTP 503)");
+    }
+
+    private static JsonReader newReader(InputStream in) throws IOException {
+        return new JsonReader(new InputStreamReader(in, requestCharset));
+    }
+
+    private static List<JsonObject> readResponseList(JsonReader reader) throws IOException {
+        List<JsonObject> response = new ArrayList<>();
+        JsonParser parser = new JsonParser();
+
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            response.add(parser.parse(reader).getAsJsonObject());
+        } else {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                response.add(parser.parse(reader).getAsJsonObject());
+            }
+            reader.endArray();
+        }
+        return response;
     }
 }
@@ -0,0 +1,912 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fake bridge for tests and load tests, covering the part of the REST API the library uses: pairing on {@code /api},
+ * {@code /config}, {@code /lights}, light state, {@code /groups} and group actions. Scenes are listed as empty.
+ *
+ * The simulator is a {@link HueTransport}, so {@link #createBridge()} gives a bridge that talks to it in process, and
+ * {@link #start()} also serves it over HTTP on the loopback interface for {@link #createHttpBridge()} or any other
+ * client. Writes are validated and answered with the same error types and addresses a real bridge uses, and every
+ * request is recorded with the time it arrived.
+ *
+ * Latency, the bridge's command rate limit and faults can be set at any time. Commands over the rate limit are
+ * answered with error 901, as a real bridge does when its command queue overflows.
+ */
+public class HueBridgeSimulator implements HueTransport {
+
+    static Logger logger = Logger.getLogger(HueBridgeSimulator.class.getName());
+
+    private static final String LIGHT_TYPE = "Extended color light";
+    private static final String LIGHT_MODEL = "LCT015";
+    private static final AtomicInteger simulators = new AtomicInteger();
+
+    private final String id;
+    private final long createdAt = System.nanoTime();
+    private volatile String name = "Hue Bridge Simulator";
+    private final Map<Integer, SimulatedLight> lights = new ConcurrentHashMap<>();
+    private final Map<Integer, SimulatedGroup> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger nextLightId = new AtomicInteger(1);
+    private final AtomicInteger nextGroupId = new AtomicInteger(1);
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+    private volatile boolean linkButtonPressed = true;
+
+    private volatile long latencyNanos;
+    private volatile long latencyJitterNanos;
+    private volatile Limiter lightLimiter;
+    private volatile Limiter groupLimiter;
+    private volatile HueErrorType injectedError;
+    private volatile double injectedErrorProbability;
+    private volatile int injectedStatus;
+    private volatile double injectedStatusProbability;
+
+    private volatile boolean recording = true;
+    private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    public HueBridgeSimulator(int lightCount) {
+        this("sim" + simulators.incrementAndGet(), lightCount);
+    }
+
+    public HueBridgeSimulator(String id, int lightCount) {
+        this.id = id;
+        for (int i = 0; i < lightCount; i++) {
+            addLight("Light " + (i + 1), LIGHT_TYPE, LIGHT_MODEL);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Adds a light, which is on at full brightness and warm white. Returns its id.
+     */
+    public int addLight(String name, String type, String modelId) {
+        int lightId = nextLightId.getAndIncrement();
+        lights.put(lightId, new SimulatedLight(lightId, name, type, modelId));
+        return lightId;
+    }
+
+    /**
+     * Adds a group of existing lights, e.g. of type {@code Room} or {@code Entertainment}. Returns its id.
+     */
+    public int addGroup(String name, String type, List<Integer> lightIds) {
+        int groupId = nextGroupId.getAndIncrement();
+        groups.put(groupId, new SimulatedGroup(groupId, name, type, lightIds));
+        return groupId;
+    }
+
+    /**
+     * Whether pairing succeeds. While the button is not pressed, pairing is answered with error 101.
+     */
+    public void setLinkButtonPressed(boolean pressed) {
+        this.linkButtonPressed = pressed;
+    }
+
+    /**
+     * Accepts {@code username} as if it had been paired before.
+     */
+    public void addUser(String username) {
+        users.add(username);
+    }
+
+    /**
+     * Delays every response by {@code millis}, plus up to {@code jitterMillis} more at random.
+     */
+    public void setLatency(long millis, long jitterMillis) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        this.latencyJitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+    }
+
+    /**
+     * Limits light state writes and group actions to these rates per second, with bursts of up to a second's worth.
+     * Zero lifts a limit, which is the default.
+     */
+    public void setCommandRate(double lightCommandsPerSecond, double groupCommandsPerSecond) {
+        this.lightLimiter = lightCommandsPerSecond > 0 ? new Limiter(lightCommandsPerSecond) : null;
+        this.groupLimiter = groupCommandsPerSecond > 0 ? new Limiter(groupCommandsPerSecond) : null;
+    }
+
+    /**
+     * Answers this fraction of light state writes and group actions with an error of {@code type} and leaves the
+     * state alone. A {@code null} type stops the injection.
+     */
+    public void injectError(HueErrorType type, double probability) {
+        this.injectedError = type;
+        this.injectedErrorProbability = type == null ? 0 : probability;
+    }
+
+    /**
+     * Answers this fraction of all requests with HTTP {@code status}, e.g. 503, and no JSON. Zero stops the injection.
+     */
+    public void injectStatus(int status, double probability) {
+        this.injectedStatus = status;
+        this.injectedStatusProbability = status == 0 ? 0 : probability;
+    }
+
+    /**
+     * Whether requests are recorded, which is the default. Long load tests may want to turn it off.
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * The requests received so far, oldest first.
+     */
+    public List<Request> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    public void clearRequests() {
+        requests.clear();
+    }
+
+    /**
+     * The current state of light {@code lightId} in the form {@code GET /lights/<id>} reports it, or {@code null} if
+     * there is no such light.
+     */
+    public JsonObject getLightState(int lightId) {
+        SimulatedLight light = lights.get(lightId);
+        if (light == null) return null;
+        synchronized (light) {
+            return light.state.toJson();
+        }
+    }
+
+    /**
+     * Serves the simulator over HTTP on the loopback interface, on a free port. Returns the port.
+     *
+     * The JDK server writes headers and body separately, so with Nagle's algorithm each keep-alive response waits out
+     * the client's delayed ACK, about 40 ms on Linux. Harnesses that measure latency should run with
+     * {@code -Dsun.net.httpserver.nodelay=true}; it applies to every {@code HttpServer} in the JVM, so it is left to them.
+     */
+    public synchronized int start() throws IOException {
+        if (server != null) return getPort();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // Requests sleep through the simulated latency, so each gets a thread of its own
+        serverExecutor = Executors.newCachedThreadPool(HueBridge.daemonThreads("hue-simulator-" + id));
+        server.setExecutor(serverExecutor);
+        server.createContext("/", this::serve);
+        server.start();
+        logger.log(Level.INFO, String.format("Simulated bridge %s listening on port %d", id, getPort()));
+        return getPort();
+    }
+
+    public synchronized int getPort() {
+        if (server == null) throw new IllegalStateException("Simulator is not started");
+        return server.getAddress().getPort();
+    }
+
+    public synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        server = null;
+    }
+
+    /**
+     * A bridge that talks to this simulator in process, with its snapshot in a temporary file. It still has to be
+     * connected.
+     */
+    public HueBridge createBridge() throws IOException {
+        return withTemporarySnapshot(new HueBridge("127.0.0.1", id, this));
+    }
+
+    /**
+     * A bridge that talks to this simulator over HTTP, starting the server if need be.
+     */
+    public HueBridge createHttpBridge() throws IOException {
+        int port = start();
+        return withTemporarySnapshot(new HueBridge("127.0.0.1:" + port, id, new HueConnectionPool("127.0.0.1", port)));
+    }
+
+    private static HueBridge withTemporarySnapshot(HueBridge bridge) throws IOException {
+        File snapshot = File.createTempFile("hue-simulator", ".snapshot");
+        snapshot.delete();
+        snapshot.deleteOnExit();
+        bridge.setSnapshotFile(snapshot);
+        return bridge;
+    }
+
+    @Override
+    public <T> T exchange(String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException {
+        Response response = handle(method, path, body, length);
+        return handler.handle(response.status, new ByteArrayInputStream(response.body));
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            InputStream in = exchange.getRequestBody();
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                body.write(buffer, 0, read);
+            }
+            Response response = handle(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), body.toByteArray(), body.size());
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(response.status, response.body.length);
+            exchange.getResponseBody().write(response.body);
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Response handle(String method, String path, byte[] body, int length) throws InterruptedIOException {
+        long arrived = System.nanoTime();
+        simulateLatency();
+        Response response;
+        int status = injectedStatus;
+        if (status != 0 && ThreadLocalRandom.current().nextDouble() < injectedStatusProbability) {
+            response = new Response(status, ("HTTP " + status).getBytes(StandardCharsets.UTF_8), 0);
+        } else {
+            try {
+                response = route(method, path, new String(body, 0, length, StandardCharsets.UTF_8));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Simulated bridge failed on " + method + " " + path, e);
+                response = error(HueErrorType.INTERNAL_ERROR, path, "Internal error, 500");
+            }
+        }
+        if (recording) {
+            requests.add(new Request(arrived - createdAt, method, path, new String(body, 0, length, StandardCharsets.UTF_8),
+                    response.status, response.errors));
+        }
+        return response;
+    }
+
+    private void simulateLatency() throws InterruptedIOException {
+        long delay = latencyNanos;
+        if (latencyJitterNanos > 0) delay += ThreadLocalRandom.current().nextLong(latencyJitterNanos + 1);
+        if (delay <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during simulated latency");
+        }
+    }
+
+    private Response route(String method, String path, String body) {
+        String[] parts = path.split("/");
+        // parts[0] is empty, parts[1] is "api"
+        if (parts.length < 2 || !parts[1].equals("api")) return error(HueErrorType.RESOURCE_NOT_AVAILABLE, path, "resource, " + path + ", not available");
+        if (parts.length == 2) {
+            if (!method.equals("POST")) return methodNotAvailable(method, path);
+            return pair(body);
+        }
+        if (parts.length == 3 && parts[2].equals("config") && method.equals("GET")) {
+            // Answered without a user, as discovery and health checks expect
+            return ok(this::writePublicConfig);
+        }
+        if (!users.contains(parts[2])) return error(HueErrorType.UNAUTHORIZED_USER, "/", "unauthorized user");
+        if (parts.length == 3) return error(HueErrorType.RESOURCE_NOT_AVAILABLE, "/", "resource, /, not available");
+
+        String resource = parts[3];
+        String address = path.substring(path.indexOf('/', 5));
+        switch (resource) {
+            case "config":
+                if (parts.length > 4) break;
+                if (method.equals("GET")) return ok(this::writeConfig);
+                if (method.equals("PUT")) return putConfig(body);
+                return methodNotAvailable(method, address);
+            case "lights":
+                return routeLights(method, address, parts, body);
+            case "groups":
+                return routeGroups(method, address, parts, body);
+            case "scenes":
+                if (parts.length == 4 && method.equals("GET")) return ok(writer -> writer.beginObject().endObject());
+                break;
+        }
+        return error(HueErrorType.RESOURCE_NOT_AVAILABLE, address, "resource, " + address + ", not available");
+    }
+
+    private Response pair(String body) {
+        JsonObject request;
+        try {
+            request = new JsonParser().parse(body).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            return error(HueErrorType.INVALID_JSON, "", "body contains invalid json");
+        }
+        if (!request.has("devicetype")) return error(HueErrorType.MISSING_PARAMETERS, "/", "invalid value, devicetype, for parameter, devicetype");
+        if (!linkButtonPressed) return error(HueErrorType.LINK_BUTTON_NOT_PRESSED, "", "link button not pressed");
+        String username = request.has("username") ? request.get("username").getAsString() : UUID.randomUUID().toString().replace("-", "");
+        users.add(username);
+        JsonObject success = new JsonObject();
+        success.addProperty("username", username);
+        return results(Collections.singletonList(result("success", success)), 0);
+    }
+
+    private Response putConfig(String body) {
+        JsonObject request = parseObject(body);
+        if (request == null) return error(HueErrorType.INVALID_JSON, "", "body contains invalid json");
+        List<JsonObject> results = new ArrayList<>();
+        int errors = 0;
+        for (Entry<String, JsonElement> entry : request.entrySet()) {
+            String attribute = "/config/" + entry.getKey();
+            if (entry.getKey().equals("name") && entry.getValue().isJsonPrimitive()) {
+                name = entry.getValue().getAsString();
+                results.add(success(attribute, entry.getValue()));
+            } else {
+                results.add(errorEntry(HueErrorType.PARAMETER_NOT_AVAILABLE, attribute, "parameter, " + entry.getKey() + ", not available"));
+                errors++;
+            }
+        }
+        return results(results, errors);
+    }
+
+    private Response routeLights(String method, String address, String[] parts, String body) {
+        if (parts.length == 4) {
+            if (method.equals("GET")) return ok(this::writeLights);
+            if (method.equals("POST")) {
+                return results(Collections.singletonList(success("/lights", new JsonPrimitive("Searching for new devices"))), 0);
+            }
+            return methodNotAvailable(method, address);
+        }
+        SimulatedLight light = lights.get(parseId(parts[4]));
+        String lightAddress = "/lights/" + parts[4];
+        if (light == null) return error(HueErrorType.RESOURCE_NOT_AVAILABLE, lightAddress, "resource, " + lightAddress + ", not available");
+        if (parts.length == 5) {
+            if (method.equals("GET")) return ok(writer -> writeLight(writer, light));
+            if (method.equals("PUT")) return putLightAttributes(light, body);
+            return methodNotAvailable(method, address);
+        }
+        if (parts.length == 6 && parts[5].equals("state")) {
+            if (!method.equals("PUT")) return methodNotAvailable(method, address);
+            Response refused = refuseCommand(lightLimiter, address);
+            if (refused != null) return refused;
+            JsonObject request = parseObject(body);
+            if (request == null) return error(HueErrorType.INVALID_JSON, "", "body contains invalid json");
+            synchronized (light) {
+                return applyState(light.state, request, address + "/", light.state.on);
+            }
+        }
+        return error(HueErrorType.RESOURCE_NOT_AVAILABLE, address, "resource, " + address + ", not available");
+    }
+
+    private Response putLightAttributes(SimulatedLight light, String body) {
+        JsonObject request = parseObject(body);
+        if (request == null) return error(HueErrorType.INVALID_JSON, "", "body contains invalid json");
+        List<JsonObject> results = new ArrayList<>();
+        int errors = 0;
+        for (Entry<String, JsonElement> entry : request.entrySet()) {
+            String attribute = "/lights/" + light.id + "/" + entry.getKey();
+            if (entry.getKey().equals("name") && entry.getValue().isJsonPrimitive()) {
+                synchronized (light) {
+                    light.name = entry.getValue().getAsString();
+                }
+                results.add(success(attribute, entry.getValue()));
+            } else {
+                results.add(errorEntry(HueErrorType.PARAMETER_NOT_AVAILABLE, attribute, "parameter, " + entry.getKey() + ", not available"));
+                errors++;
+            }
+        }
+        return results(results, errors);
+    }
+
+    private Response routeGroups(String method, String address, String[] parts, String body) {
+        if (parts.length == 4) {
+            if (method.equals("GET")) return ok(this::writeGroups);
+            return methodNotAvailable(method, address);
+        }
+        int groupId = parseId(parts[4]);
+        SimulatedGroup group = groupId == 0 ? allLights() : groups.get(groupId);
+        String groupAddress = "/groups/" + parts[4];
+        if (group == null) return error(HueErrorType.RESOURCE_NOT_AVAILABLE, groupAddress, "resource, " + groupAddress + ", not available");
+        if (parts.length == 5) {
+            if (method.equals("GET")) return ok(writer -> writeGroup(writer, group));
+            if (method.equals("PUT")) return putGroupAttributes(group, body);
+            return methodNotAvailable(method, address);
+        }
+        if (parts.length == 6 && parts[5].equals("action")) {
+            if (!method.equals("PUT")) return methodNotAvailable(method, address);
+            Response refused = refuseCommand(groupLimiter, address);
+            if (refused != null) return refused;
+            JsonObject request = parseObject(body);
+            if (request == null) return error(HueErrorType.INVALID_JSON, "", "body contains invalid json");
+            if (request.has("scene")) {
+                return error(HueErrorType.INVALID_VALUE, address + "/scene", "invalid value, " + request.get("scene") + ", for parameter, scene");
+            }
+            Response response;
+            synchronized (group) {
+                // Group actions apply to lights that are off as well
+                response = applyState(group.action, request, address + "/", true);
+            }
+            for (int lightId : group.lightIds) {
+                SimulatedLight light = lights.get(lightId);
+                if (light == null) continue;
+                synchronized (light) {
+                    applyState(light.state, request, "", true);
+                }
+            }
+            return response;
+        }
+        return error(HueErrorType.RESOURCE_NOT_AVAILABLE, address, "resource, " + address + ", not available");
+    }
+
+    private Response putGroupAttributes(SimulatedGroup group, String body) {
+        JsonObject request = parseObject(body);
+        if (request == null) return error(HueErrorType.INVALID_JSON, "", "body contains invalid json");
+        List<JsonObject> results = new ArrayList<>();
+        for (Entry<String, JsonElement> entry : request.entrySet()) {
+            if (entry.getKey().equals("name") && entry.getValue().isJsonPrimitive()) {
+                synchronized (group) {
+                    group.name = entry.getValue().getAsString();
+                }
+            }
+            results.add(success("/groups/" + group.id + "/" + entry.getKey(), entry.getValue()));
+        }
+        return results(results, 0);
+    }
+
+    /**
+     * Applies a state write or group action attribute by attribute, the way the bridge does: each attribute succeeds or
+     * fails on its own. A light that is off only accepts {@code on}, unless the same write turns it on.
+     */
+    private Response applyState(SimulatedState state, JsonObject request, String prefix, boolean modifiable) {
+        List<JsonObject> results = new ArrayList<>();
+        int errors = 0;
+        boolean turnsOn = request.has("on") && request.get("on").isJsonPrimitive()
+                && request.get("on").getAsJsonPrimitive().isBoolean() && request.get("on").getAsBoolean();
+        for (Entry<String, JsonElement> entry : request.entrySet()) {
+            String attribute = entry.getKey();
+            String address = prefix + attribute;
+            if (!SimulatedState.ATTRIBUTES.contains(attribute)) {
+                results.add(errorEntry(HueErrorType.PARAMETER_NOT_AVAILABLE, address, "parameter, " + attribute + ", not available"));
+                errors++;
+            } else if (!attribute.equals("on") && !attribute.equals("transitiontime") && !modifiable && !turnsOn) {
+                results.add(errorEntry(HueErrorType.DEVICE_OFF, address, "parameter, " + attribute + ", is not modifiable. Device is set to off."));
+                errors++;
+            } else if (!state.set(attribute, entry.getValue())) {
+                results.add(errorEntry(HueErrorType.INVALID_VALUE, address, "invalid value, " + entry.getValue() + ", for parameter, " + attribute));
+                errors++;
+            } else {
+                results.add(success(address, entry.getValue()));
+            }
+        }
+        return results(results, errors);
+    }
+
+    /**
+     * The response to a command the bridge will not carry out, because it is over the rate limit or an error is
+     * injected, or {@code null} to go ahead.
+     */
+    private Response refuseCommand(Limiter limiter, String address) {
+        if (limiter != null && !limiter.tryAcquire()) return error(HueErrorType.INTERNAL_ERROR, address, "Internal error, 503");
+        HueErrorType injected = injectedError;
+        if (injected != null && ThreadLocalRandom.current().nextDouble() < injectedErrorProbability) {
+            return error(injected, address, describe(injected));
+        }
+        return null;
+    }
+
+    private SimulatedGroup allLights() {
+        List<Integer> ids = new ArrayList<>(lights.keySet());
+        Collections.sort(ids);
+        return new SimulatedGroup(0, "Group 0", "LightGroup", ids);
+    }
+
+    private static int parseId(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static JsonObject parseObject(String body) {
+        try {
+            JsonElement element = new JsonParser().parse(body);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private static String describe(HueErrorType type) {
+        switch (type) {
+            case INTERNAL_ERROR:
+                return "Internal error, 503";
+            case DEVICE_OFF:
+                return "parameter, bri, is not modifiable. Device is set to off.";
+            default:
+                return type.name().toLowerCase(Locale.ROOT).replace('_', ' ');
+        }
+    }
+
+    private void writePublicConfig(JsonWriter writer) throws IOException {
+        writer.beginObject()
+                .name("name").value(name)
+                .name("bridgeid").value(id)
+                .name("mac").value("00:17:88:00:00:00")
+                .name("modelid").value("BSB002")
+                .name("swversion").value("1935144040")
+                .name("apiversion").value("1.35.0")
+                .endObject();
+    }
+
+    private void writeConfig(JsonWriter writer) throws IOException {
+        writer.beginObject()
+                .name("name").value(name)
+                .name("bridgeid").value(id)
+                .name("zigbeechannel").value(15)
+                .name("mac").value("00:17:88:00:00:00")
+                .name("dhcp").value(true)
+                .name("ipaddress").value("127.0.0.1")
+                .name("netmask").value("255.0.0.0")
+                .name("gateway").value("127.0.0.1")
+                .name("modelid").value("BSB002")
+                .name("swversion").value("1935144040")
+                .name("apiversion").value("1.35.0")
+                .name("linkbutton").value(linkButtonPressed)
+                .endObject();
+    }
+
+    private void writeLights(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        for (SimulatedLight light : sorted(lights)) {
+            writer.name(String.valueOf(light.id));
+            writeLight(writer, light);
+        }
+        writer.endObject();
+    }
+
+    private static void writeLight(JsonWriter writer, SimulatedLight light) throws IOException {
+        synchronized (light) {
+            writer.beginObject().name("state");
+            light.state.write(writer, true);
+            writer.name("type").value(light.type)
+                    .name("name").value(light.name)
+                    .name("modelid").value(light.modelId)
+                    .name("manufacturername").value("Signify Netherlands B.V.")
+                    .name("uniqueid").value(String.format("00:17:88:01:%02x:%02x:%02x:%02x-0b",
+                            light.id >>> 24 & 0xff, light.id >>> 16 & 0xff, light.id >>> 8 & 0xff, light.id & 0xff))
+                    .name("swversion").value("1.46.13_r26312")
+                    .endObject();
+        }
+    }
+
+    private void writeGroups(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        for (SimulatedGroup group : sorted(groups)) {
+            writer.name(String.valueOf(group.id));
+            writeGroup(writer, group);
+        }
+        writer.endObject();
+    }
+
+    private static void writeGroup(JsonWriter writer, SimulatedGroup group) throws IOException {
+        synchronized (group) {
+            writer.beginObject()
+                    .name("name").value(group.name)
+                    .name("type").value(group.type)
+                    .name("lights").beginArray();
+            for (int lightId : group.lightIds) {
+                writer.value(String.valueOf(lightId));
+            }
+            writer.endArray().name("action");
+            group.action.write(writer, false);
+            writer.endObject();
+        }
+    }
+
+    private static <T> List<T> sorted(Map<Integer, T> map) {
+        List<T> values = new ArrayList<>(map.size());
+        for (int key : new TreeSet<>(map.keySet())) {
+            T value = map.get(key);
+            if (value != null) values.add(value);
+        }
+        return values;
+    }
+
+    private interface BodyWriter {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    private static Response ok(BodyWriter body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            body.write(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Response(200, out.toByteArray(), 0);
+    }
+
+    private static Response results(List<JsonObject> results, int errors) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append(results.get(i));
+        }
+        return new Response(200, json.append(']').toString().getBytes(StandardCharsets.UTF_8), errors);
+    }
+
+    private static Response error(HueErrorType type, String address, String description) {
+        return results(Collections.singletonList(errorEntry(type, address, description)), 1);
+    }
+
+    private static Response methodNotAvailable(String method, String address) {
+        return error(HueErrorType.METHOD_NOT_AVAILABLE, address, "method, " + method + ", not available for resource, " + address);
+    }
+
+    private static JsonObject success(String address, JsonElement value) {
+        JsonObject success = new JsonObject();
+        success.add(address, value);
+        return result("success", success);
+    }
+
+    private static JsonObject errorEntry(HueErrorType type, String address, String description) {
+        JsonObject error = new JsonObject();
+        error.addProperty("type", type.getCode());
+        error.addProperty("address", address);
+        error.addProperty("description", description);
+        return result("error", error);
+    }
+
+    private static JsonObject result(String kind, JsonObject value) {
+        JsonObject result = new JsonObject();
+        result.add(kind, value);
+        return result;
+    }
+
+    /**
+     * One request the simulator received. Times are in nanoseconds since the simulator was created.
+     */
+    public static final class Request {
+        private final long timeNanos;
+        private final String method;
+        private final String path;
+        private final String body;
+        private final int status;
+        private final int errors;
+
+        Request(long timeNanos, String method, String path, String body, int status, int errors) {
+            this.timeNanos = timeNanos;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.status = status;
+            this.errors = errors;
+        }
+
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * The number of error entries in the response.
+         */
+        public int getErrorCount() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3fms %s %s %s -> %d%s", timeNanos / 1e6, method, path, body, status,
+                    errors > 0 ? " (" + errors + " errors)" : "");
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final byte[] body;
+        final int errors;
+
+        Response(int status, byte[] body, int errors) {
+            this.status = status;
+            this.body = body;
+            this.errors = errors;
+        }
+    }
+
+    private static final class SimulatedLight {
+        final int id;
+        final String type;
+        final String modelId;
+        String name;
+        final SimulatedState state = new SimulatedState();
+
+        SimulatedLight(int id, String name, String type, String modelId) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.modelId = modelId;
+        }
+    }
+
+    private static final class SimulatedGroup {
+        final int id;
+        final String type;
+        final List<Integer> lightIds;
+        String name;
+        final SimulatedState action = new SimulatedState();
+
+        SimulatedGroup(int id, String name, String type, List<Integer> lightIds) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.lightIds = Collections.unmodifiableList(new ArrayList<>(lightIds));
+        }
+    }
+
+    /**
+     * The state of a light or the last action of a group, with the bridge's value ranges.
+     */
+    private static final class SimulatedState {
+        static final Set<String> ATTRIBUTES = new HashSet<>(Arrays.asList(
+                "on", "bri", "hue", "sat", "xy", "ct", "alert", "effect", "transitiontime"));
+
+        boolean on = true;
+        int bri = HueLight.MAX_BRIGHTNESS;
+        int hue = 8402;
+        int sat = 140;
+        float x = 0.4573f;
+        float y = 0.41f;
+        int ct = 366;
+        String alert = "none";
+        String effect = "none";
+        String colormode = "xy";
+
+        /**
+         * Sets one attribute, returning {@code false} if the value is of the wrong type or out of range.
+         */
+        boolean set(String attribute, JsonElement value) {
+            try {
+                switch (attribute) {
+                    case "on":
+                        if (!value.getAsJsonPrimitive().isBoolean()) return false;
+                        on = value.getAsBoolean();
+                        return true;
+                    case "bri":
+                        if (!inRange(value, 1, 254)) return false;
+                        bri = value.getAsInt();
+                        return true;
+                    case "hue":
+                        if (!inRange(value, 0, 65535)) return false;
+                        hue = value.getAsInt();
+                        colormode = "hs";
+                        return true;
+                    case "sat":
+                        if (!inRange(value, 0, 254)) return false;
+                        sat = value.getAsInt();
+                        colormode = "hs";
+                        return true;
+                    case "xy":
+                        if (!value.isJsonArray() || value.getAsJsonArray().size() != 2) return false;
+                        float newX = value.getAsJsonArray().get(0).getAsFloat();
+                        float newY = value.getAsJsonArray().get(1).getAsFloat();
+                        if (newX < 0 || newX > 1 || newY < 0 || newY > 1) return false;
+                        x = newX;
+                        y = newY;
+                        colormode = "xy";
+                        return true;
+                    case "ct":
+                        if (!inRange(value, 153, 500)) return false;
+                        ct = value.getAsInt();
+                        colormode = "ct";
+                        return true;
+                    case "alert":
+                        String newAlert = value.getAsString();
+                        if (!newAlert.equals("none") && !newAlert.equals("select") && !newAlert.equals("lselect")) return false;
+                        alert = newAlert;
+                        return true;
+                    case "effect":
+                        String newEffect = value.getAsString();
+                        if (!newEffect.equals("none") && !newEffect.equals("colorloop")) return false;
+                        effect = newEffect;
+                        return true;
+                    case "transitiontime":
+                        return inRange(value, 0, 65535);
+                    default:
+                        return false;
+                }
+            } catch (IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private static boolean inRange(JsonElement value, int min, int max) {
+            if (!value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber()) return false;
+            double number = value.getAsDouble();
+            return number == Math.rint(number) && number >= min && number <= max;
+        }
+
+        void write(JsonWriter writer, boolean reachable) throws IOException {
+            writer.beginObject()
+                    .name("on").value(on)
+                    .name("bri").value(bri)
+                    .name("hue").value(hue)
+                    .name("sat").value(sat)
+                    .name("effect").value(effect)
+                    .name("xy").beginArray().value(x).value(y).endArray()
+                    .name("ct").value(ct)
+                    .name("alert").value(alert)
+                    .name("colormode").value(colormode);
+            if (reachable) writer.name("reachable").value(true);
+            writer.endObject();
+        }
+
+        JsonObject toJson() {
+            StringWriter json = new StringWriter();
+            try {
+                write(new JsonWriter(json), true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new JsonParser().parse(json.toString()).getAsJsonObject();
+        }
+    }
+
+    /**
+     * A token bucket holding up to a second's worth of commands.
+     */
+    private static final class Limiter {
+        private final double rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        Limiter(double rate) {
+            this.rate = rate;
+            this.tokens = Math.max(1, rate);
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.kyleaheron;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last known state of one bridge on disk: its username, config, lights, groups and scenes.
+ *
+ * The format is a compact {@link DataOutputStream} record rather than JSON, so a bridge with fifty lights loads in
+ * well under a millisecond once the file is cached. Files are replaced atomically, so a crash mid-write leaves the
+ * previous snapshot intact. A snapshot from a different format version or a different bridge is ignored.
+ */
+final class HueBridgeSnapshot {
+
+    private static final int MAGIC = 0x48554542; // "HUEB"
+    private static final int VERSION = 1;
+
+    String username;
+    String name;
+    String macAddress;
+    String netmask;
+    boolean dhcp;
+    long savedAt;
+    final List<HueLight> lights = new ArrayList<>();
+    final List<HueGroup> groups = new ArrayList<>();
+    final List<HueScene> scenes = new ArrayList<>();
+
+    static void write(HueBridge bridge, File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(bridge.getUniqueDeviceId());
+            writeString(out, bridge.getUsername());
+            out.writeLong(System.currentTimeMillis());
+            writeString(out, bridge.getName());
+            writeString(out, bridge.getMacAddress());
+            writeString(out, bridge.getNetmask());
+            out.writeBoolean(bridge.isDhcp());
+
+            List<HueLight> lights = bridge.getLights();
+            out.writeInt(lights.size());
+            for (HueLight light : lights) {
+                out.writeInt(light.getId());
+                writeString(out, light.getType());
+                writeString(out, light.getName());
+                writeString(out, light.getModelId());
+                writeString(out, light.getSoftwareVersion());
+                out.writeBoolean(light.isOn());
+                out.writeShort(light.getBrightness());
+                out.writeChar(light.getHue());
+                out.writeShort(light.getSaturation());
+                out.writeFloat(light.getColorX());
+                out.writeFloat(light.getColorY());
+                out.writeShort(light.getColorTemperature());
+                out.writeByte(light.getAlertEffect().ordinal());
+                out.writeByte(light.getEffect().ordinal());
+            }
+
+            List<HueGroup> groups = bridge.getGroups();
+            out.writeInt(groups.size());
+            for (HueGroup group : groups) {
+                out.writeInt(group.getId());
+                writeString(out, group.getName());
+                writeString(out, group.getType());
+                writeIds(out, group.getLightIds());
+                out.writeBoolean(group.isOn());
+                out.writeShort(group.getBrightness());
+                out.writeChar(group.getHue());
+                out.writeShort(group.getSaturation());
+                out.writeFloat(group.getColorX());
+                out.writeFloat(group.getColorY());
+                out.writeShort(group.getColorTemperature());
+            }
+
+            List<HueScene> scenes = bridge.getScenes();
+            out.writeInt(scenes.size());
+            for (HueScene scene : scenes) {
+                out.writeUTF(scene.getId());
+                writeString(out, scene.getName());
+                writeIds(out, scene.getLightIds());
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot of {@code bridge}, with its lights, groups and scenes bound to that bridge. Returns
+     * {@code null} if there is no usable snapshot.
+     */
+    static HueBridgeSnapshot read(HueBridge bridge, File file) throws IOException {
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) return null;
+            if (!in.readUTF().equals(bridge.getUniqueDeviceId())) return null;
+
+            HueBridgeSnapshot snapshot = new HueBridgeSnapshot();
+            boolean complete = false;
+            try {
+                readState(bridge, in, snapshot);
+                complete = true;
+                return snapshot;
+            } finally {
+                // A light takes a slot in the bridge's state store as soon as it is built
+                if (!complete) snapshot.release();
+            }
+        } catch (EOFException | IndexOutOfBoundsException e) {
+            // Truncated or from an incompatible build
+            return null;
+        }
+    }
+
+    private static void readState(HueBridge bridge, DataInputStream in, HueBridgeSnapshot snapshot) throws IOException {
+        snapshot.username = readString(in);
+        snapshot.savedAt = in.readLong();
+        snapshot.name = readString(in);
+        snapshot.macAddress = readString(in);
+        snapshot.netmask = readString(in);
+        snapshot.dhcp = in.readBoolean();
+
+        HueLight.HueAlert[] alerts = HueLight.HueAlert.values();
+        HueLight.HueEffect[] effects = HueLight.HueEffect.values();
+        for (int i = in.readInt(); i > 0; i--) {
+            HueLight light = new HueLight(bridge, in.readInt());
+            snapshot.lights.add(light);
+            String type = readString(in);
+            String name = readString(in);
+            String modelId = readString(in);
+            String softwareVersion = readString(in);
+            boolean on = in.readBoolean();
+            int brightness = in.readShort();
+            int hue = in.readChar();
+            int saturation = in.readShort();
+            float x = in.readFloat();
+            float y = in.readFloat();
+            int colorTemperature = in.readShort();
+            String alert = alerts[in.readByte()].name();
+            String effect = effects[in.readByte()].name();
+            light.initializeStateVariables(on, brightness, hue, saturation, x, y, colorTemperature, alert, effect,
+                    type, name, modelId, softwareVersion);
+        }
+
+        for (int i = in.readInt(); i > 0; i--) {
+            int id = in.readInt();
+            HueGroup group = new HueGroup(bridge, id, readString(in), readString(in), readIds(in));
+            group.initializeActionVariables(in.readBoolean(), in.readShort(), in.readChar(), in.readShort(),
+                    in.readFloat(), in.readFloat(), in.readShort());
+            snapshot.groups.add(group);
+        }
+
+        for (int i = in.readInt(); i > 0; i--) {
+            String id = in.readUTF();
+            snapshot.scenes.add(new HueScene(bridge, id, readString(in), readIds(in)));
+        }
+    }
+
+    /**
+     * Gives back the state store slots of the lights read, for a snapshot that is not going to be used.
+     */
+    void release() {
+        for (HueLight light : lights) {
+            light.release();
+        }
+        lights.clear();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeIds(DataOutputStream out, List<Integer> ids) throws IOException {
+        out.writeShort(ids.size());
+        for (int id : ids) {
+            out.writeShort(id);
+        }
+    }
+
+    private static List<Integer> readIds(DataInputStream in) throws IOException {
+        int count = in.readShort();
+        List<Integer> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add((int) in.readShort());
+        }
+        return ids;
+    }
+}
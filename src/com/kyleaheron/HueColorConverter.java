@@ -0,0 +1,208 @@
+package com.kyleaheron;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts between sRGB and the CIE xy coordinates the bridge works in, for one colour gamut.
+ *
+ * sRGB channels are linearised through a 256 entry table instead of {@code Math.pow}, and colours the bulb cannot show
+ * are moved to the closest point inside its gamut triangle, which is what the bulb itself would display. Converters
+ * are immutable and shared, and none of the per-colour methods allocate.
+ */
+public final class HueColorConverter {
+
+    public enum Gamut {
+        A(0.704f, 0.296f, 0.2151f, 0.7106f, 0.138f, 0.08f),
+        B(0.675f, 0.322f, 0.409f, 0.518f, 0.167f, 0.04f),
+        C(0.6915f, 0.3083f, 0.17f, 0.7f, 0.1532f, 0.0475f),
+        // The whole CIE diagram, for groups of mixed bulbs and unknown models; the bridge clamps per bulb
+        FULL(1f, 0f, 0f, 1f, 0f, 0f);
+
+        final float redX, redY, greenX, greenY, blueX, blueY;
+
+        Gamut(float redX, float redY, float greenX, float greenY, float blueX, float blueY) {
+            this.redX = redX;
+            this.redY = redY;
+            this.greenX = greenX;
+            this.greenY = greenY;
+            this.blueX = blueX;
+            this.blueY = blueY;
+        }
+    }
+
+    private static final float[] LINEAR = new float[256];
+    private static final Map<String, Gamut> MODEL_GAMUTS = new HashMap<>();
+    private static final HueColorConverter[] CONVERTERS = new HueColorConverter[Gamut.values().length];
+
+    static {
+        for (int i = 0; i < LINEAR.length; i++) {
+            double ratio = i / 255.0;
+            LINEAR[i] = (float) (ratio > 0.04045 ? Math.pow((ratio + 0.055) / 1.055, 2.4) : ratio / 12.92);
+        }
+        for (String model : new String[]{"LST001", "LLC005", "LLC006", "LLC007", "LLC010", "LLC011", "LLC012", "LLC013", "LLC014"}) {
+            MODEL_GAMUTS.put(model, Gamut.A);
+        }
+        for (String model : new String[]{"LCT001", "LCT002", "LCT003", "LCT007", "LLM001"}) {
+            MODEL_GAMUTS.put(model, Gamut.B);
+        }
+        for (String model : new String[]{"LCT010", "LCT011", "LCT012", "LCT014", "LCT015", "LCT016", "LLC020", "LST002"}) {
+            MODEL_GAMUTS.put(model, Gamut.C);
+        }
+        for (Gamut gamut : Gamut.values()) {
+            CONVERTERS[gamut.ordinal()] = new HueColorConverter(gamut);
+        }
+    }
+
+    private final Gamut gamut;
+
+    private HueColorConverter(Gamut gamut) {
+        this.gamut = gamut;
+    }
+
+    public static HueColorConverter forGamut(Gamut gamut) {
+        return CONVERTERS[gamut.ordinal()];
+    }
+
+    /**
+     * Picks the converter for a light's {@code modelid}. Models the library does not know are left unclamped.
+     */
+    public static HueColorConverter forModel(String modelId) {
+        Gamut gamut = modelId == null ? null : MODEL_GAMUTS.get(modelId);
+        return forGamut(gamut == null ? Gamut.FULL : gamut);
+    }
+
+    public Gamut getGamut() {
+        return gamut;
+    }
+
+    /**
+     * Converts 8-bit sRGB to xy and returns both coordinates packed into one long; read them back with {@link #x(long)}
+     * and {@link #y(long)}.
+     */
+    public long toXY(int red, int green, int blue) {
+        float r = LINEAR[red & 0xFF];
+        float g = LINEAR[green & 0xFF];
+        float b = LINEAR[blue & 0xFF];
+        float bigX = r * 0.664511f + g * 0.154324f + b * 0.162028f;
+        float bigY = r * 0.283881f + g * 0.668433f + b * 0.047685f;
+        float bigZ = r * 0.000088f + g * 0.072310f + b * 0.986039f;
+        float sum = bigX + bigY + bigZ;
+        if (sum <= 0) {
+            // Black has no chromaticity; use the white point so brightness alone turns it off
+            return clamp(0.3227f, 0.329f);
+        }
+        return clamp(bigX / sum, bigY / sum);
+    }
+
+    /**
+     * Converts {@code rgb.length} packed {@code 0xRRGGBB} colours (any alpha byte is ignored) into {@code xyOut}, which
+     * receives x then y for each colour.
+     */
+    public void convert(int[] rgb, float[] xyOut) {
+        convert(rgb, 0, xyOut, 0, rgb.length);
+    }
+
+    public void convert(int[] rgb, int rgbOffset, float[] xyOut, int xyOffset, int count) {
+        if (xyOut.length - xyOffset < count * 2) throw new IllegalArgumentException("xyOut is too small for " + count + " colours");
+        for (int i = 0; i < count; i++) {
+            int color = rgb[rgbOffset + i];
+            long xy = toXY((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+            xyOut[xyOffset + i * 2] = x(xy);
+            xyOut[xyOffset + i * 2 + 1] = y(xy);
+        }
+    }
+
+    /**
+     * Converts an xy coordinate and bridge brightness (1 - 254) back to a packed {@code 0xRRGGBB} sRGB colour.
+     */
+    public int toRGB(float x, float y, int brightness) {
+        long clamped = clamp(x, y);
+        x = x(clamped);
+        y = y(clamped);
+        if (y <= 0) return 0;
+
+        float bigY = Math.max(0, Math.min(HueLight.MAX_BRIGHTNESS, brightness)) / (float) HueLight.MAX_BRIGHTNESS;
+        float bigX = (bigY / y) * x;
+        float bigZ = (bigY / y) * (1 - x - y);
+
+        float r = bigX * 1.656492f - bigY * 0.354851f - bigZ * 0.255038f;
+        float g = -bigX * 0.707196f + bigY * 1.655397f + bigZ * 0.036152f;
+        float b = bigX * 0.051713f - bigY * 0.121364f + bigZ * 1.011530f;
+
+        float max = Math.max(r, Math.max(g, b));
+        if (max > 1) {
+            r /= max;
+            g /= max;
+            b /= max;
+        }
+        return (toChannel(r) << 16) | (toChannel(g) << 8) | toChannel(b);
+    }
+
+    private static int toChannel(float linear) {
+        if (linear <= 0) return 0;
+        double encoded = linear <= 0.0031308f ? 12.92 * linear : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+        return (int) Math.round(Math.min(1, encoded) * 255);
+    }
+
+    public static float x(long xy) {
+        return Float.intBitsToFloat((int) (xy >>> 32));
+    }
+
+    public static float y(long xy) {
+        return Float.intBitsToFloat((int) xy);
+    }
+
+    private static long pack(float x, float y) {
+        return ((long) Float.floatToRawIntBits(x) << 32) | (Float.floatToRawIntBits(y) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the point itself if it lies inside the gamut triangle, otherwise the closest point on its edges.
+     */
+    long clamp(float x, float y) {
+        Gamut g = gamut;
+        if (g == Gamut.FULL || inTriangle(x, y, g)) return pack(x, y);
+
+        long best = closestOnSegment(x, y, g.redX, g.redY, g.greenX, g.greenY);
+        float bestDistance = distanceSquared(x, y, best);
+        long candidate = closestOnSegment(x, y, g.greenX, g.greenY, g.blueX, g.blueY);
+        float distance = distanceSquared(x, y, candidate);
+        if (distance < bestDistance) {
+            best = candidate;
+            bestDistance = distance;
+        }
+        candidate = closestOnSegment(x, y, g.blueX, g.blueY, g.redX, g.redY);
+        if (distanceSquared(x, y, candidate) < bestDistance) {
+            best = candidate;
+        }
+        return best;
+    }
+
+    private static boolean inTriangle(float x, float y, Gamut g) {
+        float d1 = cross(x, y, g.redX, g.redY, g.greenX, g.greenY);
+        float d2 = cross(x, y, g.greenX, g.greenY, g.blueX, g.blueY);
+        float d3 = cross(x, y, g.blueX, g.blueY, g.redX, g.redY);
+        boolean negative = d1 < 0 || d2 < 0 || d3 < 0;
+        boolean positive = d1 > 0 || d2 > 0 || d3 > 0;
+        return !(negative && positive);
+    }
+
+    private static float cross(float x, float y, float ax, float ay, float bx, float by) {
+        return (x - bx) * (ay - by) - (ax - bx) * (y - by);
+    }
+
+    private static long closestOnSegment(float x, float y, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float t = ((x - ax) * dx + (y - ay) * dy) / (dx * dx + dy * dy);
+        t = Math.max(0, Math.min(1, t));
+        return pack(ax + t * dx, ay + t * dy);
+    }
+
+    private static float distanceSquared(float x, float y, long point) {
+        float dx = x - x(point);
+        float dy = y - y(point);
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,135 @@
+package com.kyleaheron;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serialises a {@link HueStateUpdate} into a reusable UTF-8 buffer. Key fragments are encoded once up front and
+ * numbers are written digit by digit, so encoding a command allocates nothing once the encoder exists.
+ *
+ * An encoder is not thread safe; each light and group owns one and only encodes under its own lock.
+ */
+final class HueCommandEncoder {
+
+    private static final byte[] ON = ascii("\"on\":");
+    private static final byte[] BRIGHTNESS = ascii("\"bri\":");
+    private static final byte[] HUE = ascii("\"hue\":");
+    private static final byte[] SATURATION = ascii("\"sat\":");
+    private static final byte[] XY = ascii("\"xy\":[");
+    private static final byte[] COLOR_TEMPERATURE = ascii("\"ct\":");
+    private static final byte[] TRANSITION_TIME = ascii("\"transitiontime\":");
+    private static final byte[] EFFECT = ascii("\"effect\":");
+    private static final byte[] ALERT = ascii("\"alert\":");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[][] EFFECT_VALUES = enumValues(HueLight.HueEffect.values());
+    private static final byte[][] ALERT_VALUES = enumValues(HueLight.HueAlert.values());
+
+    private static final int XY_SCALE = 10000;
+
+    // Large enough for every attribute at its widest value
+    private final byte[] buffer = new byte[192];
+    private int length;
+
+    /**
+     * Encodes {@code update} and returns the buffer holding it. The first {@link #length()} bytes are valid until the
+     * next call.
+     */
+    byte[] encode(HueStateUpdate update) {
+        length = 0;
+        buffer[length++] = '{';
+        if (update.has(HueStateUpdate.ON)) {
+            key(ON);
+            write(update.on ? TRUE : FALSE);
+        }
+        if (update.has(HueStateUpdate.BRIGHTNESS)) {
+            key(BRIGHTNESS);
+            writeInt(update.brightness);
+        }
+        if (update.has(HueStateUpdate.HUE)) {
+            key(HUE);
+            writeInt(update.hue);
+        }
+        if (update.has(HueStateUpdate.SATURATION)) {
+            key(SATURATION);
+            writeInt(update.saturation);
+        }
+        if (update.has(HueStateUpdate.XY)) {
+            key(XY);
+            writeFraction(update.x);
+            buffer[length++] = ',';
+            writeFraction(update.y);
+            buffer[length++] = ']';
+        }
+        if (update.has(HueStateUpdate.COLOR_TEMPERATURE)) {
+            key(COLOR_TEMPERATURE);
+            writeInt(update.colorTemperature);
+        }
+        if (update.has(HueStateUpdate.TRANSITION_TIME)) {
+            key(TRANSITION_TIME);
+            writeInt(update.transitionTime);
+        }
+        if (update.has(HueStateUpdate.EFFECT)) {
+            key(EFFECT);
+            write(EFFECT_VALUES[update.effect.ordinal()]);
+        }
+        if (update.has(HueStateUpdate.ALERT)) {
+            key(ALERT);
+            write(ALERT_VALUES[update.alert.ordinal()]);
+        }
+        buffer[length++] = '}';
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    private void key(byte[] key) {
+        if (length > 1) buffer[length++] = ',';
+        write(key);
+    }
+
+    private void write(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeInt(int value) {
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    // CIE coordinates always fall in [0, 1]; four decimal places is the precision the bridge stores
+    private void writeFraction(float value) {
+        int scaled = Math.round(Math.max(0f, Math.min(1f, value)) * XY_SCALE);
+        writeInt(scaled / XY_SCALE);
+        buffer[length++] = '.';
+        int fraction = scaled % XY_SCALE;
+        for (int divisor = XY_SCALE / 10; divisor > 0; divisor /= 10) {
+            buffer[length++] = (byte) ('0' + (fraction / divisor) % 10);
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[][] enumValues(Enum<?>[] values) {
+        byte[][] encoded = new byte[values.length][];
+        for (Enum<?> value : values) {
+            encoded[value.ordinal()] = ascii("\"" + value.name().toLowerCase() + "\"");
+        }
+        return encoded;
+    }
+}
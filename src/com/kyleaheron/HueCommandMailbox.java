@@ -0,0 +1,220 @@
+package com.kyleaheron;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Collects state changes for one light from any number of producer threads without locking.
+ *
+ * Changes are merged field by field into a single pending update, last write wins, until the scheduler gets round to
+ * the light. At most one dispatch is queued per light at a time, and it sends whatever is pending when it runs, so a
+ * producer that outpaces the bridge only ever has its latest values sent.
+ *
+ * Each drain is numbered, and the mailbox remembers which drain last took each attribute. A failed update can then be
+ * put back for a retry with exactly the attributes no later drain has sent a newer value for.
+ */
+class HueCommandMailbox {
+
+    /**
+     * Sends a drained update. {@code sequence} numbers the drain, for {@link #requeue(HueStateUpdate, long, int)}.
+     */
+    interface Sender {
+        boolean send(HueStateUpdate update, long sequence);
+    }
+
+    // Alerts flash the light each time they are sent, so they are never retried
+    private static final int RETRYABLE_FIELDS = ~HueStateUpdate.ALERT;
+
+    private final AtomicReference<HueStateUpdate> pending = new AtomicReference<>(HueStateUpdate.EMPTY);
+    private final AtomicReference<CompletableFuture<Boolean>> queuedDispatch = new AtomicReference<>();
+
+    // Guarded by itself; drains and requeues take it, producers do not
+    private final long[] drainedAt = new long[HueStateUpdate.FIELD_COUNT];
+    private long drains = 0;
+    private final AtomicInteger failedAttempts = new AtomicInteger();
+    private final Object sendLock = new Object();
+    // The fields of the update being sent, all of them while a drain is being taken
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile HueStateUpdate sending = HueStateUpdate.EMPTY;
+
+    private final AtomicLong submittedUpdates = new AtomicLong();
+    private final AtomicLong mergedUpdates = new AtomicLong();
+    private final AtomicLong sentCommands = new AtomicLong();
+    private final HueMetrics metrics;
+
+    HueCommandMailbox(HueMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Applies {@code change}, which sets {@code field}, to the pending update.
+     */
+    void update(int field, UnaryOperator<HueStateUpdate> change) {
+        HueStateUpdate current;
+        do {
+            current = pending.get();
+        } while (!pending.compareAndSet(current, change.apply(current)));
+        submittedUpdates.incrementAndGet();
+        if (current.has(field)) {
+            mergedUpdates.incrementAndGet();
+            metrics.updateCoalesced();
+        }
+    }
+
+    /**
+     * Like {@link #update(int, UnaryOperator)}, except that nothing is queued when {@code unchanged} says the bridge
+     * already reports the new value and no other value for {@code field} is pending or being sent, since that one
+     * could still overwrite it.
+     */
+    void update(int field, UnaryOperator<HueStateUpdate> change, boolean unchanged) {
+        HueStateUpdate current;
+        do {
+            current = pending.get();
+            if (unchanged && !current.has(field) && (inFlight.get() & field) == 0) return;
+        } while (!pending.compareAndSet(current, change.apply(current)));
+        submittedUpdates.incrementAndGet();
+        if (current.has(field)) {
+            mergedUpdates.incrementAndGet();
+            metrics.updateCoalesced();
+        }
+    }
+
+    /**
+     * Merges every field {@code update} sets into the pending update with a single compare-and-set, its values winning.
+     * Fields in {@code unchanged} are left out as {@link #update(int, UnaryOperator, boolean)} would leave them out.
+     * Returns whether anything was queued.
+     */
+    boolean merge(HueStateUpdate update, int unchanged) {
+        HueStateUpdate current;
+        int fields;
+        HueStateUpdate merged;
+        do {
+            current = pending.get();
+            fields = update.dirty & ~(unchanged & ~current.dirty & ~inFlight.get());
+            if (fields == 0) return false;
+            merged = update.only(fields).over(current, current.dirty);
+        } while (!pending.compareAndSet(current, merged));
+        submittedUpdates.addAndGet(Integer.bitCount(fields));
+        for (int coalesced = Integer.bitCount(fields & current.dirty); coalesced > 0; coalesced--) {
+            mergedUpdates.incrementAndGet();
+            metrics.updateCoalesced();
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return pending.get().isEmpty();
+    }
+
+    /**
+     * Whether nothing is pending or being sent.
+     */
+    boolean isIdle() {
+        return pending.get().isEmpty() && inFlight.get() == 0;
+    }
+
+    /**
+     * Puts back the attributes of {@code failed}, drained as number {@code sequence}, that have not been superseded
+     * since: neither sent again by a later drain nor set again and still pending. Returns the retry attempt this is,
+     * from 1, 0 if nothing is left to retry, or -1 once {@code maxAttempts} is used up.
+     */
+    int requeue(HueStateUpdate failed, long sequence, int maxAttempts) {
+        synchronized (drainedAt) {
+            int fields = failed.dirty & RETRYABLE_FIELDS;
+            for (int remaining = fields; remaining != 0; remaining &= remaining - 1) {
+                int field = Integer.lowestOneBit(remaining);
+                if (drainedAt[Integer.numberOfTrailingZeros(field)] > sequence) fields &= ~field;
+            }
+            if ((fields & ~pending.get().dirty & ~HueStateUpdate.TRANSITION_TIME) == 0) return 0;
+
+            int attempt = failedAttempts.incrementAndGet();
+            if (attempt > maxAttempts) {
+                failedAttempts.set(0);
+                return -1;
+            }
+            HueStateUpdate current;
+            do {
+                current = pending.get();
+            } while (!pending.compareAndSet(current, current.over(failed, fields)));
+            return attempt;
+        }
+    }
+
+    /**
+     * Returns the dispatch that will carry the pending changes, queuing one through {@code enqueue} if none is waiting.
+     * The queued task drains the mailbox when it starts, so changes made until then still go out with it.
+     */
+    CompletableFuture<Boolean> dispatch(Function<Supplier<Boolean>, CompletableFuture<Boolean>> enqueue, Sender send) {
+        while (true) {
+            CompletableFuture<Boolean> queued = queuedDispatch.get();
+            if (queued != null) return queued;
+            if (isEmpty()) return CompletableFuture.completedFuture(false);
+
+            CompletableFuture<Boolean> placeholder = new CompletableFuture<>();
+            if (queuedDispatch.compareAndSet(null, placeholder)) {
+                enqueue.apply(() -> {
+                    queuedDispatch.compareAndSet(placeholder, null);
+                    // Overlapping dispatches must reach the bridge in the order they drained, or an older value
+                    // could land after a newer one
+                    synchronized (sendLock) {
+                        HueStateUpdate drained;
+                        long sequence;
+                        synchronized (drainedAt) {
+                            // Marked before the drain, so a field is always either pending or in flight
+                            inFlight.set(-1);
+                            drained = pending.getAndSet(HueStateUpdate.EMPTY);
+                            inFlight.set(drained.dirty);
+                            sending = drained;
+                            sequence = ++drains;
+                            for (int remaining = drained.dirty; remaining != 0; remaining &= remaining - 1) {
+                                drainedAt[Integer.numberOfTrailingZeros(remaining)] = sequence;
+                            }
+                        }
+                        if (drained.isEmpty()) return false;
+                        sentCommands.incrementAndGet();
+                        try {
+                            boolean sent = send.send(drained, sequence);
+                            if (sent) failedAttempts.set(0);
+                            return sent;
+                        } finally {
+                            sending = HueStateUpdate.EMPTY;
+                            inFlight.set(0);
+                        }
+                    }
+                }).whenComplete((sent, error) -> {
+                    queuedDispatch.compareAndSet(placeholder, null);
+                    if (error != null) {
+                        placeholder.completeExceptionally(error);
+                    } else {
+                        placeholder.complete(sent);
+                    }
+                });
+                return placeholder;
+            }
+        }
+    }
+
+    /**
+     * The update on its way to the bridge, or an empty one if none is.
+     */
+    HueStateUpdate getSending() {
+        return sending;
+    }
+
+    long getSubmittedUpdateCount() {
+        return submittedUpdates.get();
+    }
+
+    long getMergedUpdateCount() {
+        return mergedUpdates.get();
+    }
+
+    long getSentCommandCount() {
+        return sentCommands.get();
+    }
+}
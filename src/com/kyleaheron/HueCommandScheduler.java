@@ -0,0 +1,389 @@
+package com.kyleaheron;
+
+import java.net.HttpURLConnection;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces every command a bridge sends. Light and group commands each draw from their own token bucket, so the bridge
+ * as a whole never receives more than it can handle, while an idle bridge lets a command through immediately.
+ *
+ * Within a bucket, higher priority lanes are always served first and each lane takes turns between the targets
+ * (lights or groups) that have work queued, so one busy light cannot starve the rest of the room.
+ *
+ * The rates adapt to how the bridge copes, additive increase and multiplicative decrease as in TCP: a 503, an
+ * overload error or a response far slower than usual halves the rate of that class, and it climbs back towards the
+ * configured rate while commands succeed. State writes that fail for one of those reasons are retried with a jittered
+ * backoff, unless newer state for the same attributes has been sent or set in the meantime.
+ */
+public class HueCommandScheduler {
+
+    static Logger logger = Logger.getLogger(HueCommandScheduler.class.getName());
+
+    public static final double DEFAULT_LIGHT_COMMAND_RATE = 10;
+    public static final double DEFAULT_GROUP_COMMAND_RATE = 1;
+    public static final int MAX_RETRIES = 3;
+
+    // The first retry waits up to this many milliseconds, doubling with each further attempt
+    private static final long RETRY_DELAY = 250;
+    // Overload halves the rate at most once a second, and never below a tenth of the configured rate
+    private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double MIN_RATE_FRACTION = 0.1;
+    // Each second of successful commands wins back this fraction of the configured rate
+    private static final double RECOVERY_PER_SECOND = 0.05;
+    // A response this many times slower than the running average, and slower than the floor, counts as overload
+    private static final double LATENCY_SPIKE_FACTOR = 4;
+    private static final long LATENCY_SPIKE_FLOOR = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    enum CommandClass {
+        LIGHT, GROUP
+    }
+
+    private final HueBridge bridge;
+    private final EnumMap<CommandClass, TokenBucket> buckets = new EnumMap<>(CommandClass.class);
+    private final EnumMap<CommandClass, Lane[]> lanes = new EnumMap<>(CommandClass.class);
+    // The one pending wake-up for when a bucket refills, when it is due, and which scheduling it belongs to
+    private ScheduledFuture<?> pumpTimer;
+    private long pumpDue;
+    private long pumpGeneration;
+    private boolean adaptive = true;
+
+    HueCommandScheduler(HueBridge bridge) {
+        this.bridge = bridge;
+        buckets.put(CommandClass.LIGHT, new TokenBucket(DEFAULT_LIGHT_COMMAND_RATE, (int) DEFAULT_LIGHT_COMMAND_RATE));
+        buckets.put(CommandClass.GROUP, new TokenBucket(DEFAULT_GROUP_COMMAND_RATE, (int) DEFAULT_GROUP_COMMAND_RATE));
+        for (CommandClass commandClass : CommandClass.values()) {
+            Lane[] priorityLanes = new Lane[Priority.values().length];
+            for (int i = 0; i < priorityLanes.length; i++) {
+                priorityLanes[i] = new Lane();
+            }
+            lanes.put(commandClass, priorityLanes);
+        }
+        bridge.getMetrics().addListener(new CongestionListener());
+    }
+
+    /**
+     * Sets how many light commands per second the bridge accepts and how many may be sent back to back after an
+     * idle period.
+     */
+    public synchronized void setLightCommandRate(double commandsPerSecond, int burst) {
+        buckets.put(CommandClass.LIGHT, new TokenBucket(commandsPerSecond, burst));
+    }
+
+    public synchronized void setGroupCommandRate(double commandsPerSecond, int burst) {
+        buckets.put(CommandClass.GROUP, new TokenBucket(commandsPerSecond, burst));
+    }
+
+    /**
+     * Turns rate adaptation on (the default) or off. Turning it off restores the configured rates.
+     */
+    public synchronized void setAdaptiveRate(boolean adaptive) {
+        this.adaptive = adaptive;
+        if (!adaptive) {
+            long now = System.nanoTime();
+            for (TokenBucket bucket : buckets.values()) {
+                bucket.setRate(bucket.limit, now);
+            }
+        }
+    }
+
+    public synchronized boolean isAdaptiveRate() {
+        return adaptive;
+    }
+
+    /**
+     * The light command rate in effect, which is below the configured rate while the bridge is backing off.
+     */
+    public synchronized double getLightCommandRate() {
+        return buckets.get(CommandClass.LIGHT).rate;
+    }
+
+    public synchronized double getGroupCommandRate() {
+        return buckets.get(CommandClass.GROUP).rate;
+    }
+
+    public synchronized int getQueuedCommandCount() {
+        int queued = 0;
+        for (Lane[] priorityLanes : lanes.values()) {
+            for (Lane lane : priorityLanes) {
+                queued += lane.size;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Queues {@code command} behind any earlier work for {@code target}. The command runs on the bridge's executor
+     * once a token is available for its class.
+     */
+    <T> CompletableFuture<T> submit(CommandClass commandClass, Priority priority, Object target, Supplier<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        Runnable task = () -> {
+            bridge.getMetrics().commandDequeued(System.nanoTime() - queuedAt);
+            try {
+                result.complete(command.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        };
+        synchronized (this) {
+            lanes.get(commandClass)[priority.ordinal()].add(target, task);
+        }
+        pump();
+        return result;
+    }
+
+    /**
+     * Handles a state write that got no usable response. It is retried if it has not been superseded.
+     */
+    void commandFailed(HueCommandMailbox mailbox, HueStateUpdate failed, long sequence, Exception error, Runnable resend) {
+        if (error instanceof HueException && !((HueException) error).getType().isTransient()) {
+            logger.log(Level.WARNING, error.getMessage());
+            return;
+        }
+        int attempt = mailbox.requeue(failed, sequence, MAX_RETRIES);
+        if (attempt > 0) {
+            logger.log(Level.FINE, "Retrying command (attempt " + attempt + "): " + error.getMessage());
+            bridge.getScheduler().schedule(resend, retryDelay(attempt), TimeUnit.MILLISECONDS);
+        } else if (attempt < 0) {
+            logger.log(Level.WARNING, "Giving up on command after " + MAX_RETRIES + " retries: " + error.getMessage());
+        }
+    }
+
+    /**
+     * Handles the error entries of a state write: retries it for the first transient one, or logs them all.
+     */
+    void commandFailed(HueCommandMailbox mailbox, HueStateUpdate failed, long sequence, List<HueException> errors, Runnable resend) {
+        for (HueException error : errors) {
+            if (error.getType().isTransient()) {
+                commandFailed(mailbox, failed, sequence, error, resend);
+                return;
+            }
+        }
+        for (HueException error : errors) {
+            logger.log(Level.WARNING, error.getMessage());
+        }
+    }
+
+    static long retryDelay(int attempt) {
+        long ceiling = RETRY_DELAY << (attempt - 1);
+        // Half fixed and half random, so lights that failed together do not all retry together
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private synchronized void overloaded(CommandClass commandClass) {
+        if (!adaptive) return;
+        TokenBucket bucket = buckets.get(commandClass);
+        long now = System.nanoTime();
+        if (now - bucket.lastDecrease < DECREASE_INTERVAL) return;
+        bucket.lastDecrease = now;
+        bucket.setRate(Math.max(bucket.limit * MIN_RATE_FRACTION, bucket.rate * DECREASE_FACTOR), now);
+        logger.log(Level.INFO, String.format("Bridge %s is overloaded, slowing %s commands to %.1f/s",
+                bridge.getUniqueDeviceId(), commandClass, bucket.rate));
+    }
+
+    private synchronized void responded(CommandClass commandClass, long nanos) {
+        TokenBucket bucket = buckets.get(commandClass);
+        boolean spike = bucket.averageLatency > 0 && nanos > Math.max(LATENCY_SPIKE_FLOOR, bucket.averageLatency * LATENCY_SPIKE_FACTOR);
+        bucket.averageLatency = bucket.averageLatency == 0 ? nanos : bucket.averageLatency + (nanos - bucket.averageLatency) * LATENCY_SMOOTHING;
+        if (spike) {
+            overloaded(commandClass);
+        } else if (adaptive && bucket.rate < bucket.limit) {
+            // At the current rate this many successes take a second
+            bucket.setRate(Math.min(bucket.limit, bucket.rate + bucket.limit * RECOVERY_PER_SECOND / bucket.rate), System.nanoTime());
+        }
+    }
+
+    private void pump() {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            long nextToken = Long.MAX_VALUE;
+            for (CommandClass commandClass : CommandClass.values()) {
+                TokenBucket bucket = buckets.get(commandClass);
+                Lane[] priorityLanes = lanes.get(commandClass);
+                Runnable task;
+                while ((task = peekLanes(priorityLanes)) != null && bucket.tryAcquire(now)) {
+                    ready.add(pollLanes(priorityLanes));
+                }
+                if (task != null) {
+                    nextToken = Math.min(nextToken, bucket.nanosUntilAvailable(now));
+                }
+            }
+            if (nextToken != Long.MAX_VALUE) {
+                schedulePump(now, Math.max(nextToken, 1));
+            }
+        }
+        for (Runnable task : ready) {
+            bridge.getExecutor().execute(task);
+        }
+    }
+
+    /**
+     * Makes sure a pump runs {@code delay} nanoseconds from {@code now}. A pending wake-up that is due by then is
+     * kept; a later one is replaced, so there is never more than one timer waiting.
+     */
+    private void schedulePump(long now, long delay) {
+        long due = now + delay;
+        if (pumpTimer != null) {
+            if (pumpDue - due <= 0) return;
+            pumpTimer.cancel(false);
+        }
+        long generation = ++pumpGeneration;
+        pumpDue = due;
+        pumpTimer = bridge.getScheduler().schedule(() -> pumpTimerFired(generation), delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void pumpTimerFired(long generation) {
+        synchronized (this) {
+            // A replaced timer that fired before it could be cancelled leaves the pending one alone
+            if (generation == pumpGeneration) {
+                pumpTimer = null;
+            }
+        }
+        pump();
+    }
+
+    private static Runnable peekLanes(Lane[] priorityLanes) {
+        for (Lane lane : priorityLanes) {
+            if (lane.size > 0) return lane.peek();
+        }
+        return null;
+    }
+
+    private static Runnable pollLanes(Lane[] priorityLanes) {
+        for (Lane lane : priorityLanes) {
+            if (lane.size > 0) return lane.poll();
+        }
+        return null;
+    }
+
+    /**
+     * One priority level: a queue per target plus a rotation of the targets that currently have work.
+     */
+    private static class Lane {
+        private final Map<Object, ArrayDeque<Runnable>> queues = new HashMap<>();
+        private final ArrayDeque<Object> rotation = new ArrayDeque<>();
+        private int size = 0;
+
+        void add(Object target, Runnable task) {
+            ArrayDeque<Runnable> queue = queues.get(target);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(target, queue);
+                rotation.addLast(target);
+            }
+            queue.addLast(task);
+            size++;
+        }
+
+        Runnable peek() {
+            return queues.get(rotation.peekFirst()).peekFirst();
+        }
+
+        Runnable poll() {
+            Object target = rotation.pollFirst();
+            ArrayDeque<Runnable> queue = queues.get(target);
+            Runnable task = queue.pollFirst();
+            if (queue.isEmpty()) {
+                queues.remove(target);
+            } else {
+                rotation.addLast(target);
+            }
+            size--;
+            return task;
+        }
+    }
+
+    private static class TokenBucket {
+        private final double limit;
+        private double rate;
+        private final double capacity;
+        private double nanosPerToken;
+        private double tokens;
+        private long lastRefill;
+        private long lastDecrease;
+        private double averageLatency;
+
+        TokenBucket(double rate, int burst) {
+            if (rate <= 0) throw new IllegalArgumentException("rate must be positive");
+            this.limit = rate;
+            this.rate = rate;
+            this.capacity = Math.max(1, burst);
+            this.nanosPerToken = 1e9 / rate;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        void setRate(double rate, long now) {
+            refill(now);
+            this.rate = rate;
+            this.nanosPerToken = 1e9 / rate;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / nanosPerToken);
+            lastRefill = now;
+        }
+
+        boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        long nanosUntilAvailable(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * nanosPerToken);
+        }
+    }
+
+    /**
+     * Reads the bridge's health from its metrics: state writes that come back with a 503, a transient error or a latency
+     * spike slow their class down, and the rest let it speed up again.
+     */
+    private class CongestionListener implements HueMetricsListener {
+
+        @Override
+        public void requestCompleted(String method, HueMetrics.RequestClass requestClass, int status, long nanos,
+                                     int bytesSent, long bytesReceived) {
+            if (!method.equals("PUT")) return;
+            CommandClass commandClass;
+            if (requestClass == HueMetrics.RequestClass.LIGHT) {
+                commandClass = CommandClass.LIGHT;
+            } else if (requestClass == HueMetrics.RequestClass.GROUP) {
+                commandClass = CommandClass.GROUP;
+            } else {
+                return;
+            }
+            if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                overloaded(commandClass);
+            } else {
+                responded(commandClass, nanos);
+            }
+        }
+
+        @Override
+        public void bridgeError(HueException error) {
+            if (!error.getType().isTransient()) return;
+            String address = error.getAddress();
+            overloaded(address != null && address.startsWith("/groups") ? CommandClass.GROUP : CommandClass.LIGHT);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.kyleaheron;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Default {@link HueTransport}: a bounded pool of persistent HTTP/1.1 connections to a single bridge.
+ *
+ * Each exchange borrows a connection, writes the request, reads the response and hands the socket back so the next
+ * command skips the TCP handshake. Idle sockets are evicted once they have sat unused for longer than the idle
+ * timeout, and at most {@code maxConnections} sockets (and therefore requests) are ever open at once.
+ */
+public class HueConnectionPool implements HueTransport {
+
+    static Logger logger = Logger.getLogger(HueConnectionPool.class.getName());
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final int DEFAULT_IDLE_TIMEOUT = 10000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    public static final int DEFAULT_READ_TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final long idleTimeoutNanos;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
+    private volatile boolean closed = false;
+
+    public HueConnectionPool(String host, int port) {
+        this(host, port, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public HueConnectionPool(String host, int port, int maxConnections, int idleTimeout, int connectTimeout, int readTimeout) {
+        if (maxConnections < 1) throw new IllegalArgumentException("maxConnections must be at least 1");
+        this.host = host;
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutNanos = idleTimeout * 1000000L;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Builds a pool from an address of the form {@code host} or {@code host:port}, defaulting to port 80.
+     */
+    static HueConnectionPool forAddress(String address) {
+        InetSocketAddress socketAddress = HueBridgeComm.resolveAddress(address, 80);
+        return new HueConnectionPool(socketAddress.getHostString(), socketAddress.getPort());
+    }
+
+    @Override
+    public <T> T exchange(String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException {
+        if (closed) throw new IOException("Connection pool is closed");
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a bridge connection");
+        }
+        try {
+            PooledConnection connection = takeIdleConnection();
+            if (connection != null) {
+                try {
+                    return exchange(connection, method, path, body, length, handler);
+                } catch (StaleConnectionException e) {
+                    // The bridge closed the socket while it sat idle, and the request either never got out or is safe
+                    // to send twice, so retry on a fresh one
+                    logger.log(Level.FINE, "Idle connection was closed by the bridge, reconnecting...");
+                }
+            }
+            try {
+                return exchange(openConnection(), method, path, body, length, handler);
+            } catch (StaleConnectionException e) {
+                throw e.getCause();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private <T> T exchange(PooledConnection connection, String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException {
+        boolean reusable = false;
+        try {
+            try {
+                writeRequest(connection.out, method, path, body, length);
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new StaleConnectionException(e);
+            }
+            // Once the request is out the bridge may have acted on it, so only requests that can be repeated are retried
+            boolean retryable = !method.equals("POST");
+            int firstByte;
+            try {
+                firstByte = connection.in.read();
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                if (retryable) throw new StaleConnectionException(e);
+                throw e;
+            }
+            if (firstByte < 0) {
+                EOFException closed = new EOFException("Bridge closed the connection");
+                if (retryable) throw new StaleConnectionException(closed);
+                throw closed;
+            }
+
+            int status = readStatusLine(connection.in, firstByte);
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean keepAlive = true;
+            String header;
+            while (!(header = readLine(connection.in)).isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon < 0) continue;
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = !value.equalsIgnoreCase("close");
+                }
+            }
+
+            InputStream responseBody;
+            if (chunked) {
+                responseBody = new ChunkedInputStream(connection.in);
+            } else if (contentLength >= 0) {
+                responseBody = new FixedLengthInputStream(connection.in, contentLength);
+            } else {
+                // Body is delimited by the bridge closing the socket
+                responseBody = connection.in;
+                keepAlive = false;
+            }
+
+            T result = handler.handle(status, responseBody);
+
+            if (keepAlive) {
+                byte[] discard = new byte[256];
+                while (responseBody.read(discard) >= 0) {
+                    // Drain whatever the handler left so the next response starts at a clean boundary
+                }
+                reusable = true;
+            }
+            return result;
+        } finally {
+            if (reusable) {
+                releaseConnection(connection);
+            } else {
+                connection.close();
+            }
+        }
+    }
+
+    private void writeRequest(OutputStream out, String method, String path, byte[] body, int length) throws IOException {
+        StringBuilder head = new StringBuilder(128);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host);
+        if (port != 80) head.append(':').append(port);
+        head.append("\r\nConnection: keep-alive\r\n");
+        if (length > 0) {
+            head.append("Content-Type: application/json\r\n");
+        }
+        if (length > 0 || !method.equals("GET")) {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (length > 0) out.write(body, 0, length);
+        out.flush();
+    }
+
+    private static int readStatusLine(InputStream in, int firstByte) throws IOException {
+        String statusLine = ((char) firstByte) + readLine(in);
+        int start = statusLine.indexOf(' ');
+        if (start < 0 || statusLine.length() < start + 4) throw new IOException("Malformed status line: " + statusLine);
+        return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder builder = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') break;
+            if (b != '\r') builder.append((char) b);
+        }
+        if (b < 0) throw new EOFException("Unexpected end of response headers");
+        return builder.toString();
+    }
+
+    private PooledConnection takeIdleConnection() {
+        long now = System.nanoTime();
+        synchronized (idleConnections) {
+            PooledConnection connection;
+            while ((connection = idleConnections.pollFirst()) != null) {
+                if (now - connection.lastUsed < idleTimeoutNanos && !connection.socket.isClosed()) {
+                    evictExpired(now);
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return null;
+    }
+
+    private void releaseConnection(PooledConnection connection) {
+        long now = System.nanoTime();
+        connection.lastUsed = now;
+        synchronized (idleConnections) {
+            if (closed || idleConnections.size() >= maxConnections) {
+                connection.close();
+            } else {
+                idleConnections.addFirst(connection);
+            }
+            evictExpired(now);
+        }
+    }
+
+    // Callers hold the idleConnections lock. Oldest connections sit at the tail.
+    private void evictExpired(long now) {
+        PooledConnection oldest;
+        while ((oldest = idleConnections.peekLast()) != null && now - oldest.lastUsed >= idleTimeoutNanos) {
+            idleConnections.pollLast().close();
+        }
+    }
+
+    private PooledConnection openConnection() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(readTimeout);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            return new PooledConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public int getIdleConnectionCount() {
+        synchronized (idleConnections) {
+            return idleConnections.size();
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (idleConnections) {
+            PooledConnection connection;
+            while ((connection = idleConnections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static class PooledConnection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed;
+
+        PooledConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 2048);
+            this.lastUsed = System.nanoTime();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already unusable
+            }
+        }
+    }
+
+    private static class StaleConnectionException extends IOException {
+        StaleConnectionException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b < 0) throw new EOFException("Response body truncated");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read < 0) throw new EOFException("Response body truncated");
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The underlying socket belongs to the pool
+        }
+    }
+
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining = 0;
+        private boolean finished = false;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (finished) return false;
+            if (chunkRemaining == 0) {
+                String sizeLine = readLine(in);
+                if (sizeLine.isEmpty()) sizeLine = readLine(in);
+                int extension = sizeLine.indexOf(';');
+                chunkRemaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+                if (chunkRemaining == 0) {
+                    while (!readLine(in).isEmpty()) {
+                        // Skip trailers
+                    }
+                    finished = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) return -1;
+            int b = in.read();
+            if (b < 0) throw new EOFException("Chunked body truncated");
+            if (--chunkRemaining == 0) consumeChunkTerminator();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (!nextChunk()) return -1;
+            int read = in.read(buffer, offset, (int) Math.min(length, chunkRemaining));
+            if (read < 0) throw new EOFException("Chunked body truncated");
+            chunkRemaining -= read;
+            if (chunkRemaining == 0) consumeChunkTerminator();
+            return read;
+        }
+
+        private void consumeChunkTerminator() throws IOException {
+            if (in.read() == '\r') in.read();
+        }
+
+        @Override
+        public void close() {
+            // The underlying socket belongs to the pool
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds bridges on the local network without relying on the cloud lookup.
+ *
+ * Two searches run side by side: an SSDP M-SEARCH, which bridges answer with their id, and a probe of every host on
+ * the local subnets for {@code /api/config}, which bridges answer without authentication. The probe connects
+ * non-blockingly from a single thread with a bounded number of connections in flight, so a whole /24 takes little
+ * more than one probe timeout per {@code probeConcurrency} hosts. Each bridge is reported to the listener as soon as it
+ * is found. The meethue.com lookup is only used when neither search finds anything.
+ *
+ * Every setting can be pointed at loopback, so discovery can be exercised against local stub servers.
+ */
+public class HueDiscovery {
+
+    static Logger logger = Logger.getLogger(HueDiscovery.class.getName());
+
+    static final String SSDP_ADDRESS = "239.255.255.250";
+    static final int SSDP_PORT = 1900;
+
+    private static final int DEFAULT_TIMEOUT = 4000;
+    private static final int DEFAULT_PROBE_TIMEOUT = 750;
+    private static final int DEFAULT_PROBE_CONCURRENCY = 64;
+    private static final int MAX_PROBE_RESPONSE = 8192;
+    // Subnets larger than a /24 are narrowed to the /24 around our own address
+    private static final int MIN_PREFIX_LENGTH = 24;
+
+    private InetSocketAddress ssdpTarget = new InetSocketAddress(SSDP_ADDRESS, SSDP_PORT);
+    private boolean ssdpEnabled = true;
+    private boolean probeEnabled = true;
+    private List<InetAddress> probeHosts;
+    private int port = 80;
+    private int timeout = DEFAULT_TIMEOUT;
+    private int probeTimeout = DEFAULT_PROBE_TIMEOUT;
+    private int probeConcurrency = DEFAULT_PROBE_CONCURRENCY;
+    private boolean cloudFallback = true;
+
+    private final Set<String> foundIds = new HashSet<>();
+    private final List<HueBridge> found = new ArrayList<>();
+    private HueDiscoveryListener listener;
+
+    public HueDiscovery setSsdpEnabled(boolean enabled) {
+        this.ssdpEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Where the M-SEARCH is sent. Defaults to the SSDP multicast group; a unicast address is fine for testing.
+     */
+    public HueDiscovery setSsdpTarget(InetSocketAddress target) {
+        this.ssdpTarget = target;
+        return this;
+    }
+
+    public HueDiscovery setProbeEnabled(boolean enabled) {
+        this.probeEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Probes exactly these hosts instead of the local subnets.
+     */
+    public HueDiscovery setProbeHosts(Collection<InetAddress> hosts) {
+        this.probeHosts = new ArrayList<>(hosts);
+        return this;
+    }
+
+    /**
+     * Probes {@code count} consecutive IPv4 addresses starting at {@code first} instead of the local subnets.
+     */
+    public HueDiscovery setProbeRange(Inet4Address first, int count) {
+        int start = toInt(first);
+        List<InetAddress> hosts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hosts.add(toAddress(start + i));
+        }
+        return setProbeHosts(hosts);
+    }
+
+    /**
+     * The port probed on each host. Bridges listen on 80.
+     */
+    public HueDiscovery setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * How long, in milliseconds, the local searches run in total.
+     */
+    public HueDiscovery setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * How long, in milliseconds, a single host has to connect and answer the probe.
+     */
+    public HueDiscovery setProbeTimeout(int probeTimeout) {
+        this.probeTimeout = probeTimeout;
+        return this;
+    }
+
+    public HueDiscovery setProbeConcurrency(int probeConcurrency) {
+        if (probeConcurrency < 1) throw new IllegalArgumentException("Probe concurrency must be at least 1");
+        this.probeConcurrency = probeConcurrency;
+        return this;
+    }
+
+    /**
+     * Whether to ask meethue.com for bridges when the local searches found none.
+     */
+    public HueDiscovery setCloudFallback(boolean cloudFallback) {
+        this.cloudFallback = cloudFallback;
+        return this;
+    }
+
+    public List<HueBridge> discover() {
+        return discoverAsync(null).join();
+    }
+
+    /**
+     * Starts discovery. Each bridge is passed to {@code listener}, if given, as soon as it is found, and the future
+     * completes with every bridge found once the searches are over.
+     */
+    public CompletableFuture<List<HueBridge>> discoverAsync(HueDiscoveryListener listener) {
+        synchronized (this) {
+            this.listener = listener;
+            foundIds.clear();
+            found.clear();
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        ExecutorService executor = Executors.newFixedThreadPool(2, HueBridge.daemonThreads("hue-discovery"));
+
+        CompletableFuture<Void> ssdp = ssdpEnabled
+                ? CompletableFuture.runAsync(() -> searchSsdp(deadline), executor)
+                : CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> probe = probeEnabled
+                ? CompletableFuture.runAsync(() -> probe(probeHosts != null ? probeHosts : localSubnetHosts(), deadline), executor)
+                : CompletableFuture.completedFuture(null);
+
+        return CompletableFuture.allOf(ssdp, probe).handle((ignored, error) -> {
+            if (error != null) logger.log(Level.WARNING, "Local bridge discovery failed", error);
+            executor.shutdown();
+            synchronized (this) {
+                if (!found.isEmpty() || !cloudFallback) return new ArrayList<>(found);
+            }
+            logger.log(Level.INFO, "No bridges found on the local network, asking meethue.com...");
+            for (HueBridge bridge : HueBridgeComm.discover()) {
+                bridgeFound(bridge);
+            }
+            synchronized (this) {
+                return new ArrayList<>(found);
+            }
+        });
+    }
+
+    private void bridgeFound(String host, int port, String bridgeId) {
+        String address = port == 80 ? host : host + ":" + port;
+        synchronized (this) {
+            if (!foundIds.add(bridgeId.toLowerCase())) return;
+        }
+        logger.log(Level.INFO, String.format("Found bridge %s at %s", bridgeId, address));
+        HueBridge bridge;
+        try {
+            // Bridge ids are lower case in the cloud lookup, which is what saved usernames are keyed by
+            bridge = new HueBridge(address, bridgeId.toLowerCase());
+        } catch (RuntimeException e) {
+            // One unusable bridge must not end the search for the others
+            logger.log(Level.WARNING, String.format("Could not set up bridge %s", bridgeId), e);
+            return;
+        }
+        publish(bridge);
+    }
+
+    private void bridgeFound(HueBridge bridge) {
+        synchronized (this) {
+            if (!foundIds.add(bridge.getUniqueDeviceId().toLowerCase())) return;
+        }
+        publish(bridge);
+    }
+
+    private void publish(HueBridge bridge) {
+        HueDiscoveryListener current;
+        synchronized (this) {
+            found.add(bridge);
+            current = listener;
+        }
+        if (current != null) {
+            try {
+                current.bridgeFound(bridge);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Discovery listener failed", e);
+            }
+        }
+    }
+
+    private void searchSsdp(long deadline) {
+        String search = "M-SEARCH * HTTP/1.1\r\n"
+                + "HOST: " + SSDP_ADDRESS + ":" + SSDP_PORT + "\r\n"
+                + "MAN: \"ssdp:discover\"\r\n"
+                + "MX: 2\r\n"
+                + "ST: ssdp:all\r\n\r\n";
+        byte[] request = search.getBytes(StandardCharsets.US_ASCII);
+        byte[] buffer = new byte[2048];
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(request, request.length, ssdpTarget));
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(response);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                readSsdpResponse(new String(response.getData(), 0, response.getLength(), StandardCharsets.US_ASCII), response.getAddress());
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "SSDP search failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Bridges put their id in a {@code hue-bridgeid} header and the address of their description in {@code LOCATION};
+     * anything without the id is some other UPnP device.
+     */
+    private void readSsdpResponse(String response, InetAddress sender) {
+        String bridgeId = null;
+        String location = null;
+        for (String line : response.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            String header = line.substring(0, colon).trim();
+            if (header.equalsIgnoreCase("hue-bridgeid")) {
+                bridgeId = line.substring(colon + 1).trim();
+            } else if (header.equalsIgnoreCase("location")) {
+                location = line.substring(colon + 1).trim();
+            }
+        }
+        if (bridgeId == null || bridgeId.isEmpty()) return;
+
+        String host = sender.getHostAddress();
+        int bridgePort = 80;
+        if (location != null) {
+            try {
+                URL url = new URL(location);
+                host = url.getHost();
+                if (url.getPort() != -1) bridgePort = url.getPort();
+            } catch (MalformedURLException e) {
+                // Fall back to the address the response came from
+            }
+        }
+        bridgeFound(host, bridgePort, bridgeId);
+    }
+
+    private void probe(List<InetAddress> hosts, long deadline) {
+        Deque<InetAddress> queue = new ArrayDeque<>(hosts);
+        try (Selector selector = Selector.open()) {
+            while ((!queue.isEmpty() || !selector.keys().isEmpty()) && System.currentTimeMillis() < deadline) {
+                while (!queue.isEmpty() && selector.keys().size() < probeConcurrency) {
+                    startProbe(selector, queue.poll());
+                }
+
+                selector.select(Math.max(1, Math.min(probeTimeout, deadline - System.currentTimeMillis())));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Probe probe = (Probe) key.attachment();
+                    try {
+                        if (probe.advance(key)) {
+                            finishProbe(key);
+                        }
+                    } catch (IOException e) {
+                        // Nothing listening, or not a bridge
+                        finishProbe(key);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && ((Probe) key.attachment()).deadline < now) {
+                        finishProbe(key);
+                    }
+                }
+                // Cancelled keys only leave the key set on the next select
+                selector.selectNow();
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) finishProbe(key);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Subnet probe failed", e);
+        }
+    }
+
+    private void startProbe(Selector selector, InetAddress host) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            Probe probe = new Probe(host, System.currentTimeMillis() + probeTimeout);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                channel.register(selector, SelectionKey.OP_WRITE, probe);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    private void finishProbe(SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+        Probe probe = (Probe) key.attachment();
+        String bridgeId = probe.bridgeId();
+        if (bridgeId != null) {
+            bridgeFound(probe.host.getHostAddress(), port, bridgeId);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * One {@code GET /api/config} exchange with one host.
+     */
+    private class Probe {
+        final InetAddress host;
+        final long deadline;
+        private final ByteBuffer request;
+        private final ByteBuffer response = ByteBuffer.allocate(MAX_PROBE_RESPONSE);
+
+        Probe(InetAddress host, long deadline) {
+            this.host = host;
+            this.deadline = deadline;
+            this.request = ByteBuffer.wrap(("GET /api/config HTTP/1.1\r\n"
+                    + "Host: " + host.getHostAddress() + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Moves the exchange forward; returns {@code true} once the whole response has been read.
+         */
+        boolean advance(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                channel.write(request);
+                if (!request.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+            } else if (key.isReadable()) {
+                return channel.read(response) < 0 || !response.hasRemaining() || isComplete();
+            }
+            return false;
+        }
+
+        private boolean isComplete() {
+            int headerEnd = headerEnd();
+            if (headerEnd < 0) return false;
+            String head = new String(response.array(), 0, headerEnd, StandardCharsets.US_ASCII);
+            for (String line : head.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                    try {
+                        return response.position() - headerEnd - 4 >= Integer.parseInt(line.substring(colon + 1).trim());
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private int headerEnd() {
+            byte[] bytes = response.array();
+            for (int i = 0; i + 3 < response.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') return i;
+            }
+            return -1;
+        }
+
+        /**
+         * The {@code bridgeid} from the response, or {@code null} if the host did not answer like a bridge.
+         */
+        String bridgeId() {
+            int headerEnd = headerEnd();
+            if (headerEnd < 0) return null;
+            String head = new String(response.array(), 0, headerEnd, StandardCharsets.US_ASCII);
+            if (!head.startsWith("HTTP/1.") || !head.regionMatches(9, "200", 0, 3)) return null;
+            String body = new String(response.array(), headerEnd + 4, response.position() - headerEnd - 4, StandardCharsets.UTF_8);
+            try {
+                JsonElement config = new JsonParser().parse(body);
+                if (!config.isJsonObject()) return null;
+                JsonObject object = config.getAsJsonObject();
+                return object.has("bridgeid") ? object.get("bridgeid").getAsString() : null;
+            } catch (JsonSyntaxException e) {
+                // Chunked or truncated; a bridge sends its config with a Content-Length
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Every host address on the site-local IPv4 subnets of the interfaces that are up, excluding our own.
+     */
+    static List<InetAddress> localSubnetHosts() {
+        List<InetAddress> hosts = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (!networkInterface.isUp() || networkInterface.isLoopback() || networkInterface.isPointToPoint()) continue;
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    InetAddress address = interfaceAddress.getAddress();
+                    if (!(address instanceof Inet4Address) || !address.isSiteLocalAddress()) continue;
+                    int prefixLength = Math.max(MIN_PREFIX_LENGTH, interfaceAddress.getNetworkPrefixLength());
+                    int mask = prefixLength == 32 ? -1 : ~(-1 >>> prefixLength);
+                    int own = toInt((Inet4Address) address);
+                    int network = own & mask;
+                    int broadcast = network | ~mask;
+                    for (int host = network + 1; host < broadcast; host++) {
+                        if (host != own) hosts.add(toAddress(host));
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            logger.log(Level.WARNING, "Could not list network interfaces", e);
+        }
+        return hosts;
+    }
+
+    private static int toInt(Inet4Address address) {
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+    }
+
+    private static InetAddress toAddress(int address) {
+        byte[] bytes = {(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address};
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of the wrong length
+            throw new IllegalStateException(e);
+        }
+    }
+}
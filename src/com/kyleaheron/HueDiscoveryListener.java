@@ -0,0 +1,9 @@
+package com.kyleaheron;
+
+/**
+ * Notified as soon as {@link HueDiscovery} finds a bridge, before discovery as a whole has finished.
+ */
+public interface HueDiscoveryListener {
+
+    void bridgeFound(HueBridge bridge);
+}
@@ -0,0 +1,53 @@
+package com.kyleaheron;
+
+/**
+ * The error types a bridge reports, numbered as in the Hue API.
+ */
+public enum HueErrorType {
+    UNAUTHORIZED_USER(1),
+    INVALID_JSON(2),
+    RESOURCE_NOT_AVAILABLE(3),
+    METHOD_NOT_AVAILABLE(4),
+    MISSING_PARAMETERS(5),
+    PARAMETER_NOT_AVAILABLE(6),
+    INVALID_VALUE(7),
+    PARAMETER_NOT_MODIFIABLE(8),
+    TOO_MANY_ITEMS(11),
+    PORTAL_CONNECTION_REQUIRED(12),
+    LINK_BUTTON_NOT_PRESSED(101),
+    DHCP_CANNOT_BE_DISABLED(110),
+    INVALID_UPDATE_STATE(111),
+    DEVICE_OFF(201),
+    GROUP_TABLE_FULL(301),
+    DEVICE_GROUP_TABLE_FULL(302),
+    SCENE_NOT_CREATED(401),
+    SCENE_BUFFER_FULL(402),
+    SCENE_NOT_REMOVED(403),
+    INTERNAL_ERROR(901),
+    UNKNOWN(-1);
+
+    private final int code;
+
+    HueErrorType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Whether the same request may succeed if sent again later. Bridges answer with an internal error when their
+     * ZigBee queue is full, so it is the sign of an overloaded bridge.
+     */
+    public boolean isTransient() {
+        return this == INTERNAL_ERROR;
+    }
+
+    public static HueErrorType forCode(int code) {
+        for (HueErrorType type : values()) {
+            if (type.code == code) return type;
+        }
+        return UNKNOWN;
+    }
+}
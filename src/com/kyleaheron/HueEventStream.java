@@ -0,0 +1,358 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived Server-Sent-Events connection to the bridge's event stream. Updates pushed by the bridge are decoded as
+ * they arrive and applied to the cached lights and groups, and light changes are reported to the bridge's
+ * {@link HueLightListener}s exactly as the poller would. Events that only echo the library's own commands, sent or
+ * still in flight, are applied without being reported.
+ *
+ * The stream runs on a single thread driving a non-blocking channel. When the connection drops it reconnects with
+ * exponential backoff and sends the last event id it saw, so the bridge can replay anything missed in between. A
+ * {@code retry} interval sent by the bridge becomes the shortest wait, and backoff only grows from there.
+ *
+ * The connection is plain HTTP. A real bridge serves its event stream over TLS only, so it has to be reached through a
+ * plain-HTTP endpoint such as a TLS-terminating proxy.
+ */
+class HueEventStream {
+
+    static Logger logger = Logger.getLogger(HueEventStream.class.getName());
+
+    static final String EVENT_STREAM_PATH = "/eventstream/clip/v2";
+
+    private static final int INITIAL_RETRY = 1000;
+    private static final int MAX_RETRY = 30000;
+    private static final int IDLE_TIMEOUT = 120000;
+
+    private final HueBridge bridge;
+    private final InetSocketAddress address;
+    private final String path;
+
+    private volatile boolean running = false;
+    private volatile Selector selector;
+    private volatile String lastEventId;
+    // The shortest reconnect wait, INITIAL_RETRY unless the bridge asked for longer
+    private long retryFloor = INITIAL_RETRY;
+    private long retryDelay = INITIAL_RETRY;
+    private Thread thread;
+
+    HueEventStream(HueBridge bridge, InetSocketAddress address, String path) {
+        this.bridge = bridge;
+        this.address = address;
+        this.path = path;
+    }
+
+    synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this::run, "hue-" + bridge.getUniqueDeviceId() + "-events");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        running = false;
+        notifyAll();
+        Selector current = selector;
+        if (current != null) current.wakeup();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    String getLastEventId() {
+        return lastEventId;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                stream();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Event stream disconnected: " + e.getMessage());
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Event stream failed", e);
+            }
+            synchronized (this) {
+                if (!running) break;
+                try {
+                    wait(retryDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+                retryDelay = Math.max(retryFloor, Math.min(MAX_RETRY, retryDelay * 2));
+            }
+        }
+    }
+
+    private void stream() throws IOException {
+        try (Selector selector = Selector.open(); SocketChannel channel = SocketChannel.open()) {
+            this.selector = selector;
+            channel.configureBlocking(false);
+            channel.connect(address);
+            channel.register(selector, SelectionKey.OP_CONNECT);
+
+            ByteBuffer request = ByteBuffer.wrap(buildRequest().getBytes(StandardCharsets.US_ASCII));
+            ByteBuffer buffer = ByteBuffer.allocate(16384);
+            ResponseParser parser = new ResponseParser();
+            long lastActivity = System.currentTimeMillis();
+
+            while (running) {
+                if (selector.select(1000) == 0) {
+                    if (System.currentTimeMillis() - lastActivity > IDLE_TIMEOUT) {
+                        throw new SocketTimeoutException("No data from the event stream for " + IDLE_TIMEOUT + "ms");
+                    }
+                    continue;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isConnectable()) {
+                        channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    } else if (key.isWritable()) {
+                        channel.write(request);
+                        if (!request.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                    } else if (key.isReadable()) {
+                        if (channel.read(buffer) < 0) throw new EOFException("Bridge closed the event stream");
+                        lastActivity = System.currentTimeMillis();
+                        buffer.flip();
+                        parser.feed(buffer);
+                        buffer.compact();
+                    }
+                }
+            }
+        } finally {
+            selector = null;
+        }
+    }
+
+    private String buildRequest() {
+        StringBuilder request = new StringBuilder(256);
+        request.append("GET ").append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(address.getHostString());
+        if (address.getPort() != 80) request.append(':').append(address.getPort());
+        request.append("\r\nAccept: text/event-stream\r\n")
+                .append("Cache-Control: no-cache\r\n")
+                .append("hue-application-key: ").append(bridge.getUsername()).append("\r\n");
+        if (lastEventId != null) request.append("Last-Event-ID: ").append(lastEventId).append("\r\n");
+        return request.append("\r\n").toString();
+    }
+
+    private void dispatch(String id, String data) {
+        if (id != null) lastEventId = id;
+        if (data.isEmpty()) return;
+        // A complete event arrived, so the connection is healthy again
+        synchronized (this) {
+            retryDelay = retryFloor;
+        }
+
+        JsonElement events = new JsonParser().parse(data);
+        if (!events.isJsonArray()) return;
+        for (JsonElement event : events.getAsJsonArray()) {
+            JsonObject eventObject = event.getAsJsonObject();
+            if (!eventObject.has("data")) continue;
+            for (JsonElement resource : eventObject.get("data").getAsJsonArray()) {
+                applyResource(resource.getAsJsonObject());
+            }
+        }
+    }
+
+    /**
+     * Applies one changed resource. Resources carry their v1 address in {@code id_v1}, e.g. {@code /lights/3}.
+     */
+    private void applyResource(JsonObject resource) {
+        if (!resource.has("id_v1") || !resource.has("type")) return;
+        String address = resource.get("id_v1").getAsString();
+        int separator = address.lastIndexOf('/');
+        int id;
+        try {
+            id = Integer.parseInt(address.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String type = resource.get("type").getAsString();
+
+        if (type.equals("light") && address.startsWith("/lights/")) {
+            HueLight light = bridge.getLight(id);
+            if (light == null) return;
+            boolean[] changed = new boolean[1];
+            applyFields(resource, (field, value) -> changed[0] |= light.applyEventField(field, value));
+            if (changed[0]) bridge.fireLightChanged(light);
+        } else if (type.equals("grouped_light") && address.startsWith("/groups/")) {
+            HueGroup group = bridge.getGroup(id);
+            if (group == null) return;
+            applyFields(resource, group::applyActionField);
+        } else if (address.startsWith("/sensors/")) {
+            bridge.fireSensorChanged(id, type, resource);
+        }
+    }
+
+    private interface FieldSink {
+        void apply(String field, JsonElement value);
+    }
+
+    /**
+     * Translates the v2 attributes into the v1 names and units the rest of the library uses.
+     */
+    private static void applyFields(JsonObject resource, FieldSink sink) {
+        if (resource.has("on")) {
+            sink.apply("on", resource.get("on").getAsJsonObject().get("on"));
+        }
+        if (resource.has("dimming")) {
+            double percent = resource.get("dimming").getAsJsonObject().get("brightness").getAsDouble();
+            int brightness = (int) Math.round(percent * HueLight.MAX_BRIGHTNESS / 100);
+            sink.apply("bri", new JsonPrimitive(Math.max(HueLight.MIN_BRIGHTNESS, Math.min(HueLight.MAX_BRIGHTNESS, brightness))));
+        }
+        if (resource.has("color")) {
+            JsonObject xy = resource.get("color").getAsJsonObject().get("xy").getAsJsonObject();
+            JsonArray array = new JsonArray();
+            array.add(xy.get("x"));
+            array.add(xy.get("y"));
+            sink.apply("xy", array);
+        }
+        if (resource.has("color_temperature")) {
+            JsonElement mirek = resource.get("color_temperature").getAsJsonObject().get("mirek");
+            if (mirek != null && !mirek.isJsonNull()) sink.apply("ct", mirek);
+        }
+    }
+
+    /**
+     * Splits the raw bytes into the HTTP response head, optional chunk framing and SSE lines.
+     */
+    private class ResponseParser {
+        private boolean headersDone = false;
+        private boolean chunked = false;
+        private long chunkRemaining = -1;
+        // Framing (headers, chunk sizes) and event lines are buffered apart since an event line can span chunks
+        private final ByteArrayOutputStream framingLine = new ByteArrayOutputStream(64);
+        private final ByteArrayOutputStream eventLine = new ByteArrayOutputStream(512);
+
+        private String eventId;
+        private final StringBuilder eventData = new StringBuilder();
+
+        void feed(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (!headersDone) {
+                    String headerLine = nextLine(buffer, framingLine);
+                    if (headerLine != null) header(headerLine);
+                } else if (chunked) {
+                    if (chunkRemaining <= 0) {
+                        String sizeLine = nextLine(buffer, framingLine);
+                        if (sizeLine == null || sizeLine.isEmpty()) continue;
+                        int extension = sizeLine.indexOf(';');
+                        chunkRemaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+                        if (chunkRemaining == 0) throw new EOFException("Bridge ended the event stream");
+                    } else {
+                        int take = (int) Math.min(chunkRemaining, buffer.remaining());
+                        ByteBuffer slice = buffer.duplicate();
+                        slice.limit(slice.position() + take);
+                        buffer.position(buffer.position() + take);
+                        chunkRemaining -= take;
+                        body(slice);
+                    }
+                } else {
+                    body(buffer);
+                }
+            }
+        }
+
+        private void header(String headerLine) throws IOException {
+            if (headerLine.startsWith("HTTP/")) {
+                int start = headerLine.indexOf(' ');
+                int status = Integer.parseInt(headerLine.substring(start + 1, start + 4));
+                if (status != 200) throw new IOException("Event stream refused with HTTP " + status);
+            } else if (headerLine.isEmpty()) {
+                headersDone = true;
+            } else {
+                int colon = headerLine.indexOf(':');
+                if (colon > 0 && headerLine.substring(0, colon).trim().equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = headerLine.substring(colon + 1).trim().equalsIgnoreCase("chunked");
+                }
+            }
+        }
+
+        private void body(ByteBuffer buffer) {
+            String line;
+            while ((line = nextLine(buffer, eventLine)) != null) {
+                event(line);
+            }
+        }
+
+        private void event(String line) {
+            if (line.isEmpty()) {
+                String data = eventData.toString();
+                eventData.setLength(0);
+                dispatch(eventId, data);
+                eventId = null;
+                return;
+            }
+            if (line.startsWith(":")) return;
+            int colon = line.indexOf(':');
+            String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) value = value.substring(1);
+            switch (field) {
+                case "id":
+                    eventId = value;
+                    break;
+                case "data":
+                    if (eventData.length() > 0) eventData.append('\n');
+                    eventData.append(value);
+                    break;
+                case "retry":
+                    try {
+                        long retry = Math.max(INITIAL_RETRY, Long.parseLong(value.trim()));
+                        synchronized (HueEventStream.this) {
+                            retryFloor = retry;
+                            retryDelay = retry;
+                        }
+                    } catch (NumberFormatException e) {
+                        // Ignored, as the SSE spec requires
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Returns the next complete line without its terminator, or {@code null} once the buffer is used up mid-line.
+         */
+        private String nextLine(ByteBuffer buffer, ByteArrayOutputStream line) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    line.reset();
+                    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+                line.write(b);
+            }
+            return null;
+        }
+    }
+}
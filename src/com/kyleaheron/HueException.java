@@ -2,7 +2,10 @@ package com.kyleaheron;
 
 import com.google.gson.JsonObject;
 
-class HueException extends Exception {
+/**
+ * An error entry from a bridge response, e.g. a parameter the light does not support or a bridge too busy to answer.
+ */
+public class HueException extends Exception {
 
     private int errorType;
     private String errorAddress;
@@ -17,6 +20,28 @@ class HueException extends Exception {
         }
     }
 
+    public HueErrorType getType() {
+        return HueErrorType.forCode(errorType);
+    }
+
+    /**
+     * The error number as sent by the bridge, which is kept even when {@link #getType()} does not know it.
+     */
+    public int getCode() {
+        return errorType;
+    }
+
+    /**
+     * The resource or attribute the error is about, e.g. {@code /lights/1/state/bri}.
+     */
+    public String getAddress() {
+        return errorAddress;
+    }
+
+    public String getDescription() {
+        return errorDescription;
+    }
+
     @Override
     public String getMessage() {
        return formatErrorString(errorType, errorAddress, errorDescription);
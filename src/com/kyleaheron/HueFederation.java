@@ -0,0 +1,546 @@
+package com.kyleaheron;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Many bridges run as one installation. Lights and groups are addressed across bridges as
+ * {@code <bridge id>/<light or group id>}, and batch operations split their lights or groups by owning bridge and hand
+ * each bridge's share to a dispatch lane of its own, so a slow or silent bridge never holds up the others and the
+ * command rate grows with the number of bridges.
+ *
+ * The federation watches every request its bridges make and rates each bridge {@link Health#HEALTHY},
+ * {@link Health#DEGRADED} or {@link Health#UNREACHABLE}. Batches skip unreachable bridges instead of queueing behind
+ * their timeouts, and a skipped batch pings the bridge, at most once a second, so it is used again once it answers.
+ * With {@link #startHealthChecks()} idle or failing bridges are also pinged in between, and a bridge that stays
+ * unreachable is looked for again with {@link HueDiscovery}; if it turns up at a new address, as after a DHCP change, a
+ * new {@link HueBridge} takes its place under the same id and lights addressed through the old one are routed to it.
+ */
+public class HueFederation {
+
+    static Logger logger = Logger.getLogger(HueFederation.class.getName());
+
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 5000;
+    // Consecutive requests without a response before a bridge counts as unreachable; one already makes it degraded
+    private static final int UNREACHABLE_FAILURES = 3;
+    private static final int REDISCOVERY_INTERVAL = 60000;
+    // How often skipped batches may ping an unreachable bridge
+    private static final int PROBE_INTERVAL = 1000;
+    private static final byte[] NO_BODY = new byte[0];
+
+    /**
+     * How a bridge has been answering lately.
+     */
+    public enum Health {
+        /**
+         * The last request got a response other than a server error.
+         */
+        HEALTHY,
+        /**
+         * The last request failed or the bridge answered with a server error, e.g. 503 when it is overloaded.
+         */
+        DEGRADED,
+        /**
+         * Several requests in a row got no response at all. Batches skip the bridge until it answers again, and ping
+         * it. Server errors never make a bridge unreachable: it is still answering, and an overloaded bridge is slowed
+         * down and retried by its {@link HueCommandScheduler} instead.
+         */
+        UNREACHABLE
+    }
+
+    // Replaced as a whole on every change, so dispatch reads it without locking
+    private volatile Map<String, Lane> lanes = Collections.emptyMap();
+    private final List<HueFederationListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(HueBridge.daemonThreads("hue-federation"));
+    private ScheduledFuture<?> healthChecks;
+    private volatile HueDiscovery discovery = new HueDiscovery();
+    private final AtomicBoolean rediscovering = new AtomicBoolean();
+    private volatile long lastRediscovery;
+
+    public HueFederation() {
+    }
+
+    public HueFederation(Collection<HueBridge> bridges) {
+        for (HueBridge bridge : bridges) {
+            add(bridge);
+        }
+    }
+
+    /**
+     * A federation of every bridge {@link HueBridge#discover()} finds. It still has to be connected.
+     */
+    public static HueFederation discover() {
+        return new HueFederation(HueBridge.discover());
+    }
+
+    public synchronized void add(HueBridge bridge) {
+        String key = key(bridge);
+        if (lanes.containsKey(key)) throw new IllegalArgumentException("Bridge " + bridge.getUniqueDeviceId() + " is already federated");
+        Map<String, Lane> updated = new LinkedHashMap<>(lanes);
+        updated.put(key, new Lane(bridge));
+        lanes = Collections.unmodifiableMap(updated);
+    }
+
+    /**
+     * Takes {@code bridge} out of the federation without closing it. Returns {@code false} if it was not part of it.
+     */
+    public boolean remove(HueBridge bridge) {
+        Lane lane;
+        synchronized (this) {
+            lane = lanes.get(key(bridge));
+            if (lane == null || lane.bridge != bridge) return false;
+            Map<String, Lane> updated = new LinkedHashMap<>(lanes);
+            updated.remove(key(bridge));
+            lanes = Collections.unmodifiableMap(updated);
+        }
+        lane.close();
+        return true;
+    }
+
+    /**
+     * Connects every bridge in parallel; see {@link HueBridge#connectAll(Collection)}.
+     */
+    public CompletableFuture<List<HueBridge>> connect() {
+        return HueBridge.connectAll(getBridges());
+    }
+
+    public List<HueBridge> getBridges() {
+        List<HueBridge> bridges = new ArrayList<>();
+        for (Lane lane : lanes.values()) {
+            bridges.add(lane.bridge);
+        }
+        return bridges;
+    }
+
+    /**
+     * The bridge with this unique device id, or {@code null} if it is not federated.
+     */
+    public HueBridge getBridge(String uniqueDeviceId) {
+        Lane lane = lanes.get(uniqueDeviceId.toLowerCase());
+        return lane == null ? null : lane.bridge;
+    }
+
+    /**
+     * How {@code bridge} has been answering, or {@code null} if it is not federated.
+     */
+    public Health getHealth(HueBridge bridge) {
+        Lane lane = lanes.get(key(bridge));
+        return lane == null || lane.bridge != bridge ? null : lane.getHealth();
+    }
+
+    public void addListener(HueFederationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(HueFederationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The federation-wide address of a light, {@code <bridge id>/<light id>}.
+     */
+    public static String addressOf(HueLight light) {
+        return light.getBridge().getUniqueDeviceId() + "/" + light.getId();
+    }
+
+    public static String addressOf(HueGroup group) {
+        return group.getBridge().getUniqueDeviceId() + "/" + group.getId();
+    }
+
+    /**
+     * Every light of every bridge, bridge by bridge in the order they were added.
+     */
+    public List<HueLight> getLights() {
+        List<HueLight> lights = new ArrayList<>();
+        for (Lane lane : lanes.values()) {
+            lights.addAll(lane.bridge.getLights());
+        }
+        return lights;
+    }
+
+    /**
+     * The light at an address from {@link #addressOf(HueLight)}, or {@code null} if there is none.
+     */
+    public HueLight getLight(String address) {
+        Lane lane = lanes.get(bridgeKey(address));
+        return lane == null ? null : lane.bridge.getLight(resourceId(address));
+    }
+
+    public List<HueLight> getLightsByName(String name) {
+        List<HueLight> lights = new ArrayList<>();
+        for (Lane lane : lanes.values()) {
+            lights.addAll(lane.bridge.getLightsByName(name));
+        }
+        return lights;
+    }
+
+    public List<HueGroup> getGroups() {
+        List<HueGroup> groups = new ArrayList<>();
+        for (Lane lane : lanes.values()) {
+            groups.addAll(lane.bridge.getGroups());
+        }
+        return groups;
+    }
+
+    /**
+     * The group at an address from {@link #addressOf(HueGroup)}, or {@code null} if there is none.
+     */
+    public HueGroup getGroup(String address) {
+        Lane lane = lanes.get(bridgeKey(address));
+        return lane == null ? null : lane.bridge.getGroup(resourceId(address));
+    }
+
+    public List<HueGroup> getGroupsByName(String name) {
+        List<HueGroup> groups = new ArrayList<>();
+        for (HueGroup group : getGroups()) {
+            if (name.equals(group.getName())) groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * Shows the pending changes of {@code lights}, wherever they are. See {@link #apply(Collection, Consumer)}.
+     */
+    public CompletableFuture<Boolean> show(Collection<HueLight> lights) {
+        return apply(lights, light -> {
+        });
+    }
+
+    /**
+     * Runs {@code change} on each light and shows it, on the lane of the light's bridge. Lanes run side by side, and
+     * each keeps the order of its lights and of the batches handed to it. The future completes with {@code true} once
+     * every light was shown, and with {@code false} if any could not be, e.g. because its bridge is unreachable.
+     *
+     * A light of a bridge that has since been replaced is routed to the light with the same id on the replacement.
+     */
+    public CompletableFuture<Boolean> apply(Collection<HueLight> lights, Consumer<? super HueLight> change) {
+        Map<Lane, List<HueLight>> batches = new LinkedHashMap<>();
+        boolean routed = true;
+        for (HueLight light : lights) {
+            Lane lane = laneFor(light.getBridge());
+            HueLight current = lane.bridge == light.getBridge() ? light : lane.bridge.getLight(light.getId());
+            if (current == null) {
+                routed = false;
+                continue;
+            }
+            batches.computeIfAbsent(lane, key -> new ArrayList<>()).add(current);
+        }
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(batches.size() + 1);
+        if (!routed) results.add(CompletableFuture.completedFuture(false));
+        for (Map.Entry<Lane, List<HueLight>> batch : batches.entrySet()) {
+            results.add(batch.getKey().dispatch(batch.getValue(), change, HueLight::showAsync));
+        }
+        return allShown(results);
+    }
+
+    /**
+     * Like {@link #apply(Collection, Consumer)}, for groups.
+     */
+    public CompletableFuture<Boolean> applyToGroups(Collection<HueGroup> groups, Consumer<? super HueGroup> change) {
+        Map<Lane, List<HueGroup>> batches = new LinkedHashMap<>();
+        boolean routed = true;
+        for (HueGroup group : groups) {
+            Lane lane = laneFor(group.getBridge());
+            HueGroup current = lane.bridge == group.getBridge() ? group : lane.bridge.getGroup(group.getId());
+            if (current == null) {
+                routed = false;
+                continue;
+            }
+            batches.computeIfAbsent(lane, key -> new ArrayList<>()).add(current);
+        }
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(batches.size() + 1);
+        if (!routed) results.add(CompletableFuture.completedFuture(false));
+        for (Map.Entry<Lane, List<HueGroup>> batch : batches.entrySet()) {
+            results.add(batch.getKey().dispatch(batch.getValue(), change, HueGroup::showAsync));
+        }
+        return allShown(results);
+    }
+
+    private Lane laneFor(HueBridge bridge) {
+        Lane lane = lanes.get(key(bridge));
+        if (lane == null) throw new IllegalArgumentException("Bridge " + bridge.getUniqueDeviceId() + " is not federated");
+        return lane;
+    }
+
+    private static CompletableFuture<Boolean> allShown(List<CompletableFuture<Boolean>> results) {
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).handle((done, error) -> {
+            for (CompletableFuture<Boolean> result : results) {
+                if (result.isCompletedExceptionally() || !result.join()) return false;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Where to look for bridges that have stopped answering; {@code null} turns rediscovery off.
+     */
+    public void setDiscovery(HueDiscovery discovery) {
+        this.discovery = discovery;
+    }
+
+    public void startHealthChecks() {
+        startHealthChecks(DEFAULT_HEALTH_CHECK_INTERVAL);
+    }
+
+    /**
+     * Every {@code interval} milliseconds, pings the bridges that have not answered within the interval or are not
+     * healthy, and looks for unreachable bridges at new addresses, at most once a minute.
+     */
+    public synchronized void startHealthChecks(int interval) {
+        stopHealthChecks();
+        healthChecks = scheduler.scheduleWithFixedDelay(() -> checkHealth(interval), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopHealthChecks() {
+        if (healthChecks == null) return;
+        healthChecks.cancel(false);
+        healthChecks = null;
+    }
+
+    private void checkHealth(int interval) {
+        long now = System.nanoTime();
+        boolean unreachable = false;
+        for (Lane lane : lanes.values()) {
+            Health health = lane.getHealth();
+            unreachable |= health == Health.UNREACHABLE;
+            if (health != Health.HEALTHY || now - lane.lastResponse > TimeUnit.MILLISECONDS.toNanos(interval)) {
+                try {
+                    lane.bridge.getExecutor().execute(lane::ping);
+                } catch (RejectedExecutionException e) {
+                    // The bridge has been closed
+                }
+            }
+        }
+        if (unreachable && (lastRediscovery == 0 || now - lastRediscovery > TimeUnit.MILLISECONDS.toNanos(REDISCOVERY_INTERVAL))) {
+            rediscover();
+        }
+    }
+
+    private void rediscover() {
+        HueDiscovery current = discovery;
+        if (current == null || !rediscovering.compareAndSet(false, true)) return;
+        lastRediscovery = System.nanoTime();
+        current.discoverAsync(null).whenComplete((found, error) -> {
+            try {
+                if (error != null) {
+                    logger.log(Level.WARNING, "Rediscovery failed", error);
+                } else {
+                    for (HueBridge candidate : found) {
+                        adopt(candidate);
+                    }
+                }
+            } finally {
+                rediscovering.set(false);
+            }
+        });
+    }
+
+    /**
+     * Puts a newly found bridge in place of the unreachable one with its id, if its address has changed, and closes it
+     * otherwise.
+     */
+    private void adopt(HueBridge replacement) {
+        Lane lane;
+        synchronized (this) {
+            lane = lanes.get(key(replacement));
+            if (lane == null || lane.getHealth() != Health.UNREACHABLE
+                    || lane.bridge.getIpAddress().equalsIgnoreCase(replacement.getIpAddress())) {
+                lane = null;
+            } else {
+                Map<String, Lane> updated = new LinkedHashMap<>(lanes);
+                updated.put(key(replacement), new Lane(replacement));
+                lanes = Collections.unmodifiableMap(updated);
+            }
+        }
+        if (lane == null) {
+            replacement.close();
+            return;
+        }
+        HueBridge bridge = lane.bridge;
+        logger.log(Level.INFO, String.format("Bridge %s moved from %s to %s", bridge.getUniqueDeviceId(),
+                bridge.getIpAddress(), replacement.getIpAddress()));
+        lane.close();
+        // Closing writes the old bridge's snapshot, which the replacement then takes its username and lights from
+        bridge.close();
+        replacement.setSnapshotFile(bridge.getSnapshotFile());
+        for (HueFederationListener listener : listeners) {
+            try {
+                listener.bridgeReplaced(bridge, replacement);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Federation listener failed", e);
+            }
+        }
+        replacement.connect();
+    }
+
+    /**
+     * Stops the health checks and closes every bridge.
+     */
+    public void close() {
+        stopHealthChecks();
+        scheduler.shutdownNow();
+        for (Lane lane : lanes.values()) {
+            lane.close();
+            lane.bridge.close();
+        }
+    }
+
+    private static String key(HueBridge bridge) {
+        return bridge.getUniqueDeviceId().toLowerCase();
+    }
+
+    private static String bridgeKey(String address) {
+        int separator = address.lastIndexOf('/');
+        if (separator <= 0) throw new IllegalArgumentException("Not a federated address: " + address);
+        return address.substring(0, separator).toLowerCase();
+    }
+
+    private static int resourceId(String address) {
+        try {
+            return Integer.parseInt(address.substring(address.lastIndexOf('/') + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a federated address: " + address, e);
+        }
+    }
+
+    /**
+     * One bridge's dispatch thread and health, kept up to date from the bridge's own request measurements.
+     */
+    private final class Lane implements HueMetricsListener {
+        final HueBridge bridge;
+        private final ExecutorService executor;
+        private Health health = Health.HEALTHY;
+        private int failures;
+        volatile long lastResponse = System.nanoTime();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private volatile long lastProbe = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL);
+
+        Lane(HueBridge bridge) {
+            this.bridge = bridge;
+            this.executor = Executors.newSingleThreadExecutor(HueBridge.daemonThreads("hue-federation-" + bridge.getUniqueDeviceId()));
+            bridge.getMetrics().addListener(this);
+        }
+
+        synchronized Health getHealth() {
+            return health;
+        }
+
+        <T> CompletableFuture<Boolean> dispatch(List<T> targets, Consumer<? super T> change, Function<T, CompletableFuture<Boolean>> show) {
+            if (getHealth() == Health.UNREACHABLE) {
+                logger.log(Level.FINE, String.format("Skipping %d commands for unreachable bridge %s", targets.size(), bridge.getUniqueDeviceId()));
+                probe();
+                return CompletableFuture.completedFuture(false);
+            }
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    List<CompletableFuture<Boolean>> shown = new ArrayList<>(targets.size());
+                    for (T target : targets) {
+                        change.accept(target);
+                        shown.add(show.apply(target));
+                    }
+                    return shown;
+                }, executor).thenCompose(HueFederation::allShown);
+            } catch (RejectedExecutionException e) {
+                // Replaced or removed while the batch was being split
+                return CompletableFuture.completedFuture(false);
+            }
+        }
+
+        /**
+         * Pings the bridge on this lane, unless a ping is already waiting or one went out within the probe interval.
+         * Without it an unreachable bridge would only recover through the opt-in health checks.
+         */
+        private void probe() {
+            long now = System.nanoTime();
+            if (now - lastProbe < TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL) || !probing.compareAndSet(false, true)) return;
+            lastProbe = now;
+            try {
+                executor.execute(() -> {
+                    try {
+                        ping();
+                    } finally {
+                        probing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Replaced or removed
+                probing.set(false);
+            }
+        }
+
+        /**
+         * Asks for the bridge's public config, which needs no user. The outcome reaches {@link #requestCompleted} or
+         * {@link #requestFailed} through the bridge's metrics.
+         */
+        void ping() {
+            try {
+                bridge.getTransport().exchange("GET", "/api/config", NO_BODY, 0, (status, in) -> {
+                    byte[] buffer = new byte[1024];
+                    while (in.read(buffer) >= 0) {
+                        // Discard
+                    }
+                    return null;
+                });
+            } catch (IOException e) {
+                // Counted as a failure
+            }
+        }
+
+        @Override
+        public void requestCompleted(String method, HueMetrics.RequestClass requestClass, int status, long nanos,
+                                     int bytesSent, long bytesReceived) {
+            lastResponse = System.nanoTime();
+            record(true, status < 500);
+        }
+
+        @Override
+        public void requestFailed(String method, HueMetrics.RequestClass requestClass, IOException error) {
+            record(false, false);
+        }
+
+        private void record(boolean answered, boolean succeeded) {
+            Health previous;
+            Health current;
+            synchronized (this) {
+                failures = answered ? 0 : failures + 1;
+                previous = health;
+                current = failures >= UNREACHABLE_FAILURES ? Health.UNREACHABLE
+                        : failures > 0 || !succeeded ? Health.DEGRADED : Health.HEALTHY;
+                health = current;
+            }
+            if (previous == current) return;
+            logger.log(current == Health.UNREACHABLE ? Level.WARNING : Level.INFO,
+                    String.format("Bridge %s is %s", bridge.getUniqueDeviceId(), current.name().toLowerCase()));
+            for (HueFederationListener listener : listeners) {
+                try {
+                    listener.healthChanged(bridge, previous, current);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Federation listener failed", e);
+                }
+            }
+        }
+
+        void close() {
+            bridge.getMetrics().removeListener(this);
+            executor.shutdown();
+        }
+    }
+}
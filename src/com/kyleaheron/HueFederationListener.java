@@ -0,0 +1,21 @@
+package com.kyleaheron;
+
+/**
+ * Notified when a {@link HueFederation} sees one of its bridges change health or move to a new address. Register one
+ * with {@link HueFederation#addListener(HueFederationListener)} and override the events of interest.
+ *
+ * Callbacks run on the thread that noticed the change, often one of the bridge's I/O threads, and must return quickly.
+ */
+public interface HueFederationListener {
+
+    default void healthChanged(HueBridge bridge, HueFederation.Health previous, HueFederation.Health current) {
+    }
+
+    /**
+     * {@code bridge} stopped answering and was found again at a new address. {@code replacement} now stands for it in
+     * the federation, with its own lights and groups; listeners and polling set up on the old bridge must be set up
+     * again on the new one.
+     */
+    default void bridgeReplaced(HueBridge bridge, HueBridge replacement) {
+    }
+}
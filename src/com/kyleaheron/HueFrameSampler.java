@@ -0,0 +1,308 @@
+package com.kyleaheron;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns video or screen frames into light colours for ambient lighting.
+ *
+ * Each light is mapped to a rectangle of the frame. For every frame the rectangles are averaged in parallel on a
+ * fork/join pool, the averages are converted to xy through each light's own {@link HueColorConverter}, smoothed over
+ * time, and sent only for lights whose colour moved by at least a visible amount. Results go through the lights'
+ * normal command path, or into a {@link HueStream} when one is set as the output.
+ *
+ * A sampler keeps per-light state between frames and is meant to be fed from one thread; calls are serialised.
+ */
+public class HueFrameSampler {
+
+    /**
+     * Byte order of the four-byte pixels in a {@link ByteBuffer} frame.
+     */
+    public enum PixelLayout {
+        ARGB(1, 2, 3), BGRA(2, 1, 0), RGBA(0, 1, 2);
+
+        final int red, green, blue;
+
+        PixelLayout(int red, int green, int blue) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+        }
+    }
+
+    public static final float DEFAULT_SMOOTHING = 0.5f;
+    public static final float DEFAULT_THRESHOLD = 2f;
+    public static final int DEFAULT_SAMPLE_STEP = 2;
+
+    // Below this many sampled pixels a frame is averaged on the calling thread; forking would cost more than it saves
+    private static final int MIN_PARALLEL_PIXELS = 1 << 14;
+
+    private final int width;
+    private final int height;
+    private final ForkJoinPool pool;
+
+    private HueLight[] lights = new HueLight[0];
+    private int[] regionX = new int[0];
+    private int[] regionY = new int[0];
+    private int[] regionWidth = new int[0];
+    private int[] regionHeight = new int[0];
+    private int[] averages = new int[0];
+    private float[] smoothed = new float[0];
+    private float[] sent = new float[0];
+    private boolean[] hasSmoothed = new boolean[0];
+    private boolean[] hasSent = new boolean[0];
+
+    private float smoothing = DEFAULT_SMOOTHING;
+    private float threshold = DEFAULT_THRESHOLD;
+    private int sampleStep = DEFAULT_SAMPLE_STEP;
+    private int transitionTime = 0;
+    private HueStream output;
+
+    // The frame being averaged, read by the region tasks
+    private int[] intFrame;
+    private ByteBuffer byteFrame;
+    private PixelLayout layout;
+
+    public HueFrameSampler(int width, int height) {
+        this(width, height, ForkJoinPool.commonPool());
+    }
+
+    public HueFrameSampler(int width, int height, ForkJoinPool pool) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Frame size must be positive");
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+    }
+
+    /**
+     * Maps {@code light} to a rectangle of the frame, replacing any earlier mapping for it.
+     */
+    public synchronized HueFrameSampler mapRegion(HueLight light, int x, int y, int regionWidth, int regionHeight) {
+        if (x < 0 || y < 0 || regionWidth <= 0 || regionHeight <= 0 || x + regionWidth > width || y + regionHeight > height) {
+            throw new IllegalArgumentException("Region must lie inside the " + width + "x" + height + " frame");
+        }
+        int index = Arrays.asList(lights).indexOf(light);
+        if (index < 0) {
+            index = lights.length;
+            resize(index + 1);
+            lights[index] = light;
+        }
+        this.regionX[index] = x;
+        this.regionY[index] = y;
+        this.regionWidth[index] = regionWidth;
+        this.regionHeight[index] = regionHeight;
+        hasSmoothed[index] = false;
+        return this;
+    }
+
+    /**
+     * How far each frame moves the output towards the new colour, from 0 (never) to 1 (no smoothing).
+     */
+    public synchronized HueFrameSampler setSmoothing(float smoothing) {
+        if (smoothing <= 0 || smoothing > 1) throw new IllegalArgumentException("Smoothing must be in (0, 1]");
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    /**
+     * The smallest CIELUV colour difference worth sending to a light. Changes below it are held back until they add up.
+     */
+    public synchronized HueFrameSampler setThreshold(float threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Averages every {@code step}th pixel of every {@code step}th row. Ambient colours barely change at 2 or 4, for a
+     * fraction of the work.
+     */
+    public synchronized HueFrameSampler setSampleStep(int sampleStep) {
+        if (sampleStep < 1) throw new IllegalArgumentException("Sample step must be at least 1");
+        this.sampleStep = sampleStep;
+        return this;
+    }
+
+    /**
+     * The transition time, in milliseconds, of the commands sent to lights. Unused when streaming.
+     */
+    public synchronized HueFrameSampler setTransitionTime(int transitionTime) {
+        this.transitionTime = transitionTime;
+        return this;
+    }
+
+    /**
+     * Sends colours into {@code stream} instead of as light commands, or back to commands when {@code null}.
+     */
+    public synchronized HueFrameSampler setOutput(HueStream stream) {
+        this.output = stream;
+        return this;
+    }
+
+    /**
+     * Processes a frame of {@code width * height} packed {@code 0xAARRGGBB} pixels, row by row. Returns the number of
+     * lights that were sent a new colour.
+     */
+    public synchronized int process(int[] argb) {
+        if (argb.length < width * height) throw new IllegalArgumentException("Frame is smaller than " + width + "x" + height);
+        intFrame = argb;
+        try {
+            average();
+        } finally {
+            intFrame = null;
+        }
+        return publish();
+    }
+
+    /**
+     * Processes a frame of four-byte pixels, row by row, starting at index 0 of {@code pixels}. The buffer's position
+     * is not changed.
+     */
+    public synchronized int process(ByteBuffer pixels, PixelLayout layout) {
+        if (pixels.limit() < width * height * 4) throw new IllegalArgumentException("Frame is smaller than " + width + "x" + height);
+        byteFrame = pixels;
+        this.layout = layout;
+        try {
+            average();
+        } finally {
+            byteFrame = null;
+        }
+        return publish();
+    }
+
+    private void average() {
+        long sampled = 0;
+        for (int i = 0; i < lights.length; i++) {
+            sampled += (long) (regionWidth[i] / sampleStep + 1) * (regionHeight[i] / sampleStep + 1);
+        }
+        if (lights.length > 1 && sampled >= MIN_PARALLEL_PIXELS) {
+            pool.invoke(new RegionTask(0, lights.length));
+        } else {
+            for (int i = 0; i < lights.length; i++) {
+                averages[i] = averageRegion(i);
+            }
+        }
+    }
+
+    private int averageRegion(int region) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        int count = 0;
+        int step = sampleStep;
+        int right = regionX[region] + regionWidth[region];
+        int bottom = regionY[region] + regionHeight[region];
+        if (intFrame != null) {
+            int[] frame = intFrame;
+            for (int y = regionY[region]; y < bottom; y += step) {
+                for (int index = y * width + regionX[region], end = y * width + right; index < end; index += step) {
+                    int pixel = frame[index];
+                    red += (pixel >> 16) & 0xFF;
+                    green += (pixel >> 8) & 0xFF;
+                    blue += pixel & 0xFF;
+                    count++;
+                }
+            }
+        } else {
+            ByteBuffer frame = byteFrame;
+            int redOffset = layout.red;
+            int greenOffset = layout.green;
+            int blueOffset = layout.blue;
+            for (int y = regionY[region]; y < bottom; y += step) {
+                for (int index = (y * width + regionX[region]) * 4, end = (y * width + right) * 4; index < end; index += step * 4) {
+                    red += frame.get(index + redOffset) & 0xFF;
+                    green += frame.get(index + greenOffset) & 0xFF;
+                    blue += frame.get(index + blueOffset) & 0xFF;
+                    count++;
+                }
+            }
+        }
+        return (int) (red / count) << 16 | (int) (green / count) << 8 | (int) (blue / count);
+    }
+
+    private int publish() {
+        int updated = 0;
+        for (int i = 0; i < lights.length; i++) {
+            int color = averages[i];
+            int red = (color >> 16) & 0xFF;
+            int green = (color >> 8) & 0xFF;
+            int blue = color & 0xFF;
+            long xy = lights[i].getColorConverter().toXY(red, green, blue);
+            // The brightest channel rather than luminance, so saturated colours are not dimmed
+            float brightness = Math.max(red, Math.max(green, blue)) * HueLight.MAX_BRIGHTNESS / 255f;
+
+            int offset = i * 3;
+            if (!hasSmoothed[i]) {
+                smoothed[offset] = HueColorConverter.x(xy);
+                smoothed[offset + 1] = HueColorConverter.y(xy);
+                smoothed[offset + 2] = brightness;
+                hasSmoothed[i] = true;
+            } else {
+                smoothed[offset] += (HueColorConverter.x(xy) - smoothed[offset]) * smoothing;
+                smoothed[offset + 1] += (HueColorConverter.y(xy) - smoothed[offset + 1]) * smoothing;
+                smoothed[offset + 2] += (brightness - smoothed[offset + 2]) * smoothing;
+            }
+
+            float x = smoothed[offset];
+            float y = smoothed[offset + 1];
+            int bri = Math.round(smoothed[offset + 2]);
+            if (hasSent[i] && HueAnimator.difference(sent[offset], sent[offset + 1], Math.round(sent[offset + 2]), x, y, bri) < threshold) {
+                continue;
+            }
+            send(lights[i], x, y, bri);
+            sent[offset] = x;
+            sent[offset + 1] = y;
+            sent[offset + 2] = bri;
+            hasSent[i] = true;
+            updated++;
+        }
+        return updated;
+    }
+
+    private void send(HueLight light, float x, float y, int brightness) {
+        if (output != null) {
+            output.setXY(light, x, y, brightness);
+            return;
+        }
+        light.setOn(brightness > 0);
+        if (brightness > 0) light.setBrightness(Math.max(HueLight.MIN_BRIGHTNESS, brightness)).setXY(x, y);
+        light.setTransitionTime(transitionTime).showAsync();
+    }
+
+    private void resize(int size) {
+        lights = Arrays.copyOf(lights, size);
+        regionX = Arrays.copyOf(regionX, size);
+        regionY = Arrays.copyOf(regionY, size);
+        regionWidth = Arrays.copyOf(regionWidth, size);
+        regionHeight = Arrays.copyOf(regionHeight, size);
+        averages = Arrays.copyOf(averages, size);
+        smoothed = Arrays.copyOf(smoothed, size * 3);
+        sent = Arrays.copyOf(sent, size * 3);
+        hasSmoothed = Arrays.copyOf(hasSmoothed, size);
+        hasSent = Arrays.copyOf(hasSent, size);
+    }
+
+    /**
+     * Averages a range of regions, splitting in half until each task has one region.
+     */
+    private class RegionTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        RegionTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                averages[from] = averageRegion(from);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RegionTask(from, middle), new RegionTask(middle, to));
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import javafx.scene.paint.Color;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * A room, zone or light group on the bridge. Changes made through the setters are sent to every member light with a
+ * single {@code /groups/<id>/action} request, and the cached state of the member lights is updated from the response.
+ */
+public class HueGroup {
+
+    static Logger logger = Logger.getLogger(HueGroup.class.getName());
+
+    public static final int ALL_LIGHTS_ID = 0;
+
+    private HueBridge parentBridge;
+    private int id;
+    private String name;
+    private String type;
+    private volatile List<Integer> lightIds;
+
+    private boolean isOn;
+    private int brightness;
+    private int hue;
+    private int saturation;
+    private float colorX;
+    private float colorY;
+    private int colorTemperature;
+
+    private final HueCommandMailbox mailbox;
+    private final HueCommandEncoder encoder = new HueCommandEncoder();
+    private final List<HueException> commandErrors = new ArrayList<>();
+    private String commandPath;
+    private String commandPathUsername;
+
+    HueGroup(HueBridge parentBridge, int id, String name, String type, List<Integer> lightIds) {
+        this.parentBridge = parentBridge;
+        this.id = id;
+        this.mailbox = new HueCommandMailbox(parentBridge.getMetrics());
+        this.name = name;
+        this.type = type;
+        this.lightIds = Collections.unmodifiableList(new ArrayList<>(lightIds));
+    }
+
+    void initializeActionVariables(boolean isOn, int brightness, int hue, int saturation, float x, float y, int colorTemperature) {
+        this.isOn = isOn;
+        this.brightness = brightness;
+        this.hue = hue;
+        this.saturation = saturation;
+        this.colorX = x;
+        this.colorY = y;
+        this.colorTemperature = colorTemperature;
+    }
+
+    void updateAttributes(String name, List<Integer> lightIds) {
+        this.name = name;
+        updateLightIds(lightIds);
+    }
+
+    void updateLightIds(List<Integer> lightIds) {
+        if (!lightIds.equals(this.lightIds)) {
+            this.lightIds = Collections.unmodifiableList(new ArrayList<>(lightIds));
+        }
+    }
+
+    public void show() {
+        showAsync().join();
+    }
+
+    /**
+     * Queues the buffered changes as one group action. Group commands draw from the bridge's group budget, which is
+     * much smaller than the light budget, so prefer a few large changes over a stream of small ones.
+     */
+    public CompletableFuture<Boolean> showAsync() {
+        return showAsync(HueCommandScheduler.Priority.NORMAL);
+    }
+
+    public CompletableFuture<Boolean> showAsync(HueCommandScheduler.Priority priority) {
+        return mailbox.dispatch(
+                task -> parentBridge.getCommandScheduler().submit(HueCommandScheduler.CommandClass.GROUP, priority, this, task),
+                this::sendAction);
+    }
+
+    public void recallScene(HueScene scene) {
+        recallSceneAsync(scene).join();
+    }
+
+    /**
+     * Recalls {@code scene} on this group with one request. Once the bridge confirms, the member lights' cached state
+     * is set from the scene's stored light states.
+     */
+    public CompletableFuture<Boolean> recallSceneAsync(HueScene scene) {
+        return parentBridge.getCommandScheduler().submit(HueCommandScheduler.CommandClass.GROUP, HueCommandScheduler.Priority.NORMAL, this, () -> {
+            JsonObject recall = new JsonObject();
+            recall.addProperty("scene", scene.getId());
+            byte[] body = recall.toString().getBytes(StandardCharsets.UTF_8);
+            if (!sendAction(body, body.length)) return false;
+            for (Entry<Integer, JsonObject> lightState : scene.getLightStates().entrySet()) {
+                HueLight light = parentBridge.getLight(lightState.getKey());
+                if (light == null) continue;
+                for (Entry<String, JsonElement> field : lightState.getValue().entrySet()) {
+                    light.applyStateField(field.getKey(), field.getValue());
+                }
+            }
+            return true;
+        });
+    }
+
+    private boolean sendAction(HueStateUpdate command, long sequence) {
+        parentBridge.onCommandSent();
+        HueCommandScheduler scheduler = parentBridge.getCommandScheduler();
+        // Guards the encoder and the error list; the mailbox already sends one update at a time
+        synchronized (encoder) {
+            byte[] body = encoder.encode(command);
+            commandErrors.clear();
+            try {
+                List<JsonObject> response = HueBridgeComm.request(
+                        parentBridge.getTransport(),
+                        HueBridgeComm.requestMethod.PUT,
+                        getActionPath(),
+                        body,
+                        encoder.length(),
+                        commandErrors);
+                updateActionVariables(response);
+                if (!commandErrors.isEmpty()) {
+                    scheduler.commandFailed(mailbox, command, sequence, commandErrors, this::showAsync);
+                }
+                return response.size() > commandErrors.size();
+            } catch (IOException e) {
+                scheduler.commandFailed(mailbox, command, sequence, e, this::showAsync);
+                return false;
+            }
+        }
+    }
+
+    private boolean sendAction(byte[] body, int length) {
+        parentBridge.onCommandSent();
+        List<JsonObject> response = HueBridgeComm.request(
+                parentBridge.getTransport(),
+                HueBridgeComm.requestMethod.PUT,
+                getActionPath(),
+                body,
+                length);
+        if (response.size() > 0) {
+            updateActionVariables(response);
+            return true;
+        } else {
+            // No response was given
+            return false;
+        }
+    }
+
+    private String getActionPath() {
+        String username = parentBridge.getUsername();
+        if (commandPath == null || username != commandPathUsername) {
+            commandPath = HueBridge.formatPath(username, String.format("groups/%d/action", getId()));
+            commandPathUsername = username;
+        }
+        return commandPath;
+    }
+
+    private void updateActionVariables(List<JsonObject> response) {
+        String prefix = String.format("/groups/%d/action/", getId());
+        List<HueLight> members = getLights();
+        response.stream().filter(object -> object.has("success")).forEach(object -> {
+            for (Entry<String, JsonElement> entry : object.get("success").getAsJsonObject().entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) continue;
+                String field = entry.getKey().substring(prefix.length());
+                applyActionField(field, entry.getValue());
+                for (HueLight light : members) {
+                    light.applyStateField(field, entry.getValue());
+                }
+            }
+        });
+    }
+
+    void applyActionField(String field, JsonElement value) {
+        switch (field) {
+            case "on":
+                isOn = value.getAsBoolean();
+                break;
+            case "bri":
+                brightness = value.getAsInt();
+                break;
+            case "hue":
+                hue = value.getAsInt();
+                break;
+            case "sat":
+                saturation = value.getAsInt();
+                break;
+            case "xy":
+                colorX = value.getAsJsonArray().get(0).getAsFloat();
+                colorY = value.getAsJsonArray().get(1).getAsFloat();
+                break;
+            case "ct":
+                colorTemperature = value.getAsInt();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void setLights(List<HueLight> lights) {
+        setLightsAsync(lights).join();
+    }
+
+    public CompletableFuture<Boolean> setLightsAsync(List<HueLight> lights) {
+        List<Integer> ids = new ArrayList<>();
+        for (HueLight light : lights) {
+            ids.add(light.getId());
+        }
+        JsonObject attributes = new JsonObject();
+        attributes.add("lights", HueBridge.toIdArray(ids));
+        return CompletableFuture.supplyAsync(() -> {
+            if (putAttributes(attributes)) {
+                this.lightIds = Collections.unmodifiableList(ids);
+                return true;
+            }
+            return false;
+        }, parentBridge.getExecutor());
+    }
+
+    public void setName(String name) {
+        setNameAsync(name).join();
+    }
+
+    public CompletableFuture<Boolean> setNameAsync(String name) {
+        JsonObject attributes = new JsonObject();
+        attributes.addProperty("name", name);
+        return CompletableFuture.supplyAsync(() -> {
+            if (putAttributes(attributes)) {
+                this.name = name;
+                return true;
+            }
+            return false;
+        }, parentBridge.getExecutor());
+    }
+
+    /**
+     * Switches streaming on or off for an entertainment group; see {@link HueStream}.
+     */
+    public CompletableFuture<Boolean> setStreamActiveAsync(boolean active) {
+        JsonObject stream = new JsonObject();
+        stream.addProperty("active", active);
+        JsonObject attributes = new JsonObject();
+        attributes.add("stream", stream);
+        return CompletableFuture.supplyAsync(() -> putAttributes(attributes), parentBridge.getExecutor());
+    }
+
+    private boolean putAttributes(JsonObject attributes) {
+        List<JsonObject> response = HueBridgeComm.request(
+                parentBridge.getTransport(),
+                HueBridgeComm.requestMethod.PUT,
+                HueBridge.formatPath(parentBridge.getUsername(), "groups/" + getId()),
+                attributes);
+        return response.size() > 0 && response.get(0).has("success");
+    }
+
+    public HueGroup setOn(boolean state) {
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(state));
+        return this;
+    }
+
+    public HueGroup setHue(int hue) {
+        if (hue >= HueLight.MIN_HUE && hue <= HueLight.MAX_HUE) mailbox.update(HueStateUpdate.HUE, update -> update.withHue(hue));
+        return this;
+    }
+
+    public HueGroup setColor(Color c) {
+        // Member bulbs may have different gamuts, so the bridge clamps the colour for each of them
+        long xy = HueColorConverter.forGamut(HueColorConverter.Gamut.FULL).toXY(
+                (int) Math.round(c.getRed() * 255),
+                (int) Math.round(c.getGreen() * 255),
+                (int) Math.round(c.getBlue() * 255));
+        return setXY(HueColorConverter.x(xy), HueColorConverter.y(xy));
+    }
+
+    public HueGroup setXY(float x, float y) {
+        mailbox.update(HueStateUpdate.XY, update -> update.withXY(x, y));
+        return this;
+    }
+
+    public HueGroup setSaturation(int saturation) {
+        if (saturation >= HueLight.MIN_SATURATION && saturation <= HueLight.MAX_SATURATION) mailbox.update(HueStateUpdate.SATURATION, update -> update.withSaturation(saturation));
+        return this;
+    }
+
+    public HueGroup setBrightness(int brightness) {
+        if (brightness >= HueLight.MIN_BRIGHTNESS && brightness <= HueLight.MAX_BRIGHTNESS) mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(brightness));
+        return this;
+    }
+
+    public HueGroup setColorTemperature(int colorTemperature) {
+        if (colorTemperature >= HueLight.MIN_COLOR_TEMPERATURE && colorTemperature <= HueLight.MAX_COLOR_TEMPERATURE) {
+            mailbox.update(HueStateUpdate.COLOR_TEMPERATURE, update -> update.withColorTemperature(colorTemperature));
+        }
+        return this;
+    }
+
+    /**
+     * Flashes every light of the group; see {@link HueLight#setAlert(HueLight.HueAlert)}.
+     */
+    public HueGroup setAlert(HueLight.HueAlert alert) {
+        mailbox.update(HueStateUpdate.ALERT, update -> update.withAlert(alert));
+        return this;
+    }
+
+    public HueGroup setTransitionTime(int milliseconds) {
+        mailbox.update(HueStateUpdate.TRANSITION_TIME, update -> update.withTransitionTime(milliseconds / 100));
+        return this;
+    }
+
+    public HueGroup setEffect(HueLight.HueEffect effect) {
+        mailbox.update(HueStateUpdate.EFFECT, update -> update.withEffect(effect));
+        return this;
+    }
+
+    HueBridge getBridge() {
+        return parentBridge;
+    }
+
+    public List<HueLight> getLights() {
+        List<HueLight> lights = new ArrayList<>();
+        if (id == ALL_LIGHTS_ID) {
+            lights.addAll(parentBridge.getLights());
+        } else {
+            for (int lightId : lightIds) {
+                HueLight light = parentBridge.getLight(lightId);
+                if (light != null) lights.add(light);
+            }
+        }
+        return lights;
+    }
+
+    public List<Integer> getLightIds() {
+        return lightIds;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isOn() {
+        return isOn;
+    }
+
+    public int getBrightness() {
+        return brightness;
+    }
+
+    public int getHue() {
+        return hue;
+    }
+
+    public int getSaturation() {
+        return saturation;
+    }
+
+    public float getColorX() {
+        return colorX;
+    }
+
+    public float getColorY() {
+        return colorY;
+    }
+
+    public int getColorTemperature() {
+        return colorTemperature;
+    }
+}
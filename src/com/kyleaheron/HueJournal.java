@@ -0,0 +1,254 @@
+package com.kyleaheron;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only binary log of a bridge's requests: when each was sent, its method, path and body, how long the
+ * response took and its HTTP status. Start one with {@link HueBridge#startRecording(File)} and replay it with
+ * {@link HueJournalReplay}.
+ *
+ * The file is written through a memory mapping that grows in {@value #REGION_SIZE} byte regions, so recording a request
+ * is a copy into memory with no system call. Each record's length is written last and unwritten space reads as zero, so
+ * a journal cut short by a crash still reads up to its last complete record. A journal is read back through a single
+ * mapping, so recording stops with a warning once the file would grow past {@value #MAX_SIZE} bytes.
+ *
+ * Layout, big-endian: a header of magic {@code HUEJ}, version and the wall clock time recording started, then per
+ * record its length, offset from the start and latency in nanoseconds, HTTP status (0 if there was no response),
+ * method, and the length-prefixed UTF-8 path and body.
+ */
+public class HueJournal implements AutoCloseable {
+
+    static Logger logger = Logger.getLogger(HueJournal.class.getName());
+
+    private static final int MAGIC = 0x4855454A;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    // length, time, latency, status, method, path length, body length
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 2 + 1 + 2 + 4;
+    private static final int REGION_SIZE = 16 << 20;
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final String[] METHODS = {"GET", "PUT", "POST", "DELETE"};
+
+    private final File file;
+    private final RandomAccessFile output;
+    private final FileChannel channel;
+    private final long startNanos;
+    private final long maxSize;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long records;
+    private boolean closed;
+
+    private HueJournal(File file, long maxSize) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.output = new RandomAccessFile(file, "rw");
+        this.channel = output.getChannel();
+        channel.truncate(0);
+        this.startNanos = System.nanoTime();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(REGION_SIZE, maxSize));
+        region.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a journal at {@code file}, replacing what was there.
+     */
+    public static HueJournal create(File file) throws IOException {
+        return new HueJournal(file, MAX_SIZE);
+    }
+
+    /**
+     * Creates a journal that stops recording at {@code maxSize} bytes, for tests.
+     */
+    static HueJournal create(File file, long maxSize) throws IOException {
+        return new HueJournal(file, maxSize);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Appends one request. {@code sentAt} is a {@link System#nanoTime()} reading.
+     */
+    void record(String method, String path, byte[] body, int length, long sentAt, long latencyNanos, int status) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_OVERHEAD + pathBytes.length + length;
+        synchronized (this) {
+            if (closed) return;
+            try {
+                if (region.remaining() < size) {
+                    long end = regionStart + region.position();
+                    if (end + size > maxSize) {
+                        logger.log(Level.WARNING, String.format("Journal %s is full at %d records, later requests are not recorded",
+                                file, records));
+                        closed = true;
+                        return;
+                    }
+                    // Map on from the end of the last record, so records stay contiguous in the file
+                    regionStart = end;
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart,
+                            Math.min(Math.max(REGION_SIZE, size), maxSize - regionStart));
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not grow journal " + file + ", later requests are not recorded", e);
+                closed = true;
+                return;
+            }
+            int start = region.position();
+            region.position(start + 4);
+            region.putLong(sentAt - startNanos)
+                    .putLong(latencyNanos)
+                    .putShort((short) status)
+                    .put((byte) methodIndex(method))
+                    .putShort((short) pathBytes.length)
+                    .put(pathBytes)
+                    .putInt(length);
+            if (length > 0) region.put(body, 0, length);
+            region.putInt(start, size);
+            records++;
+        }
+    }
+
+    /**
+     * Flushes the journal and trims the file to what was written. Later requests are not recorded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed && !channel.isOpen()) return;
+        closed = true;
+        region.force();
+        long end = regionStart + region.position();
+        try {
+            channel.truncate(end);
+        } catch (IOException e) {
+            // Some platforms refuse to truncate a mapped file; the zeros after the last record read as the end
+        }
+        output.close();
+    }
+
+    private static int methodIndex(String method) {
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) return i;
+        }
+        throw new IllegalArgumentException("Unsupported method " + method);
+    }
+
+    /**
+     * Reads every complete record of the journal at {@code file}.
+     */
+    public static List<Entry> read(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            // Records never extend past MAX_SIZE; a crashed recording can leave mapped zeros beyond it
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), MAX_SIZE));
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) throw new IOException(file + " is not a Hue journal");
+            int version = buffer.getInt();
+            if (version != VERSION) throw new IOException("Unsupported journal version " + version);
+            long startMillis = buffer.getLong();
+
+            List<Entry> entries = new ArrayList<>();
+            while (buffer.remaining() >= RECORD_OVERHEAD) {
+                int start = buffer.position();
+                int size = buffer.getInt();
+                if (size < RECORD_OVERHEAD || size > buffer.remaining() + 4) break;
+                long time = buffer.getLong();
+                long latency = buffer.getLong();
+                int status = buffer.getShort() & 0xffff;
+                String method = METHODS[buffer.get()];
+                byte[] path = new byte[buffer.getShort() & 0xffff];
+                buffer.get(path);
+                byte[] body = new byte[buffer.getInt()];
+                buffer.get(body);
+                entries.add(new Entry(startMillis, time, latency, status, method, new String(path, StandardCharsets.UTF_8), body));
+                buffer.position(start + size);
+            }
+            return Collections.unmodifiableList(entries);
+        }
+    }
+
+    /**
+     * One recorded request.
+     */
+    public static final class Entry {
+        private final long startMillis;
+        private final long timeNanos;
+        private final long latencyNanos;
+        private final int status;
+        private final String method;
+        private final String path;
+        private final byte[] body;
+
+        Entry(long startMillis, long timeNanos, long latencyNanos, int status, String method, String path, byte[] body) {
+            this.startMillis = startMillis;
+            this.timeNanos = timeNanos;
+            this.latencyNanos = latencyNanos;
+            this.status = status;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+
+        /**
+         * When the request was sent, in nanoseconds since recording started.
+         */
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        /**
+         * When the request was sent, as wall clock milliseconds.
+         */
+        public long getTimeMillis() {
+            return startMillis + timeNanos / 1000000;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * The HTTP status of the response, or 0 if there was none.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public byte[] getBody() {
+            return body.clone();
+        }
+
+        byte[] body() {
+            return body;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3fms %s %s %s -> %d in %.3fms", timeNanos / 1e6, method, path,
+                    new String(body, StandardCharsets.UTF_8), status, latencyNanos / 1e6);
+        }
+    }
+}
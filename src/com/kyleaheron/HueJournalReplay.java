@@ -0,0 +1,312 @@
+package com.kyleaheron;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a {@link HueJournal} against a bridge, a {@link HueBridgeSimulator} or any other {@link HueTransport}, and
+ * reports the throughput achieved with latency percentiles next to the recorded ones.
+ *
+ * Requests go out at their recorded offsets divided by the speed, so 1 reproduces the original timing and 4 plays it
+ * four times as fast; at infinite speed they go out as fast as the worker threads allow. Pairing requests are skipped.
+ *
+ * Usage: {@code HueJournalReplay <journal> <host[:port]|simulator> [speed|max, default 1] [username] [threads]}.
+ * A real bridge needs a username paired with it; the simulator accepts the recorded ones.
+ */
+public class HueJournalReplay {
+
+    private final List<HueJournal.Entry> entries;
+    private final HueTransport target;
+    private volatile String username;
+    private volatile double speed = 1;
+    private volatile int threads = HueConnectionPool.DEFAULT_MAX_CONNECTIONS;
+
+    public HueJournalReplay(List<HueJournal.Entry> entries, HueTransport target) {
+        List<HueJournal.Entry> commands = new ArrayList<>();
+        for (HueJournal.Entry entry : entries) {
+            if (!entry.getPath().equals("/api")) commands.add(entry);
+        }
+        this.entries = Collections.unmodifiableList(commands);
+        this.target = target;
+    }
+
+    /**
+     * How many times faster than recorded to replay; {@link Double#POSITIVE_INFINITY} replays as fast as possible.
+     */
+    public void setSpeed(double speed) {
+        if (speed <= 0) throw new IllegalArgumentException("speed must be positive");
+        this.speed = speed;
+    }
+
+    /**
+     * Sends every request as this user instead of the recorded one.
+     */
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * How many requests may be in flight at once, which is also how far a fast replay can run ahead: once that many
+     * are outstanding the next one waits for a response before it goes out, and counts as behind schedule.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.threads = threads;
+    }
+
+    public Report run() throws InterruptedException {
+        int count = entries.size();
+        long[] latencies = new long[count];
+        LongAdder failures = new LongAdder();
+        LongAdder errors = new LongAdder();
+        LongAccumulator maxLag = new LongAccumulator(Math::max, 0);
+        CountDownLatch done = new CountDownLatch(count);
+        int workerCount = threads;
+        // The pool's queue is unbounded, so hold requests back here rather than queue them where latency can't see it
+        Semaphore slots = new Semaphore(workerCount);
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount, HueBridge.daemonThreads("hue-replay"));
+        double rate = speed;
+        long first = count > 0 ? entries.get(0).getTimeNanos() : 0;
+        long begin = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                HueJournal.Entry entry = entries.get(i);
+                long due = Double.isInfinite(rate) ? begin : begin + (long) ((entry.getTimeNanos() - first) / rate);
+                long wait = due - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                slots.acquire();
+                int index = i;
+                workers.execute(() -> {
+                    long start = System.nanoTime();
+                    if (!Double.isInfinite(rate)) maxLag.accumulate(start - due);
+                    try {
+                        errors.add(send(entry));
+                        latencies[index] = System.nanoTime() - start;
+                    } catch (IOException | RuntimeException e) {
+                        failures.increment();
+                        latencies[index] = -1;
+                    } finally {
+                        slots.release();
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            workers.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long[] recorded = new long[count];
+        for (int i = 0; i < count; i++) {
+            recorded[i] = entries.get(i).getLatencyNanos();
+        }
+        return new Report(count, failures.sum(), errors.sum(), elapsed, maxLag.get(), rate, successful(latencies), recorded);
+    }
+
+    /**
+     * Sends one request, returning the number of error entries in the response.
+     */
+    private int send(HueJournal.Entry entry) throws IOException {
+        String path = rewrite(entry.getPath());
+        byte[] body = entry.body();
+        HueBridgeComm.requestMethod method = HueBridgeComm.requestMethod.valueOf(entry.getMethod());
+        if (method == HueBridgeComm.requestMethod.GET) {
+            // Reads can be large objects, so they are only drained
+            target.exchange(entry.getMethod(), path, body, body.length, (status, in) -> {
+                HueBridgeComm.checkStatus(status);
+                drain(in);
+                return null;
+            });
+            return 0;
+        }
+        List<HueException> errors = new ArrayList<>();
+        HueBridgeComm.request(target, method, path, body, body.length, errors);
+        return errors.size();
+    }
+
+    private String rewrite(String path) {
+        String user = username;
+        int resource = path.indexOf('/', 5);
+        if (user == null || !path.startsWith("/api/") || resource < 0) return path;
+        return "/api/" + user + path.substring(resource);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) >= 0) {
+            // Discard
+        }
+    }
+
+    private static long[] successful(long[] latencies) {
+        long[] successful = Arrays.stream(latencies).filter(latency -> latency >= 0).toArray();
+        Arrays.sort(successful);
+        return successful;
+    }
+
+    /**
+     * A simulator with enough lights and groups to answer every request in {@code entries}, and their users paired.
+     */
+    static HueBridgeSimulator simulatorFor(List<HueJournal.Entry> entries) {
+        int lights = 0;
+        int groups = 0;
+        List<String> users = new ArrayList<>();
+        for (HueJournal.Entry entry : entries) {
+            String[] parts = entry.getPath().split("/");
+            if (parts.length < 3) continue;
+            if (!users.contains(parts[2])) users.add(parts[2]);
+            if (parts.length < 5) continue;
+            try {
+                if (parts[3].equals("lights")) lights = Math.max(lights, Integer.parseInt(parts[4]));
+                if (parts[3].equals("groups")) groups = Math.max(groups, Integer.parseInt(parts[4]));
+            } catch (NumberFormatException e) {
+                // Not an id, e.g. lights/new
+            }
+        }
+        HueBridgeSimulator simulator = new HueBridgeSimulator("replay", lights);
+        List<Integer> allLights = new ArrayList<>();
+        for (int id = 1; id <= lights; id++) {
+            allLights.add(id);
+        }
+        for (int id = 1; id <= groups; id++) {
+            simulator.addGroup("Group " + id, "LightGroup", allLights);
+        }
+        for (String user : users) {
+            simulator.addUser(user);
+        }
+        return simulator;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: HueJournalReplay <journal> <host[:port]|simulator> [speed|max] [username] [threads]");
+            System.exit(2);
+        }
+        List<HueJournal.Entry> entries = HueJournal.read(new File(args[0]));
+        HueTransport target = args[1].equals("simulator") ? simulatorFor(entries) : HueConnectionPool.forAddress(args[1]);
+        try {
+            HueJournalReplay replay = new HueJournalReplay(entries, target);
+            if (args.length > 2) replay.setSpeed(args[2].equals("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(args[2]));
+            if (args.length > 3 && !args[3].isEmpty()) replay.setUsername(args[3]);
+            if (args.length > 4) replay.setThreads(Integer.parseInt(args[4]));
+            System.out.println(replay.run());
+        } finally {
+            target.close();
+        }
+    }
+
+    /**
+     * The outcome of a replay. Latencies cover the requests that got a response.
+     */
+    public static final class Report {
+        private static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+        private static final String[] LABELS = {"p50", "p90", "p99", "p99.9", "max"};
+
+        private final int requests;
+        private final long failures;
+        private final long errors;
+        private final long elapsedNanos;
+        private final long maxLagNanos;
+        private final double speed;
+        private final long[] latencies;
+        private final long[] recordedLatencies;
+
+        Report(int requests, long failures, long errors, long elapsedNanos, long maxLagNanos, double speed,
+               long[] latencies, long[] recordedLatencies) {
+            this.requests = requests;
+            this.failures = failures;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.maxLagNanos = maxLagNanos;
+            this.speed = speed;
+            this.latencies = latencies;
+            this.recordedLatencies = recordedLatencies.clone();
+            Arrays.sort(this.recordedLatencies);
+        }
+
+        public int getRequestCount() {
+            return requests;
+        }
+
+        /**
+         * Requests that got no usable response, e.g. refused connections or a 503.
+         */
+        public long getFailureCount() {
+            return failures;
+        }
+
+        /**
+         * Error entries in the responses, e.g. a light that is off or error 901 from an overloaded bridge.
+         */
+        public long getBridgeErrorCount() {
+            return errors;
+        }
+
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : requests / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * How far behind its recorded time, scaled by the speed, the latest request went out.
+         */
+        public double getMaxLagMillis() {
+            return maxLagNanos / 1e6;
+        }
+
+        /**
+         * The latency in milliseconds below which {@code percentile} (0 to 100) of the replayed requests completed.
+         */
+        public double getLatencyMillis(double percentile) {
+            return percentile(latencies, percentile) / 1e6;
+        }
+
+        public double getRecordedLatencyMillis(double percentile) {
+            return percentile(recordedLatencies, percentile) / 1e6;
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(sorted.length * Math.max(0, Math.min(100, percentile)) / 100);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format(
+                    "Replayed %d requests in %.2f s at %s: %.1f requests/s%n",
+                    requests, getElapsedSeconds(), Double.isInfinite(speed) ? "max speed" : speed + "x", getThroughput()));
+            report.append(String.format("Failed: %d, bridge errors: %d, most behind schedule: %.1f ms%n",
+                    failures, errors, getMaxLagMillis()));
+            report.append(String.format("%-14s", "Latency (ms)"));
+            for (String label : LABELS) {
+                report.append(String.format("%10s", label));
+            }
+            report.append(String.format("%n%-14s", "replayed"));
+            for (double percentile : PERCENTILES) {
+                report.append(String.format("%10.3f", getLatencyMillis(percentile)));
+            }
+            report.append(String.format("%n%-14s", "recorded"));
+            for (double percentile : PERCENTILES) {
+                report.append(String.format("%10.3f", getRecordedLatencyMillis(percentile)));
+            }
+            return report.toString();
+        }
+    }
+}
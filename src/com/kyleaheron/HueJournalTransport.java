@@ -0,0 +1,47 @@
+package com.kyleaheron;
+
+import java.io.IOException;
+
+/**
+ * Wraps a bridge's transport to record every exchange into a {@link HueJournal} while one is set. Without a journal it
+ * only passes requests through.
+ */
+final class HueJournalTransport implements HueTransport {
+
+    private final HueTransport delegate;
+    private volatile HueJournal journal;
+
+    HueJournalTransport(HueTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    HueJournal getJournal() {
+        return journal;
+    }
+
+    void setJournal(HueJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public <T> T exchange(String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException {
+        HueJournal current = journal;
+        if (current == null) return delegate.exchange(method, path, body, length, handler);
+
+        int[] status = new int[1];
+        long start = System.nanoTime();
+        try {
+            return delegate.exchange(method, path, body, length, (code, in) -> {
+                status[0] = code;
+                return handler.handle(code, in);
+            });
+        } finally {
+            current.record(method, path, body, length, start, System.nanoTime() - start, status[0]);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,350 @@
+package com.kyleaheron;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming decoders for the bridge's bulk resources. Each one walks the response with a {@link JsonReader} and writes
+ * the handful of attributes the library keeps straight into the bridge, light and group objects, skipping everything
+ * else without materialising it.
+ */
+final class HueJsonDecoder {
+
+    private HueJsonDecoder() {
+    }
+
+    /**
+     * Decodes {@code GET /config} into the bridge.
+     */
+    static Boolean readConfig(JsonReader reader, HueBridge bridge) throws IOException {
+        String name = null;
+        String mac = null;
+        String netmask = null;
+        boolean dhcp = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "mac":
+                    mac = reader.nextString();
+                    break;
+                case "netmask":
+                    netmask = reader.nextString();
+                    break;
+                case "dhcp":
+                    dhcp = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        bridge.initializeConfig(name, mac, netmask, dhcp);
+        return true;
+    }
+
+    /**
+     * Decodes {@code GET /lights} into one initialised {@link HueLight} per entry. Lights the bridge already has take
+     * the listed state in place, so a refresh does not take new slots in the state store for them.
+     */
+    static List<HueLight> readLights(JsonReader reader, HueBridge bridge) throws IOException {
+        List<HueLight> lights = new ArrayList<>();
+        StateFields state = new StateFields();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int id = Integer.parseInt(reader.nextName());
+            String type = null;
+            String name = null;
+            String modelId = null;
+            String softwareVersion = null;
+            state.reset();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "state":
+                        state.read(reader);
+                        break;
+                    case "type":
+                        type = reader.nextString();
+                        break;
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "modelid":
+                        modelId = reader.nextString();
+                        break;
+                    case "swversion":
+                        softwareVersion = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            HueLight light = bridge.getLight(id);
+            if (light != null) {
+                light.applyPolledState(state.on, state.brightness, state.hue, state.saturation, state.x, state.y,
+                        state.colorTemperature, state.alert, state.effect, name);
+            } else {
+                light = new HueLight(bridge, id);
+                light.initializeStateVariables(state.on, state.brightness, state.hue, state.saturation, state.x, state.y,
+                        state.colorTemperature, state.alert, state.effect, type, name, modelId, softwareVersion);
+            }
+            lights.add(light);
+        }
+        reader.endObject();
+        return lights;
+    }
+
+    /**
+     * Decodes {@code GET /groups} into one {@link HueGroup} per entry, including its last action.
+     */
+    static List<HueGroup> readGroups(JsonReader reader, HueBridge bridge) throws IOException {
+        List<HueGroup> groups = new ArrayList<>();
+        StateFields action = new StateFields();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int id = Integer.parseInt(reader.nextName());
+            String name = null;
+            String type = null;
+            List<Integer> lightIds = new ArrayList<>();
+            action.reset();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "type":
+                        type = reader.nextString();
+                        break;
+                    case "lights":
+                        readIds(reader, lightIds);
+                        break;
+                    case "action":
+                        action.read(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            HueGroup group = new HueGroup(bridge, id, name, type, lightIds);
+            group.initializeActionVariables(action.on, action.brightness, action.hue, action.saturation, action.x, action.y, action.colorTemperature);
+            groups.add(group);
+        }
+        reader.endObject();
+        return groups;
+    }
+
+    /**
+     * Decodes {@code GET /scenes}. Light states are not part of the listing and are fetched per scene on demand.
+     */
+    static List<HueScene> readScenes(JsonReader reader, HueBridge bridge) throws IOException {
+        List<HueScene> scenes = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String id = reader.nextName();
+            String name = null;
+            List<Integer> lightIds = new ArrayList<>();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "lights":
+                        readIds(reader, lightIds);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            scenes.add(new HueScene(bridge, id, name, lightIds));
+        }
+        reader.endObject();
+        return scenes;
+    }
+
+    /**
+     * Decodes a {@code GET /lights} poll against the lights the bridge already knows, applying only the attributes
+     * that differ. Returns the lights that changed; lights the bridge does not know yet are skipped.
+     */
+    static List<HueLight> readChangedLights(JsonReader reader, HueBridge bridge) throws IOException {
+        List<HueLight> changed = new ArrayList<>();
+        StateFields state = new StateFields();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            HueLight light = bridge.getLight(Integer.parseInt(reader.nextName()));
+            if (light == null) {
+                reader.skipValue();
+                continue;
+            }
+            String name = null;
+            state.reset();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "state":
+                        state.read(reader);
+                        break;
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            if (light.applyPolledState(state.on, state.brightness, state.hue, state.saturation, state.x, state.y,
+                    state.colorTemperature, state.alert, state.effect, name)) {
+                changed.add(light);
+            }
+        }
+        reader.endObject();
+        return changed;
+    }
+
+    /**
+     * Decodes a {@code GET /groups} poll into the groups the bridge already knows.
+     */
+    static Boolean readGroupStates(JsonReader reader, HueBridge bridge) throws IOException {
+        StateFields action = new StateFields();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            HueGroup group = bridge.getGroup(Integer.parseInt(reader.nextName()));
+            if (group == null) {
+                reader.skipValue();
+                continue;
+            }
+            List<Integer> lightIds = new ArrayList<>();
+            action.reset();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "lights":
+                        readIds(reader, lightIds);
+                        break;
+                    case "action":
+                        action.read(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            group.initializeActionVariables(action.on, action.brightness, action.hue, action.saturation, action.x, action.y, action.colorTemperature);
+            group.updateLightIds(lightIds);
+        }
+        reader.endObject();
+        return true;
+    }
+
+    private static void readIds(JsonReader reader, List<Integer> ids) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ids.add(reader.nextInt());
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Scratch holder for a light {@code state} or group {@code action} object, reused across entries. Attributes a
+     * light does not support (e.g. {@code xy} on a white bulb) keep their defaults.
+     */
+    private static class StateFields {
+        boolean on;
+        int brightness;
+        int hue;
+        int saturation;
+        float x;
+        float y;
+        int colorTemperature;
+        String alert;
+        String effect;
+
+        void reset() {
+            on = false;
+            brightness = 0;
+            hue = 0;
+            saturation = 0;
+            x = 0;
+            y = 0;
+            colorTemperature = 0;
+            alert = "none";
+            effect = "none";
+        }
+
+        void read(JsonReader reader) throws IOException {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (field) {
+                    case "on":
+                        on = reader.nextBoolean();
+                        break;
+                    case "bri":
+                        brightness = reader.nextInt();
+                        break;
+                    case "hue":
+                        hue = reader.nextInt();
+                        break;
+                    case "sat":
+                        saturation = reader.nextInt();
+                        break;
+                    case "xy":
+                        reader.beginArray();
+                        x = (float) reader.nextDouble();
+                        y = (float) reader.nextDouble();
+                        reader.endArray();
+                        break;
+                    case "ct":
+                        colorTemperature = reader.nextInt();
+                        break;
+                    case "alert":
+                        alert = reader.nextString();
+                        break;
+                    case "effect":
+                        effect = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+    }
+}
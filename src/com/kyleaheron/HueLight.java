@@ -1,18 +1,23 @@
 package com.kyleaheron;
 
-import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import javafx.scene.paint.Color;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 public class HueLight {
 
     static Logger logger = Logger.getLogger(HueLight.class.getName());
 
-    private static final int MAX_COMMAND_GAP = 100;
-
     public static final int MIN_BRIGHTNESS = 1;
     public static final int MAX_BRIGHTNESS = 254;
 
@@ -22,6 +27,19 @@ public class HueLight {
     public static final int MIN_SATURATION = 0;
     public static final int MAX_SATURATION = 254;
 
+    // Mireds, from about 6500 K down to 2000 K
+    public static final int MIN_COLOR_TEMPERATURE = 153;
+    public static final int MAX_COLOR_TEMPERATURE = 500;
+
+    private static final int FIELD_ON = 0;
+    private static final int FIELD_BRIGHTNESS = 1;
+    private static final int FIELD_HUE = 2;
+    private static final int FIELD_SATURATION = 3;
+    private static final int FIELD_XY = 4;
+    private static final int FIELD_COLOR_TEMPERATURE = 5;
+    private static final int FIELD_ALERT = 6;
+    private static final int FIELD_EFFECT = 7;
+
     enum HueEffect {
         NONE, COLORLOOP
     }
@@ -38,227 +56,478 @@ public class HueLight {
     private String softwareVersion;
 
     private boolean initialStateSyncComplete = false;
-    private boolean isOn;
-    private int brightness;
-    private int hue;
-    private int saturation;
-    private int colorTemperature;
-    private float colorX;
-    private float colorY;
-    private Color color;
-    private HueEffect effect;
-    private HueAlert alertEffect;
+    // State lives in the bridge's store, so bulk operations can work across all lights
+    private final HueLightStateStore store;
+    private final int slot;
+    private volatile HueColorConverter colorConverter = HueColorConverter.forModel(null);
 
 
-    private long lastBuffer;
-    private JsonObject outputBuffer = new JsonObject();
+    private final HueCommandMailbox mailbox;
+    private final HueCommandEncoder encoder = new HueCommandEncoder();
+    private final List<HueException> commandErrors = new ArrayList<>();
+    private String commandPath;
+    private String commandPathUsername;
+    private final Map<String, Integer> responseFields;
 
     HueLight(HueBridge parentBridge, int id) {
         this.parentBridge = parentBridge;
         this.id = id;
+        this.mailbox = new HueCommandMailbox(parentBridge.getMetrics());
+        this.responseFields = buildResponseFields(id);
+        this.store = parentBridge.getLightStateStore();
+        this.slot = store.allocate(this);
+    }
+
+    /**
+     * Gives up the light's slot in the state store. Only for lights that were never handed out, such as the copies a
+     * light listing is merged from.
+     */
+    void release() {
+        store.release(slot);
+    }
+
+    /**
+     * Queues the fields of {@code update} in one step; see {@link HueCommandMailbox#merge(HueStateUpdate, int)}.
+     */
+    boolean merge(HueStateUpdate update, int unchanged) {
+        return mailbox.merge(update, unchanged);
+    }
+
+    /**
+     * Whether no change is pending or on its way to the bridge.
+     */
+    boolean isIdle() {
+        return mailbox.isIdle();
+    }
+
+    /**
+     * The light's slot in {@link HueBridge#getLightStateStore()}.
+     */
+    public int getSlot() {
+        return slot;
     }
 
     public void show() {
-        if (outputBuffer.size() > 0) {
+        showAsync().join();
+    }
+
+    /**
+     * Queues the buffered state changes on the bridge's command scheduler without blocking the caller.
+     */
+    public CompletableFuture<Boolean> showAsync() {
+        return showAsync(HueCommandScheduler.Priority.NORMAL);
+    }
+
+    public CompletableFuture<Boolean> showAsync(HueCommandScheduler.Priority priority) {
+        return mailbox.dispatch(
+                task -> parentBridge.getCommandScheduler().submit(HueCommandScheduler.CommandClass.LIGHT, priority, this, task),
+                this::sendState);
+    }
+
+    private boolean sendState(HueStateUpdate command, long sequence) {
+        parentBridge.onCommandSent();
+        HueCommandScheduler scheduler = parentBridge.getCommandScheduler();
+        // Guards the encoder and the error list; the mailbox already sends one update at a time
+        synchronized (encoder) {
+            byte[] body = encoder.encode(command);
+            commandErrors.clear();
             try {
-                double changeInMs = ((double)(System.nanoTime() - lastBuffer)) / 1000000;
-                if (changeInMs < MAX_COMMAND_GAP) {
-                    int sleepDuration = (int)(MAX_COMMAND_GAP - ((double)(System.nanoTime() - lastBuffer) / 1000000));
-                    if (sleepDuration > 0) Thread.sleep(sleepDuration);
-                }
-                List<JsonObject> response = HueBridgeComm.request(
+                int successes = HueBridgeComm.requestResults(
+                        parentBridge.getTransport(),
                         HueBridgeComm.requestMethod.PUT,
-                        HueBridge.formatPath(
-                                parentBridge.getIpAddress(),
-                                parentBridge.getUsername(),
-                                String.format("lights/%d/state", getId())),
-                                outputBuffer);
-                if (response.size() > 0) {
-                    updateStateVariables(response);
-                    outputBuffer = new JsonObject();
-                } else {
-                    // No response was given
+                        getStatePath(),
+                        body,
+                        encoder.length(),
+                        this::updateStateVariables,
+                        commandErrors);
+                if (!commandErrors.isEmpty()) {
+                    scheduler.commandFailed(mailbox, command, sequence, commandErrors, this::showAsync);
                 }
-            } catch (InterruptedException e) {
+                return successes > 0;
+            } catch (IOException e) {
+                scheduler.commandFailed(mailbox, command, sequence, e, this::showAsync);
+            } catch (IllegalStateException | NumberFormatException e) {
                 e.printStackTrace();
             }
-            lastBuffer = System.nanoTime();
+            return false;
+        }
+    }
+
+    private String getStatePath() {
+        String username = parentBridge.getUsername();
+        if (commandPath == null || username != commandPathUsername) {
+            commandPath = HueBridge.formatPath(username, String.format("lights/%d/state", getId()));
+            commandPathUsername = username;
         }
+        return commandPath;
     }
 
     void initializeStateVariables(boolean isOn, int brightness, int hue, int saturation, float x, float y, int colorTemperature, String alert, String effect, String lightType, String lightName, String lightModelId, String lightSoftwareVersion) {
         if (!initialStateSyncComplete) {
-            this.isOn = isOn;
-            this.brightness = brightness;
-            this.hue = hue;
-            this.saturation = saturation;
-            this.colorX = x;
-            this.colorY = y;
-            this.colorTemperature = colorTemperature;
-            if (alert == HueAlert.LSELECT.name()) {
-                this.alertEffect = HueAlert.LSELECT;
-            } else if (alert == HueAlert.SELECT.name()) {
-                this.alertEffect = HueAlert.SELECT;
-            } else {
-                this.alertEffect = HueAlert.NONE;
-            }
-            if (effect == HueEffect.COLORLOOP.name()) {
-                this.effect = HueEffect.COLORLOOP;
-            } else {
-                this.effect = HueEffect.NONE;
-            }
+            setState(isOn, brightness, hue, saturation, x, y, colorTemperature, parseAlert(alert), parseEffect(effect));
             this.type = lightType;
             this.name = lightName;
             this.modelId = lightModelId;
+            this.colorConverter = HueColorConverter.forModel(lightModelId);
             this.softwareVersion = lightSoftwareVersion;
             this.initialStateSyncComplete = true;
         }
     }
 
-    private void updateStateVariables(List<JsonObject> response) {
-        response.stream().filter(object -> object.has("success")).forEach(object -> {
-            JsonObject stateInfo = object.get("success").getAsJsonObject();
-            if (stateInfo.has(String.format("/lights/%d/state/bri", getId()))) {
-                this.brightness = stateInfo.get(String.format("/lights/%d/state/bri", getId())).getAsInt();
-            }
-            if (stateInfo.has(String.format("/lights/%d/state/on", getId()))) {
-                this.isOn = stateInfo.get(String.format("/lights/%d/state/on", getId())).getAsBoolean();
-            }
-            if (stateInfo.has(String.format("/lights/%d/state/hue", getId()))) {
-                this.hue = stateInfo.get(String.format("/lights/%d/state/hue", getId())).getAsInt();
-            }
-            if (stateInfo.has(String.format("/lights/%d/state/sat", getId()))) {
-                this.saturation = stateInfo.get(String.format("/lights/%d/state/sat", getId())).getAsInt();
-            }
-            if (stateInfo.has(String.format("/lights/%d/state/xy", getId()))) {
-                colorX = stateInfo.get(String.format("/lights/%d/state/xy", getId())).getAsJsonArray().get(0).getAsFloat();
-                colorY = stateInfo.get(String.format("/lights/%d/state/xy", getId())).getAsJsonArray().get(1).getAsFloat();
-            }
-            if (stateInfo.has(String.format("/lights/%d/state/ct", getId()))) {
-                this.colorTemperature = stateInfo.get(String.format("/lights/%d/state/ct", getId())).getAsInt();
-            }
-            if (stateInfo.has(String.format("/lights/%d/state/alert", getId()))) {
-                String alertEffect = stateInfo.get(String.format("/lights/%d/state/alert", getId())).getAsString();
-                if (alertEffect.equals(HueAlert.SELECT.name())) {
-                    this.alertEffect = HueAlert.SELECT;
-                } else if (alertEffect.equals(HueAlert.LSELECT.name())) {
-                    this.alertEffect = HueAlert.LSELECT;
-                } else {
-                    this.alertEffect = HueAlert.NONE;
-                }
+    /**
+     * Applies state read by the bridge's poller. Returns {@code true} if anything differed from the cached state.
+     */
+    boolean applyPolledState(boolean isOn, int brightness, int hue, int saturation, float x, float y, int colorTemperature, String alert, String effect, String lightName) {
+        HueAlert alertEffect = parseAlert(alert);
+        HueEffect hueEffect = parseEffect(effect);
+        if (isOn() == isOn && getBrightness() == brightness && getHue() == hue && getSaturation() == saturation
+                && getColorX() == x && getColorY() == y && getColorTemperature() == colorTemperature
+                && getAlertEffect() == alertEffect && getEffect() == hueEffect
+                && (lightName == null || lightName.equals(this.name))) {
+            return false;
+        }
+        setState(isOn, brightness, hue, saturation, x, y, colorTemperature, alertEffect, hueEffect);
+        if (lightName != null && !lightName.equals(this.name)) {
+            this.name = lightName;
+            parentBridge.onLightRenamed(this);
+        }
+        return true;
+    }
+
+    private void setState(boolean isOn, int brightness, int hue, int saturation, float x, float y, int colorTemperature, HueAlert alert, HueEffect effect) {
+        store.setOn(slot, isOn);
+        store.setBrightness(slot, brightness);
+        store.setHue(slot, hue);
+        store.setSaturation(slot, saturation);
+        store.setXY(slot, x, y);
+        store.setColorTemperature(slot, colorTemperature);
+        store.setAlert(slot, alert);
+        store.setEffect(slot, effect);
+    }
+
+    /**
+     * Applies a single state attribute reported by the bridge for a group action or scene recall that included this
+     * light, using the same names as the {@code /lights/<id>/state} resource.
+     */
+    void applyStateField(String field, JsonElement value) {
+        switch (field) {
+            case "on":
+                store.setOn(slot, value.getAsBoolean());
+                break;
+            case "bri":
+                store.setBrightness(slot, value.getAsInt());
+                break;
+            case "hue":
+                store.setHue(slot, value.getAsInt());
+                break;
+            case "sat":
+                store.setSaturation(slot, value.getAsInt());
+                break;
+            case "xy":
+                store.setXY(slot, value.getAsJsonArray().get(0).getAsFloat(), value.getAsJsonArray().get(1).getAsFloat());
+                break;
+            case "ct":
+                store.setColorTemperature(slot, value.getAsInt());
+                break;
+            case "alert":
+                store.setAlert(slot, parseAlert(value.getAsString()));
+                break;
+            case "effect":
+                store.setEffect(slot, parseEffect(value.getAsString()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Applies an attribute pushed by the event stream, like {@link #applyStateField(String, JsonElement)}. Returns
+     * whether it was news: a value the cache already holds, or the value of the update this light is sending, is the
+     * bridge echoing the library's own command rather than a change made elsewhere.
+     */
+    boolean applyEventField(String field, JsonElement value) {
+        HueStateUpdate sending = mailbox.getSending();
+        boolean echo;
+        switch (field) {
+            case "on":
+                boolean on = value.getAsBoolean();
+                echo = on == isOn() || sending.has(HueStateUpdate.ON) && on == sending.on;
+                break;
+            case "bri":
+                // The event stream reports brightness as a percentage, which does not round-trip exactly
+                int brightness = value.getAsInt();
+                echo = Math.abs(brightness - getBrightness()) <= 1
+                        || sending.has(HueStateUpdate.BRIGHTNESS) && Math.abs(brightness - sending.brightness) <= 1;
+                break;
+            case "xy":
+                float x = value.getAsJsonArray().get(0).getAsFloat();
+                float y = value.getAsJsonArray().get(1).getAsFloat();
+                echo = closeTo(x, y, getColorX(), getColorY())
+                        || sending.has(HueStateUpdate.XY) && closeTo(x, y, sending.x, sending.y);
+                break;
+            case "ct":
+                echo = value.getAsInt() == getColorTemperature();
+                break;
+            default:
+                echo = false;
+                break;
+        }
+        applyStateField(field, value);
+        return !echo;
+    }
+
+    private static boolean closeTo(float x, float y, float otherX, float otherY) {
+        return Math.abs(x - otherX) < 0.001f && Math.abs(y - otherY) < 0.001f;
+    }
+
+    /**
+     * Applies one {@code success} object from a state write. Each address is looked up in the table built for this
+     * light, so there is no formatting or string comparison per attribute.
+     */
+    void updateStateVariables(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Integer field = responseFields.get(reader.nextName());
+            if (field == null || reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
             }
-            if (stateInfo.has(String.format("/lights/%d/state/effect", getId()))) {
-                String effect = stateInfo.get(String.format("/lights/%d/state/effect", getId())).getAsString();
-                if (effect.equals(HueEffect.COLORLOOP.name())) {
-                    this.effect = HueEffect.COLORLOOP;
-                } else {
-                    this.effect = HueEffect.NONE;
-                }
+            switch (field) {
+                case FIELD_ON:
+                    store.setOn(slot, reader.nextBoolean());
+                    break;
+                case FIELD_BRIGHTNESS:
+                    store.setBrightness(slot, reader.nextInt());
+                    break;
+                case FIELD_HUE:
+                    store.setHue(slot, reader.nextInt());
+                    break;
+                case FIELD_SATURATION:
+                    store.setSaturation(slot, reader.nextInt());
+                    break;
+                case FIELD_XY:
+                    reader.beginArray();
+                    float x = (float) reader.nextDouble();
+                    float y = (float) reader.nextDouble();
+                    reader.endArray();
+                    store.setXY(slot, x, y);
+                    break;
+                case FIELD_COLOR_TEMPERATURE:
+                    store.setColorTemperature(slot, reader.nextInt());
+                    break;
+                case FIELD_ALERT:
+                    store.setAlert(slot, parseAlert(reader.nextString()));
+                    break;
+                case FIELD_EFFECT:
+                    store.setEffect(slot, parseEffect(reader.nextString()));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
             }
-        });
+        }
+        reader.endObject();
+    }
+
+    private static Map<String, Integer> buildResponseFields(int id) {
+        String prefix = "/lights/" + id + "/state/";
+        Map<String, Integer> fields = new HashMap<>();
+        fields.put(prefix + "on", FIELD_ON);
+        fields.put(prefix + "bri", FIELD_BRIGHTNESS);
+        fields.put(prefix + "hue", FIELD_HUE);
+        fields.put(prefix + "sat", FIELD_SATURATION);
+        fields.put(prefix + "xy", FIELD_XY);
+        fields.put(prefix + "ct", FIELD_COLOR_TEMPERATURE);
+        fields.put(prefix + "alert", FIELD_ALERT);
+        fields.put(prefix + "effect", FIELD_EFFECT);
+        return fields;
+    }
+
+    static HueAlert parseAlert(String alert) {
+        if (alert == null) return HueAlert.NONE;
+        switch (alert) {
+            case "select":
+            case "SELECT":
+                return HueAlert.SELECT;
+            case "lselect":
+            case "LSELECT":
+                return HueAlert.LSELECT;
+            default:
+                return HueAlert.NONE;
+        }
     }
 
-    private double[] RGBtoXY(double r, double g, double b) {
-        double[] color = new double[2];
-        double redRatio = (r / 255f);
-        double greenRatio = (g / 255f);
-        double blueRatio = (b / 255f);
-        double red = ((redRatio > 0.04045f) ? Math.pow((redRatio + 0.055f) / (1.0f + 0.055f), 2.4f) : (redRatio / 12.92f));
-        double green = ((greenRatio > 0.04045f) ? Math.pow((greenRatio + 0.055f) / (1.0f + 0.055f), 2.4f) : (greenRatio / 12.92f));
-        double blue = ((blueRatio > 0.04045f) ? Math.pow((blueRatio + 0.055f) / (1.0f + 0.055f), 2.4f) : (blueRatio / 12.92f));
-        double x = (red * 0.664511f + green * 0.154324f + blue * 0.162028f);
-        double y = (red * 0.283881f + green * 0.668433f + blue * 0.047685f);
-        double z = (red * 0.000088f + green * 0.072310f + blue * 0.986039f);
-        color[0] = x / (x + y + z);
-        color[1] = y / (x + y + z);
-        return color;
+    static HueEffect parseEffect(String effect) {
+        if (effect == null) return HueEffect.NONE;
+        switch (effect) {
+            case "colorloop":
+            case "COLORLOOP":
+                return HueEffect.COLORLOOP;
+            default:
+                return HueEffect.NONE;
+        }
     }
 
     public void setName(String name) {
+        setNameAsync(name).join();
+    }
+
+    public CompletableFuture<Boolean> setNameAsync(String name) {
+        return CompletableFuture.supplyAsync(() -> putName(name), parentBridge.getExecutor());
+    }
+
+    private boolean putName(String name) {
         JsonObject nameToSend = new JsonObject();
         nameToSend.addProperty("name", name);
         List<JsonObject> response = HueBridgeComm.request(
+                parentBridge.getTransport(),
                 HueBridgeComm.requestMethod.PUT,
-                HueBridge.formatPath(parentBridge.getIpAddress(), parentBridge.getUsername(), "lights/" + getId()),
+                HueBridge.formatPath(parentBridge.getUsername(), "lights/" + getId()),
                 nameToSend
         );
-        if (response.size() > 0 && response.get(0).getAsJsonObject().has("success")) this.name = name;
+        if (response.size() > 0 && response.get(0).getAsJsonObject().has("success")) {
+            this.name = name;
+            parentBridge.onLightRenamed(this);
+            return true;
+        }
+        return false;
     }
 
     public HueLight setOn(boolean state) {
-        if (state != isOn()) outputBuffer.addProperty("on", state);
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(state), state == isOn());
         return this;
     }
 
     public HueLight setHue(int hue) {
-        if (hue >= MIN_HUE && hue <= MAX_HUE && hue != getHue()) outputBuffer.addProperty("hue", hue);
+        if (hue >= MIN_HUE && hue <= MAX_HUE) mailbox.update(HueStateUpdate.HUE, update -> update.withHue(hue), hue == getHue());
         return this;
     }
 
     public HueLight setColor(Color c) {
-        color = c;
-        double[] color = RGBtoXY(c.getRed(), c.getGreen(), c.getBlue());
-        JsonArray array = new JsonArray();
-        array.add(color[0]);
-        array.add(color[1]);
-        outputBuffer.add("xy", array);
+        long xy = colorConverter.toXY(
+                (int) Math.round(c.getRed() * 255),
+                (int) Math.round(c.getGreen() * 255),
+                (int) Math.round(c.getBlue() * 255));
+        return setXY(HueColorConverter.x(xy), HueColorConverter.y(xy));
+    }
+
+    /**
+     * Sets the colour directly in CIE xy, e.g. from {@link HueColorConverter#convert(int[], float[])}.
+     */
+    public HueLight setXY(float x, float y) {
+        mailbox.update(HueStateUpdate.XY, update -> update.withXY(x, y));
         return this;
     }
 
     public HueLight setSaturation(int saturation) {
-        if (saturation >= MIN_SATURATION && saturation <= MAX_SATURATION && saturation != getSaturation()) outputBuffer.addProperty("sat", saturation);
+        if (saturation >= MIN_SATURATION && saturation <= MAX_SATURATION) mailbox.update(HueStateUpdate.SATURATION, update -> update.withSaturation(saturation), saturation == getSaturation());
         return this;
     }
 
     public HueLight setBrightness(int brightness) {
-        if (brightness >= MIN_BRIGHTNESS && brightness <= MAX_BRIGHTNESS && brightness != getBrightness()) outputBuffer.addProperty("bri", brightness);
+        if (brightness >= MIN_BRIGHTNESS && brightness <= MAX_BRIGHTNESS) mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(brightness), brightness == getBrightness());
+        return this;
+    }
+
+    /**
+     * Sets the white colour temperature in mireds, from {@link #MIN_COLOR_TEMPERATURE} to {@link #MAX_COLOR_TEMPERATURE}.
+     */
+    public HueLight setColorTemperature(int colorTemperature) {
+        if (colorTemperature >= MIN_COLOR_TEMPERATURE && colorTemperature <= MAX_COLOR_TEMPERATURE) {
+            mailbox.update(HueStateUpdate.COLOR_TEMPERATURE, update -> update.withColorTemperature(colorTemperature),
+                    colorTemperature == getColorTemperature());
+        }
+        return this;
+    }
+
+    /**
+     * Flashes the light once, or for 15 seconds with {@link HueAlert#LSELECT}. Unlike other attributes an alert is
+     * never retried after a failure, since a late flash would only confuse.
+     */
+    public HueLight setAlert(HueAlert alert) {
+        mailbox.update(HueStateUpdate.ALERT, update -> update.withAlert(alert));
         return this;
     }
 
     public HueLight setTransitionTime(int milliseconds) {
-        outputBuffer.addProperty("transitiontime", milliseconds / 100);
+        mailbox.update(HueStateUpdate.TRANSITION_TIME, update -> update.withTransitionTime(milliseconds / 100));
         return this;
     }
 
     public HueLight setEffect(HueEffect effect) {
-        outputBuffer.addProperty("effect", effect.name());
+        mailbox.update(HueStateUpdate.EFFECT, update -> update.withEffect(effect));
         return this;
     }
 
+    /**
+     * Number of attribute changes that were overwritten by a newer value before they could be sent.
+     */
+    public long getMergedUpdateCount() {
+        return mailbox.getMergedUpdateCount();
+    }
+
+    public long getSubmittedUpdateCount() {
+        return mailbox.getSubmittedUpdateCount();
+    }
+
+    public long getSentCommandCount() {
+        return mailbox.getSentCommandCount();
+    }
+
+    HueBridge getBridge() {
+        return parentBridge;
+    }
+
     public int getId() {
         return id;
     }
 
     public boolean isOn() {
-        return isOn;
+        return store.isOn(slot);
     }
 
+    /**
+     * The light's current colour as last reported by the bridge, derived from its xy coordinate and brightness.
+     */
     public Color getColor() {
-        return color;
+        int rgb = colorConverter.toRGB(getColorX(), getColorY(), getBrightness());
+        return Color.rgb((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+    }
+
+    public float getColorX() {
+        return store.getColorX(slot);
+    }
+
+    public float getColorY() {
+        return store.getColorY(slot);
+    }
+
+    public HueColorConverter getColorConverter() {
+        return colorConverter;
     }
 
     public int getBrightness() {
-        return brightness;
+        return store.getBrightness(slot);
     }
 
     public int getHue() {
-        return hue;
+        return store.getHue(slot);
     }
 
     public int getSaturation() {
-        return saturation;
+        return store.getSaturation(slot);
     }
 
     public int getColorTemperature() {
-        return colorTemperature;
+        return store.getColorTemperature(slot);
     }
 
     public HueAlert getAlertEffect() {
-        return alertEffect;
+        return store.getAlert(slot);
     }
 
     public HueEffect getEffect() {
-        return effect;
+        return store.getEffect(slot);
     }
 
     public String getType() {
@@ -0,0 +1,10 @@
+package com.kyleaheron;
+
+/**
+ * Notified when the bridge reports a change to a light that did not come from this library, e.g. a wall switch or
+ * another app.
+ */
+public interface HueLightListener {
+
+    void lightChanged(HueLight light);
+}
@@ -0,0 +1,127 @@
+package com.kyleaheron;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lights of one bridge, keyed by id with secondary indexes by name, model and type.
+ *
+ * Readers work on an immutable snapshot and never lock, so iterating the lights while the poller or a light search is
+ * updating them is safe. Writers are serialised and publish a fresh snapshot; lights change rarely enough that copying
+ * the indexes on write is far cheaper than synchronising every lookup.
+ */
+final class HueLightRegistry {
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<HueLight>emptyList());
+
+    HueLight get(int id) {
+        return snapshot.byId.get(id);
+    }
+
+    /**
+     * An unmodifiable list of every light, ordered by id. The list does not change once returned.
+     */
+    List<HueLight> getAll() {
+        return snapshot.all;
+    }
+
+    List<HueLight> getByName(String name) {
+        return lookup(snapshot.byName, name);
+    }
+
+    List<HueLight> getByModel(String modelId) {
+        return lookup(snapshot.byModel, modelId);
+    }
+
+    List<HueLight> getByType(String type) {
+        return lookup(snapshot.byType, type);
+    }
+
+    int size() {
+        return snapshot.all.size();
+    }
+
+    /**
+     * Reconciles the registry with a complete light listing from the bridge. Lights already registered keep their
+     * instance and take the listed state, new ones are added and ones missing from the listing are dropped. Returns
+     * the lights that were added.
+     */
+    synchronized List<HueLight> merge(Collection<HueLight> listed) {
+        Map<Integer, HueLight> current = snapshot.byId;
+        List<HueLight> merged = new ArrayList<>(listed.size());
+        List<HueLight> added = new ArrayList<>();
+        for (HueLight light : listed) {
+            HueLight existing = current.get(light.getId());
+            if (existing == null) {
+                merged.add(light);
+                added.add(light);
+            } else if (existing == light) {
+                merged.add(existing);
+            } else {
+                existing.applyPolledState(light.isOn(), light.getBrightness(), light.getHue(), light.getSaturation(),
+                        light.getColorX(), light.getColorY(), light.getColorTemperature(),
+                        light.getAlertEffect().name(), light.getEffect().name(), light.getName());
+                merged.add(existing);
+                light.release();
+            }
+        }
+        snapshot = new Snapshot(merged);
+        return added;
+    }
+
+    /**
+     * Rebuilds the secondary indexes after a light's name changed.
+     */
+    synchronized void reindex() {
+        snapshot = new Snapshot(snapshot.all);
+    }
+
+    private static List<HueLight> lookup(Map<String, List<HueLight>> index, String key) {
+        List<HueLight> lights = key == null ? null : index.get(key);
+        return lights == null ? Collections.<HueLight>emptyList() : lights;
+    }
+
+    private static class Snapshot {
+        final List<HueLight> all;
+        final Map<Integer, HueLight> byId;
+        final Map<String, List<HueLight>> byName;
+        final Map<String, List<HueLight>> byModel;
+        final Map<String, List<HueLight>> byType;
+
+        Snapshot(Collection<HueLight> lights) {
+            List<HueLight> sorted = new ArrayList<>(lights);
+            sorted.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+            Map<Integer, HueLight> byId = new HashMap<>();
+            Map<String, List<HueLight>> byName = new HashMap<>();
+            Map<String, List<HueLight>> byModel = new HashMap<>();
+            Map<String, List<HueLight>> byType = new HashMap<>();
+            for (HueLight light : sorted) {
+                byId.put(light.getId(), light);
+                index(byName, light.getName(), light);
+                index(byModel, light.getModelId(), light);
+                index(byType, light.getType(), light);
+            }
+            this.all = Collections.unmodifiableList(sorted);
+            this.byId = byId;
+            this.byName = freeze(byName);
+            this.byModel = freeze(byModel);
+            this.byType = freeze(byType);
+        }
+
+        private static void index(Map<String, List<HueLight>> index, String key, HueLight light) {
+            if (key == null) return;
+            index.computeIfAbsent(key, k -> new ArrayList<>(2)).add(light);
+        }
+
+        private static Map<String, List<HueLight>> freeze(Map<String, List<HueLight>> index) {
+            for (Map.Entry<String, List<HueLight>> entry : index.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            return index;
+        }
+    }
+}
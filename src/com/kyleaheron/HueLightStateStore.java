@@ -0,0 +1,410 @@
+package com.kyleaheron;
+
+import java.util.Arrays;
+
+/**
+ * The state of every light of a bridge in primitive arrays, one slot per light. {@link HueLight}'s state getters read
+ * from here, and the bulk operations work across all lights without touching a light object:
+ * {@link #capture(Snapshot)} copies every slot into a reusable {@link Snapshot}, {@link Snapshot#diff(Snapshot, int[])}
+ * finds the slots that differ between two captures, and {@link #apply(Snapshot, int[], int)} queues the changes that
+ * bring lights to a captured or computed state. Capturing and diffing allocate nothing once the snapshot is big
+ * enough; applying builds one update for each light it changes, and showing that takes a future.
+ *
+ * Slots live in fixed pages of {@value #PAGE_SIZE} so the arrays never move while lights are added. On, alert and
+ * effect share a byte of flags; brightness and saturation are a byte each and hue a char, as their ranges allow.
+ */
+public final class HueLightStateStore {
+
+    static final int PAGE_SIZE = 256;
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int ON = 1;
+    private static final int ALERT_SHIFT = 1;
+    private static final int ALERT_MASK = 3 << ALERT_SHIFT;
+    private static final int EFFECT_SHIFT = 3;
+    private static final int EFFECT_MASK = 1 << EFFECT_SHIFT;
+
+    // The fields apply() restores
+    private static final int APPLIED_FIELDS = HueStateUpdate.ON | HueStateUpdate.BRIGHTNESS | HueStateUpdate.HUE
+            | HueStateUpdate.SATURATION | HueStateUpdate.XY | HueStateUpdate.EFFECT;
+
+    private static final HueLight.HueAlert[] ALERTS = HueLight.HueAlert.values();
+    private static final HueLight.HueEffect[] EFFECTS = HueLight.HueEffect.values();
+
+    private volatile Page[] pages = new Page[0];
+    private int slots;
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+
+    /**
+     * Takes a slot for {@code light}, reusing a released one if there is any.
+     */
+    synchronized int allocate(HueLight light) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            slot = slots++;
+            int page = slot >>> PAGE_SHIFT;
+            if (page >= pages.length || pages[page] == null) {
+                Page[] grown = page < pages.length ? pages : Arrays.copyOf(pages, Math.max(4, pages.length * 2));
+                grown[page] = new Page();
+                // Publish through the volatile field so readers see the new page
+                pages = grown;
+            }
+        }
+        Page page = pages[slot >>> PAGE_SHIFT];
+        page.clear(slot & PAGE_MASK);
+        page.lights[slot & PAGE_MASK] = light;
+        return slot;
+    }
+
+    synchronized void release(int slot) {
+        pages[slot >>> PAGE_SHIFT].lights[slot & PAGE_MASK] = null;
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, Math.max(8, freeCount * 2));
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * The number of slots in use or released, which bounds every slot index.
+     */
+    public synchronized int getSlotCount() {
+        return slots;
+    }
+
+    /**
+     * The light in {@code slot}, or {@code null} if the slot is free.
+     */
+    public HueLight getLight(int slot) {
+        return page(slot).lights[slot & PAGE_MASK];
+    }
+
+    private Page page(int slot) {
+        return pages[slot >>> PAGE_SHIFT];
+    }
+
+    boolean isOn(int slot) {
+        return (page(slot).flags[slot & PAGE_MASK] & ON) != 0;
+    }
+
+    int getBrightness(int slot) {
+        return page(slot).brightness[slot & PAGE_MASK] & 0xff;
+    }
+
+    int getHue(int slot) {
+        return page(slot).hue[slot & PAGE_MASK];
+    }
+
+    int getSaturation(int slot) {
+        return page(slot).saturation[slot & PAGE_MASK] & 0xff;
+    }
+
+    float getColorX(int slot) {
+        return page(slot).x[slot & PAGE_MASK];
+    }
+
+    float getColorY(int slot) {
+        return page(slot).y[slot & PAGE_MASK];
+    }
+
+    int getColorTemperature(int slot) {
+        return page(slot).colorTemperature[slot & PAGE_MASK];
+    }
+
+    HueLight.HueAlert getAlert(int slot) {
+        return ALERTS[(page(slot).flags[slot & PAGE_MASK] & ALERT_MASK) >>> ALERT_SHIFT];
+    }
+
+    HueLight.HueEffect getEffect(int slot) {
+        return EFFECTS[(page(slot).flags[slot & PAGE_MASK] & EFFECT_MASK) >>> EFFECT_SHIFT];
+    }
+
+    void setOn(int slot, boolean on) {
+        Page page = page(slot);
+        int index = slot & PAGE_MASK;
+        // On, alert and effect share a byte, so writers of any of them must not interleave
+        synchronized (page) {
+            page.flags[index] = (byte) (on ? page.flags[index] | ON : page.flags[index] & ~ON);
+        }
+    }
+
+    void setBrightness(int slot, int brightness) {
+        page(slot).brightness[slot & PAGE_MASK] = (byte) brightness;
+    }
+
+    void setHue(int slot, int hue) {
+        page(slot).hue[slot & PAGE_MASK] = (char) hue;
+    }
+
+    void setSaturation(int slot, int saturation) {
+        page(slot).saturation[slot & PAGE_MASK] = (byte) saturation;
+    }
+
+    void setXY(int slot, float x, float y) {
+        Page page = page(slot);
+        page.x[slot & PAGE_MASK] = x;
+        page.y[slot & PAGE_MASK] = y;
+    }
+
+    void setColorTemperature(int slot, int colorTemperature) {
+        page(slot).colorTemperature[slot & PAGE_MASK] = (short) colorTemperature;
+    }
+
+    void setAlert(int slot, HueLight.HueAlert alert) {
+        Page page = page(slot);
+        int index = slot & PAGE_MASK;
+        synchronized (page) {
+            page.flags[index] = (byte) (page.flags[index] & ~ALERT_MASK | alert.ordinal() << ALERT_SHIFT);
+        }
+    }
+
+    void setEffect(int slot, HueLight.HueEffect effect) {
+        Page page = page(slot);
+        int index = slot & PAGE_MASK;
+        synchronized (page) {
+            page.flags[index] = (byte) (page.flags[index] & ~EFFECT_MASK | effect.ordinal() << EFFECT_SHIFT);
+        }
+    }
+
+    /**
+     * A snapshot sized for the current lights. Keep and reuse it for {@link #capture(Snapshot)}.
+     */
+    public Snapshot newSnapshot() {
+        return new Snapshot(getSlotCount());
+    }
+
+    /**
+     * Copies every slot into {@code snapshot}, growing it only if lights were added since it was made.
+     */
+    public void capture(Snapshot snapshot) {
+        // The count first: a page table read after it covers every slot it counts
+        int count = getSlotCount();
+        Page[] current = pages;
+        snapshot.ensureCapacity(count);
+        for (int p = 0; p * PAGE_SIZE < count; p++) {
+            Page page = current[p];
+            int offset = p * PAGE_SIZE;
+            int length = Math.min(PAGE_SIZE, count - offset);
+            System.arraycopy(page.flags, 0, snapshot.flags, offset, length);
+            System.arraycopy(page.brightness, 0, snapshot.brightness, offset, length);
+            System.arraycopy(page.hue, 0, snapshot.hue, offset, length);
+            System.arraycopy(page.saturation, 0, snapshot.saturation, offset, length);
+            System.arraycopy(page.x, 0, snapshot.x, offset, length);
+            System.arraycopy(page.y, 0, snapshot.y, offset, length);
+            System.arraycopy(page.colorTemperature, 0, snapshot.colorTemperature, offset, length);
+            for (int i = 0; i < length; i++) {
+                snapshot.present[offset + i] = page.lights[i] != null;
+            }
+        }
+        snapshot.size = count;
+    }
+
+    /**
+     * Queues the changes that bring the lights in the first {@code count} entries of {@code slots} to their state in
+     * {@code target}, and shows them. Only attributes that differ from the light's current state are sent. Colour is
+     * restored through xy, and alerts are not replayed. Each light's changes go into its pending update in one step.
+     * Returns the number of lights that had changes.
+     */
+    public int apply(Snapshot target, int[] slots, int count) {
+        int changed = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = slots[i];
+            if (slot >= target.size || !target.present[slot]) continue;
+            HueLight light = getLight(slot);
+            if (light == null) continue;
+            int unchanged = 0;
+            if (target.isOn(slot) == isOn(slot)) unchanged |= HueStateUpdate.ON;
+            if (target.getBrightness(slot) == getBrightness(slot)) unchanged |= HueStateUpdate.BRIGHTNESS;
+            if (target.getHue(slot) == getHue(slot)) unchanged |= HueStateUpdate.HUE;
+            if (target.getSaturation(slot) == getSaturation(slot)) unchanged |= HueStateUpdate.SATURATION;
+            if (target.getColorX(slot) == getColorX(slot) && target.getColorY(slot) == getColorY(slot)) {
+                unchanged |= HueStateUpdate.XY;
+            }
+            if (target.getEffect(slot) == getEffect(slot)) unchanged |= HueStateUpdate.EFFECT;
+            // Nothing to send and nothing queued that could overwrite it, so skip building an update
+            if (unchanged == APPLIED_FIELDS && light.isIdle()) continue;
+
+            HueStateUpdate update = HueStateUpdate.ofState(APPLIED_FIELDS, target.isOn(slot), target.getBrightness(slot),
+                    target.getHue(slot), target.getSaturation(slot), target.getColorX(slot), target.getColorY(slot),
+                    target.getEffect(slot));
+            if (light.merge(update, unchanged)) {
+                light.showAsync();
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static final class Page {
+        final HueLight[] lights = new HueLight[PAGE_SIZE];
+        final byte[] flags = new byte[PAGE_SIZE];
+        final byte[] brightness = new byte[PAGE_SIZE];
+        final char[] hue = new char[PAGE_SIZE];
+        final byte[] saturation = new byte[PAGE_SIZE];
+        final float[] x = new float[PAGE_SIZE];
+        final float[] y = new float[PAGE_SIZE];
+        final short[] colorTemperature = new short[PAGE_SIZE];
+
+        void clear(int index) {
+            flags[index] = 0;
+            brightness[index] = 0;
+            hue[index] = 0;
+            saturation[index] = 0;
+            x[index] = 0;
+            y[index] = 0;
+            colorTemperature[index] = 0;
+        }
+    }
+
+    /**
+     * A copy of the state of every slot, in flat arrays indexed by slot. Its values can also be changed, to build a
+     * target state for {@link HueLightStateStore#apply(Snapshot, int[], int)}.
+     */
+    public static final class Snapshot {
+        private boolean[] present;
+        private byte[] flags;
+        private byte[] brightness;
+        private char[] hue;
+        private byte[] saturation;
+        private float[] x;
+        private float[] y;
+        private short[] colorTemperature;
+        private int size;
+
+        Snapshot(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            present = new boolean[capacity];
+            flags = new byte[capacity];
+            brightness = new byte[capacity];
+            hue = new char[capacity];
+            saturation = new byte[capacity];
+            x = new float[capacity];
+            y = new float[capacity];
+            colorTemperature = new short[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > present.length) allocate(capacity + capacity / 2);
+        }
+
+        /**
+         * The number of slots captured.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Whether a light held {@code slot} when this was captured.
+         */
+        public boolean isPresent(int slot) {
+            return present[slot];
+        }
+
+        public boolean isOn(int slot) {
+            return (flags[slot] & ON) != 0;
+        }
+
+        public int getBrightness(int slot) {
+            return brightness[slot] & 0xff;
+        }
+
+        public int getHue(int slot) {
+            return hue[slot];
+        }
+
+        public int getSaturation(int slot) {
+            return saturation[slot] & 0xff;
+        }
+
+        public float getColorX(int slot) {
+            return x[slot];
+        }
+
+        public float getColorY(int slot) {
+            return y[slot];
+        }
+
+        public int getColorTemperature(int slot) {
+            return colorTemperature[slot];
+        }
+
+        public HueLight.HueAlert getAlert(int slot) {
+            return ALERTS[(flags[slot] & ALERT_MASK) >>> ALERT_SHIFT];
+        }
+
+        public HueLight.HueEffect getEffect(int slot) {
+            return EFFECTS[(flags[slot] & EFFECT_MASK) >>> EFFECT_SHIFT];
+        }
+
+        public void setOn(int slot, boolean on) {
+            flags[slot] = (byte) (on ? flags[slot] | ON : flags[slot] & ~ON);
+        }
+
+        public void setBrightness(int slot, int value) {
+            brightness[slot] = (byte) Math.max(HueLight.MIN_BRIGHTNESS, Math.min(HueLight.MAX_BRIGHTNESS, value));
+        }
+
+        public void setHue(int slot, int value) {
+            hue[slot] = (char) Math.max(HueLight.MIN_HUE, Math.min(HueLight.MAX_HUE, value));
+        }
+
+        public void setSaturation(int slot, int value) {
+            saturation[slot] = (byte) Math.max(HueLight.MIN_SATURATION, Math.min(HueLight.MAX_SATURATION, value));
+        }
+
+        public void setXY(int slot, float x, float y) {
+            this.x[slot] = x;
+            this.y[slot] = y;
+        }
+
+        public void setColorTemperature(int slot, int value) {
+            colorTemperature[slot] = (short) value;
+        }
+
+        /**
+         * Writes the slots whose state differs from {@code other} into {@code changed}, which must hold as many entries
+         * as the larger of the two, and returns how many there are. Slots only one of the two has count as changed.
+         */
+        public int diff(Snapshot other, int[] changed) {
+            int common = Math.min(size, other.size);
+            int count = 0;
+            for (int slot = 0; slot < common; slot++) {
+                if (present[slot] != other.present[slot]
+                        || flags[slot] != other.flags[slot]
+                        || brightness[slot] != other.brightness[slot]
+                        || hue[slot] != other.hue[slot]
+                        || saturation[slot] != other.saturation[slot]
+                        || x[slot] != other.x[slot]
+                        || y[slot] != other.y[slot]
+                        || colorTemperature[slot] != other.colorTemperature[slot]) {
+                    changed[count++] = slot;
+                }
+            }
+            for (int slot = common; slot < Math.max(size, other.size); slot++) {
+                changed[count++] = slot;
+            }
+            return count;
+        }
+
+        /**
+         * Copies {@code other} into this snapshot.
+         */
+        public void copyFrom(Snapshot other) {
+            ensureCapacity(other.size);
+            System.arraycopy(other.present, 0, present, 0, other.size);
+            System.arraycopy(other.flags, 0, flags, 0, other.size);
+            System.arraycopy(other.brightness, 0, brightness, 0, other.size);
+            System.arraycopy(other.hue, 0, hue, 0, other.size);
+            System.arraycopy(other.saturation, 0, saturation, 0, other.size);
+            System.arraycopy(other.x, 0, x, 0, other.size);
+            System.arraycopy(other.y, 0, y, 0, other.size);
+            System.arraycopy(other.colorTemperature, 0, colorTemperature, 0, other.size);
+            size = other.size;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.kyleaheron;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measurements of one bridge's traffic: request latency by method and {@link RequestClass}, requests in flight, commands
+ * queued and how long they waited for the rate limit, coalesced updates, bytes sent and received, and errors by Hue
+ * error type.
+ *
+ * Recording only adds to {@link LongAdder}s, so it costs a few nanoseconds and does not contend between threads.
+ * Latencies go into log-linear histograms with four buckets per power of two. A percentile is reported as the upper
+ * bound of its bucket, which is at most 25% above the true value. Metrics can be read here, through JMX after {@link #registerMBean()}, or pushed to a
+ * {@link HueMetricsListener} as they happen.
+ */
+public class HueMetrics implements HueMetricsMXBean {
+
+    static Logger logger = Logger.getLogger(HueMetrics.class.getName());
+
+    /**
+     * What a request is about, from the resource its path names.
+     */
+    public enum RequestClass {
+        LIGHT, GROUP, CONFIG, OTHER
+    }
+
+    private static final String[] METHODS = {"GET", "PUT", "POST", "DELETE"};
+    private static final RequestClass[] REQUEST_CLASSES = RequestClass.values();
+
+    private final HueBridge bridge;
+    private final Histogram[] latencies = new Histogram[METHODS.length * REQUEST_CLASSES.length];
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder dequeuedCommands = new LongAdder();
+    private final LongAdder throttleWaitNanos = new LongAdder();
+    private final LongAdder coalescedUpdates = new LongAdder();
+    private final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+    private final List<HueMetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private ObjectName objectName;
+
+    HueMetrics(HueBridge bridge) {
+        this.bridge = bridge;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    public void addListener(HueMetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(HueMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as {@code com.kyleaheron:type=HueBridge,name="<id>"}.
+     * Returns the name, or {@code null} if registration failed.
+     */
+    public synchronized ObjectName registerMBean() {
+        if (objectName != null) return objectName;
+        try {
+            ObjectName name = new ObjectName("com.kyleaheron:type=HueBridge,name=" + ObjectName.quote(bridge.getUniqueDeviceId()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not register metrics for bridge " + bridge.getUniqueDeviceId(), e);
+        }
+        return objectName;
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.log(Level.FINE, "Metrics for bridge " + bridge.getUniqueDeviceId() + " were already unregistered", e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * Classifies a request path of the form {@code /api/<username>/<resource>/...}.
+     */
+    static RequestClass classify(String path) {
+        int resource = path.indexOf('/', 5) + 1;
+        if (resource == 0) return RequestClass.OTHER;
+        if (path.startsWith("lights", resource)) return RequestClass.LIGHT;
+        if (path.startsWith("groups", resource)) return RequestClass.GROUP;
+        if (path.startsWith("config", resource)) return RequestClass.CONFIG;
+        return RequestClass.OTHER;
+    }
+
+    void requestStarted() {
+        inFlight.increment();
+    }
+
+    void requestCompleted(String method, RequestClass requestClass, int status, long nanos, int sent, long received) {
+        inFlight.decrement();
+        histogram(method, requestClass).record(nanos);
+        bytesSent.add(sent);
+        bytesReceived.add(received);
+        for (HueMetricsListener listener : listeners) {
+            try {
+                listener.requestCompleted(method, requestClass, status, nanos, sent, received);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    void requestFailed(String method, RequestClass requestClass, int sent, IOException error) {
+        inFlight.decrement();
+        failedRequests.increment();
+        bytesSent.add(sent);
+        for (HueMetricsListener listener : listeners) {
+            try {
+                listener.requestFailed(method, requestClass, error);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    void commandDequeued(long nanos) {
+        dequeuedCommands.increment();
+        throttleWaitNanos.add(nanos);
+        for (HueMetricsListener listener : listeners) {
+            try {
+                listener.commandDequeued(nanos);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    void updateCoalesced() {
+        coalescedUpdates.increment();
+        for (HueMetricsListener listener : listeners) {
+            try {
+                listener.updateCoalesced();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    void bridgeError(HueException error) {
+        errors.computeIfAbsent(error.getCode(), type -> new LongAdder()).increment();
+        for (HueMetricsListener listener : listeners) {
+            try {
+                listener.bridgeError(error);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Metrics listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Records a bridge error against the bridge whose transport carried it. Transports that were not set up by a
+     * {@link HueBridge} have no metrics, and the error is only logged.
+     */
+    static void bridgeError(HueTransport transport, HueException error) {
+        if (transport instanceof HueMetricsTransport) ((HueMetricsTransport) transport).getMetrics().bridgeError(error);
+    }
+
+    private Histogram histogram(String method, RequestClass requestClass) {
+        int methodIndex = METHODS.length - 1;
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                methodIndex = i;
+                break;
+            }
+        }
+        return latencies[methodIndex * REQUEST_CLASSES.length + requestClass.ordinal()];
+    }
+
+    public long getRequestCount(String method, RequestClass requestClass) {
+        return histogram(method, requestClass).count.sum();
+    }
+
+    /**
+     * The latency in milliseconds below which {@code percentile} (0 to 100) of the requests with this method and class
+     * completed, or 0 if there were none.
+     */
+    public double getLatencyMillis(String method, RequestClass requestClass, double percentile) {
+        return histogram(method, requestClass).percentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public long getRequestCount() {
+        long count = 0;
+        for (Histogram histogram : latencies) {
+            count += histogram.count.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getFailedRequestCount() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public int getInFlightRequestCount() {
+        return (int) inFlight.sum();
+    }
+
+    @Override
+    public int getQueuedCommandCount() {
+        return bridge.getCommandScheduler().getQueuedCommandCount();
+    }
+
+    @Override
+    public long getDequeuedCommandCount() {
+        return dequeuedCommands.sum();
+    }
+
+    @Override
+    public double getTotalThrottleWaitMillis() {
+        return throttleWaitNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getMeanThrottleWaitMillis() {
+        long count = dequeuedCommands.sum();
+        return count == 0 ? 0 : throttleWaitNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public long getCoalescedUpdateCount() {
+        return coalescedUpdates.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : errors.entrySet()) {
+            counts.put(String.valueOf(entry.getKey()), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (int i = 0; i < latencies.length; i++) {
+            long count = latencies[i].count.sum();
+            if (count > 0) counts.put(key(i), count);
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencyMillis() {
+        Map<String, Double> means = new TreeMap<>();
+        for (int i = 0; i < latencies.length; i++) {
+            long count = latencies[i].count.sum();
+            if (count > 0) means.put(key(i), latencies[i].totalMicros.sum() / 1000.0 / count);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getP50LatencyMillis() {
+        return percentiles(50);
+    }
+
+    @Override
+    public Map<String, Double> getP99LatencyMillis() {
+        return percentiles(99);
+    }
+
+    private Map<String, Double> percentiles(double percentile) {
+        Map<String, Double> values = new TreeMap<>();
+        for (int i = 0; i < latencies.length; i++) {
+            if (latencies[i].count.sum() > 0) values.put(key(i), latencies[i].percentile(percentile) / 1000.0);
+        }
+        return values;
+    }
+
+    private static String key(int index) {
+        return METHODS[index / REQUEST_CLASSES.length] + " " + REQUEST_CLASSES[index % REQUEST_CLASSES.length];
+    }
+
+    /**
+     * Latencies in microseconds. The first four buckets hold 0 to 3 exactly; after that each power of two is split into
+     * four, up to 2^27 microseconds, about two minutes. Longer latencies all go into the top bucket.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 26 * SUB_BUCKETS;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        final LongAdder count = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            buckets[bucket(micros)].increment();
+            count.increment();
+            totalMicros.add(micros);
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return Math.min((exponent - 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+        }
+
+        /**
+         * The exclusive upper bound, in microseconds, of the values in bucket {@code index}.
+         */
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) return index + 1;
+            int exponent = index / SUB_BUCKETS + 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << (exponent - 2);
+        }
+
+        long percentile(double percentile) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= Math.max(1, rank)) return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.kyleaheron;
+
+import java.io.IOException;
+
+/**
+ * Receives a bridge's measurements as they are taken, e.g. to feed them into an application's own metrics registry.
+ * Register one with {@link HueMetrics#addListener(HueMetricsListener)} and override the events of interest.
+ *
+ * Callbacks run on the thread that did the work, often one of the bridge's I/O threads, and must return quickly.
+ */
+public interface HueMetricsListener {
+
+    /**
+     * A request got an HTTP response. Byte counts are of the request and response bodies.
+     */
+    default void requestCompleted(String method, HueMetrics.RequestClass requestClass, int status, long nanos,
+                                  int bytesSent, long bytesReceived) {
+    }
+
+    /**
+     * A request failed without a response, e.g. because the connection could not be made or was reset.
+     */
+    default void requestFailed(String method, HueMetrics.RequestClass requestClass, IOException error) {
+    }
+
+    /**
+     * A command left the scheduler's queue after waiting {@code nanos} for the bridge's rate limit and its turn.
+     */
+    default void commandDequeued(long nanos) {
+    }
+
+    /**
+     * A change to a light or group replaced an earlier change to the same attribute before it was sent.
+     */
+    default void updateCoalesced() {
+    }
+
+    /**
+     * The bridge answered with an error. {@link HueException#getType()} tells overload from a bad request.
+     */
+    default void bridgeError(HueException error) {
+    }
+}
@@ -0,0 +1,40 @@
+package com.kyleaheron;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a bridge's {@link HueMetrics}. Maps are keyed by request method and class, e.g. {@code "PUT LIGHT"},
+ * or by Hue error type.
+ */
+public interface HueMetricsMXBean {
+
+    long getRequestCount();
+
+    long getFailedRequestCount();
+
+    int getInFlightRequestCount();
+
+    int getQueuedCommandCount();
+
+    long getDequeuedCommandCount();
+
+    double getTotalThrottleWaitMillis();
+
+    double getMeanThrottleWaitMillis();
+
+    long getCoalescedUpdateCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Long> getRequestCounts();
+
+    Map<String, Double> getMeanLatencyMillis();
+
+    Map<String, Double> getP50LatencyMillis();
+
+    Map<String, Double> getP99LatencyMillis();
+}
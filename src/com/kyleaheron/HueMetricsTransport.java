@@ -0,0 +1,104 @@
+package com.kyleaheron;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wraps a bridge's transport to time every exchange and count the bytes it moves into the bridge's {@link HueMetrics}.
+ */
+final class HueMetricsTransport implements HueTransport {
+
+    private final HueTransport delegate;
+    private final HueMetrics metrics;
+
+    HueMetricsTransport(HueTransport delegate, HueMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    HueMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public <T> T exchange(String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException {
+        HueMetrics.RequestClass requestClass = HueMetrics.classify(path);
+        Exchange<T> exchange = new Exchange<>(handler);
+        metrics.requestStarted();
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = delegate.exchange(method, path, body, length, exchange);
+        } catch (IOException e) {
+            // A response that could not be read, such as a 503, still tells how the bridge is doing
+            if (exchange.status != 0) {
+                metrics.requestCompleted(method, requestClass, exchange.status, System.nanoTime() - start, length, exchange.received);
+            } else {
+                metrics.requestFailed(method, requestClass, length, e);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.requestFailed(method, requestClass, length, new IOException(e));
+            throw e;
+        }
+        metrics.requestCompleted(method, requestClass, exchange.status, System.nanoTime() - start, length, exchange.received);
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    /**
+     * Passes the response through to the real handler while noting its status and counting its bytes.
+     */
+    private static final class Exchange<T> extends FilterInputStream implements ResponseHandler<T> {
+        private final ResponseHandler<T> handler;
+        int status;
+        long received;
+
+        Exchange(ResponseHandler<T> handler) {
+            super(null);
+            this.handler = handler;
+        }
+
+        @Override
+        public T handle(int status, InputStream body) throws IOException {
+            this.status = status;
+            this.in = body;
+            try {
+                return handler.handle(status, this);
+            } finally {
+                this.in = null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = in.read();
+            if (value >= 0) received++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = in.read(buffer, offset, length);
+            if (count > 0) received += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(count);
+            received += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
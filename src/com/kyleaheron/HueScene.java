@@ -0,0 +1,124 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A scene stored on the bridge. The bridge only returns a scene's light states when it is fetched on its own, so they
+ * are loaded on first use and cached until the scene is stored again.
+ */
+public class HueScene {
+
+    private HueBridge parentBridge;
+    private String id;
+    private String name;
+    private volatile List<Integer> lightIds;
+    private volatile Map<Integer, JsonObject> lightStates;
+
+    HueScene(HueBridge parentBridge, String id, String name, List<Integer> lightIds) {
+        this.parentBridge = parentBridge;
+        this.id = id;
+        this.name = name;
+        this.lightIds = Collections.unmodifiableList(new ArrayList<>(lightIds));
+    }
+
+    /**
+     * Returns the stored state of each light in the scene, keyed by light id, fetching it from the bridge if needed.
+     */
+    Map<Integer, JsonObject> getLightStates() {
+        Map<Integer, JsonObject> states = lightStates;
+        if (states == null) {
+            states = new HashMap<>();
+            List<JsonObject> response = HueBridgeComm.request(
+                    parentBridge.getTransport(),
+                    HueBridgeComm.requestMethod.GET,
+                    HueBridge.formatPath(parentBridge.getUsername(), "scenes/" + getId()));
+            if (response.size() > 0 && response.get(0).has("lightstates")) {
+                for (Entry<String, JsonElement> lightState : response.get(0).get("lightstates").getAsJsonObject().entrySet()) {
+                    states.put(Integer.parseInt(lightState.getKey()), lightState.getValue().getAsJsonObject());
+                }
+                lightStates = states;
+            }
+        }
+        return states;
+    }
+
+    public void storeCurrentState() {
+        storeCurrentStateAsync().join();
+    }
+
+    /**
+     * Overwrites the scene with the current state of its lights.
+     */
+    public CompletableFuture<Boolean> storeCurrentStateAsync() {
+        JsonObject attributes = new JsonObject();
+        attributes.addProperty("storelightstate", true);
+        return CompletableFuture.supplyAsync(() -> putAttributes(attributes), parentBridge.getExecutor());
+    }
+
+    public void setLights(List<HueLight> lights) {
+        setLightsAsync(lights).join();
+    }
+
+    public CompletableFuture<Boolean> setLightsAsync(List<HueLight> lights) {
+        List<Integer> ids = new ArrayList<>();
+        for (HueLight light : lights) {
+            ids.add(light.getId());
+        }
+        JsonObject attributes = new JsonObject();
+        attributes.add("lights", HueBridge.toIdArray(ids));
+        attributes.addProperty("storelightstate", true);
+        return CompletableFuture.supplyAsync(() -> {
+            if (putAttributes(attributes)) {
+                this.lightIds = Collections.unmodifiableList(ids);
+                return true;
+            }
+            return false;
+        }, parentBridge.getExecutor());
+    }
+
+    public void setName(String name) {
+        setNameAsync(name).join();
+    }
+
+    public CompletableFuture<Boolean> setNameAsync(String name) {
+        JsonObject attributes = new JsonObject();
+        attributes.addProperty("name", name);
+        return CompletableFuture.supplyAsync(() -> {
+            if (putAttributes(attributes)) {
+                this.name = name;
+                return true;
+            }
+            return false;
+        }, parentBridge.getExecutor());
+    }
+
+    private boolean putAttributes(JsonObject attributes) {
+        List<JsonObject> response = HueBridgeComm.request(
+                parentBridge.getTransport(),
+                HueBridgeComm.requestMethod.PUT,
+                HueBridge.formatPath(parentBridge.getUsername(), "scenes/" + getId()),
+                attributes);
+        if (response.size() > 0 && response.get(0).has("success")) {
+            lightStates = null;
+            return true;
+        }
+        return false;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Integer> getLightIds() {
+        return lightIds;
+    }
+}
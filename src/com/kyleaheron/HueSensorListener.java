@@ -0,0 +1,12 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Notified of sensor updates pushed by the bridge's event stream. {@code type} is the event stream resource type
+ * (e.g. {@code motion}, {@code button}, {@code temperature}) and {@code data} the resource as the bridge sent it.
+ */
+public interface HueSensorListener {
+
+    void sensorChanged(int sensorId, String type, JsonObject data);
+}
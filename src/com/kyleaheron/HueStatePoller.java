@@ -0,0 +1,107 @@
+package com.kyleaheron;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a bridge's cached light and group state in step with changes made outside the library.
+ *
+ * Each poll streams {@code /lights} and {@code /groups} and compares them with the cached state as they are decoded,
+ * so only lights that actually changed are updated and reported to the bridge's {@link HueLightListener}s. The
+ * interval doubles after every quiet poll up to the maximum, and drops back to the minimum after a local command or a
+ * remote change, when further changes are most likely.
+ */
+class HueStatePoller {
+
+    static Logger logger = Logger.getLogger(HueStatePoller.class.getName());
+
+    static final int DEFAULT_MIN_INTERVAL = 1000;
+    static final int DEFAULT_MAX_INTERVAL = 16000;
+
+    private final HueBridge bridge;
+    private final long minInterval;
+    private final long maxInterval;
+
+    private volatile long interval;
+    private volatile boolean running = false;
+    private ScheduledFuture<?> nextPoll;
+
+    HueStatePoller(HueBridge bridge, int minInterval, int maxInterval) {
+        if (minInterval <= 0 || maxInterval < minInterval) throw new IllegalArgumentException("Invalid poll interval range");
+        this.bridge = bridge;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.interval = minInterval;
+    }
+
+    synchronized void start() {
+        if (running) return;
+        running = true;
+        interval = minInterval;
+        schedule(0);
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (nextPoll != null) nextPoll.cancel(false);
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Called after the library sends a command, so the poller looks for follow-on changes sooner.
+     */
+    void onLocalCommand() {
+        if (!running || interval == minInterval) return;
+        synchronized (this) {
+            interval = minInterval;
+            if (nextPoll != null && nextPoll.getDelay(TimeUnit.MILLISECONDS) > minInterval && nextPoll.cancel(false)) {
+                schedule(minInterval);
+            }
+        }
+    }
+
+    private synchronized void schedule(long delay) {
+        if (!running) return;
+        nextPoll = bridge.getScheduler().schedule(() -> bridge.getExecutor().execute(this::poll), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        if (!running) return;
+        boolean changed = false;
+        try {
+            List<HueLight> changedLights = HueBridgeComm.request(
+                    bridge.getTransport(),
+                    HueBridgeComm.requestMethod.GET,
+                    HueBridge.formatPath(bridge.getUsername(), "lights"),
+                    reader -> HueJsonDecoder.readChangedLights(reader, bridge));
+            HueBridgeComm.request(
+                    bridge.getTransport(),
+                    HueBridgeComm.requestMethod.GET,
+                    HueBridge.formatPath(bridge.getUsername(), "groups"),
+                    reader -> HueJsonDecoder.readGroupStates(reader, bridge));
+            if (changedLights != null && !changedLights.isEmpty()) {
+                changed = true;
+                for (HueLight light : changedLights) {
+                    bridge.fireLightChanged(light);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "State poll failed", e);
+        } finally {
+            synchronized (this) {
+                interval = changed ? minInterval : Math.min(maxInterval, interval * 2);
+                schedule(interval);
+            }
+        }
+    }
+
+    long getInterval() {
+        return interval;
+    }
+}
@@ -0,0 +1,132 @@
+package com.kyleaheron;
+
+/**
+ * An immutable set of pending attribute changes for a light or group, held as primitives plus a bitmask of the
+ * attributes that have been set. Setting an attribute returns a new update, which lets the mailbox publish it with a
+ * single compare-and-set.
+ */
+final class HueStateUpdate {
+
+    static final int ON = 1;
+    static final int BRIGHTNESS = 1 << 1;
+    static final int HUE = 1 << 2;
+    static final int SATURATION = 1 << 3;
+    static final int XY = 1 << 4;
+    static final int COLOR_TEMPERATURE = 1 << 5;
+    static final int TRANSITION_TIME = 1 << 6;
+    static final int EFFECT = 1 << 7;
+    static final int ALERT = 1 << 8;
+    static final int FIELD_COUNT = 9;
+
+    static final HueStateUpdate EMPTY = new HueStateUpdate();
+
+    final int dirty;
+    final boolean on;
+    final int brightness;
+    final int hue;
+    final int saturation;
+    final float x;
+    final float y;
+    final int colorTemperature;
+    final int transitionTime;
+    final HueLight.HueEffect effect;
+    final HueLight.HueAlert alert;
+
+    private HueStateUpdate() {
+        this(0, false, 0, 0, 0, 0, 0, 0, 0, HueLight.HueEffect.NONE, HueLight.HueAlert.NONE);
+    }
+
+    private HueStateUpdate(int dirty, boolean on, int brightness, int hue, int saturation, float x, float y,
+                           int colorTemperature, int transitionTime, HueLight.HueEffect effect, HueLight.HueAlert alert) {
+        this.dirty = dirty;
+        this.on = on;
+        this.brightness = brightness;
+        this.hue = hue;
+        this.saturation = saturation;
+        this.x = x;
+        this.y = y;
+        this.colorTemperature = colorTemperature;
+        this.transitionTime = transitionTime;
+        this.effect = effect;
+        this.alert = alert;
+    }
+
+    /**
+     * An update setting the {@code dirty} fields of a whole light state at once.
+     */
+    static HueStateUpdate ofState(int dirty, boolean on, int brightness, int hue, int saturation, float x, float y,
+                                  HueLight.HueEffect effect) {
+        return new HueStateUpdate(dirty, on, brightness, hue, saturation, x, y, 0, 0, effect, HueLight.HueAlert.NONE);
+    }
+
+    HueStateUpdate withOn(boolean on) {
+        return new HueStateUpdate(dirty | ON, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withBrightness(int brightness) {
+        return new HueStateUpdate(dirty | BRIGHTNESS, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withHue(int hue) {
+        return new HueStateUpdate(dirty | HUE, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withSaturation(int saturation) {
+        return new HueStateUpdate(dirty | SATURATION, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withXY(float x, float y) {
+        return new HueStateUpdate(dirty | XY, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withColorTemperature(int colorTemperature) {
+        return new HueStateUpdate(dirty | COLOR_TEMPERATURE, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withTransitionTime(int transitionTime) {
+        return new HueStateUpdate(dirty | TRANSITION_TIME, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withEffect(HueLight.HueEffect effect) {
+        return new HueStateUpdate(dirty | EFFECT, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    HueStateUpdate withAlert(HueLight.HueAlert alert) {
+        return new HueStateUpdate(dirty | ALERT, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    /**
+     * This update with the {@code fields} of {@code older} filled in wherever this one has not set them.
+     */
+    HueStateUpdate over(HueStateUpdate older, int fields) {
+        int fill = fields & older.dirty & ~dirty;
+        if (fill == 0) return this;
+        return new HueStateUpdate(dirty | fill,
+                (fill & ON) != 0 ? older.on : on,
+                (fill & BRIGHTNESS) != 0 ? older.brightness : brightness,
+                (fill & HUE) != 0 ? older.hue : hue,
+                (fill & SATURATION) != 0 ? older.saturation : saturation,
+                (fill & XY) != 0 ? older.x : x,
+                (fill & XY) != 0 ? older.y : y,
+                (fill & COLOR_TEMPERATURE) != 0 ? older.colorTemperature : colorTemperature,
+                (fill & TRANSITION_TIME) != 0 ? older.transitionTime : transitionTime,
+                (fill & EFFECT) != 0 ? older.effect : effect,
+                (fill & ALERT) != 0 ? older.alert : alert);
+    }
+
+    /**
+     * This update with only the {@code fields} it sets that are also in {@code fields}.
+     */
+    HueStateUpdate only(int fields) {
+        if ((dirty & ~fields) == 0) return this;
+        return new HueStateUpdate(dirty & fields, on, brightness, hue, saturation, x, y, colorTemperature, transitionTime, effect, alert);
+    }
+
+    boolean has(int field) {
+        return (dirty & field) != 0;
+    }
+
+    boolean isEmpty() {
+        return dirty == 0;
+    }
+}
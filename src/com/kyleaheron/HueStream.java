@@ -0,0 +1,236 @@
+package com.kyleaheron;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the colour of many lights to a bridge at a fixed frame rate, bypassing the REST API and its limit of about
+ * ten commands a second.
+ *
+ * Each frame is a HueStream v1 message: a 16 byte header followed by nine bytes per light (a device type, the light
+ * id and 16-bit x, y and brightness), at most ten lights per datagram. Frames are sent continuously from a dedicated
+ * thread whether or not anything changed, because the bridge drops the stream if it goes quiet and lost datagrams
+ * are never resent. Colours are set from any thread and picked up by the next frame; each light's colour is held in
+ * a single packed long, so a frame never mixes the old and new value of one light.
+ */
+public class HueStream implements Closeable {
+
+    static Logger logger = Logger.getLogger(HueStream.class.getName());
+
+    public static final int DEFAULT_FRAME_RATE = 50;
+    public static final int MAX_FRAME_RATE = 60;
+    static final int MAX_LIGHTS_PER_FRAME = 10;
+
+    static final int HEADER_LENGTH = 16;
+    static final int LIGHT_LENGTH = 9;
+    private static final byte[] PROTOCOL = "HueStream".getBytes(StandardCharsets.US_ASCII);
+    private static final byte COLOR_SPACE_XY = 0x01;
+    private static final byte DEVICE_TYPE_LIGHT = 0x00;
+
+    private final HueBridge bridge;
+    private final HueGroup group;
+    private final HueStreamTransport transport;
+    private final HueLight[] lights;
+    private final int[] lightIds;
+    // x, y and brightness of each light as three 16-bit fields
+    private final AtomicLongArray colors;
+    private final byte[] frame = new byte[HEADER_LENGTH + LIGHT_LENGTH * MAX_LIGHTS_PER_FRAME];
+
+    private volatile int frameRate = DEFAULT_FRAME_RATE;
+    private volatile boolean running = false;
+    private Thread thread;
+    private int sequence = 0;
+    private volatile long sentFrames = 0;
+
+    /**
+     * Creates a stream for {@code lights}. If {@code group} is given it must be an entertainment group on the bridge,
+     * and streaming is switched on for it when the stream starts and off again when it stops.
+     */
+    HueStream(HueBridge bridge, HueGroup group, List<HueLight> lights, HueStreamTransport transport) {
+        this.bridge = bridge;
+        this.group = group;
+        this.transport = transport;
+        this.lights = lights.toArray(new HueLight[0]);
+        this.lightIds = new int[this.lights.length];
+        this.colors = new AtomicLongArray(this.lights.length);
+        for (int i = 0; i < this.lights.length; i++) {
+            HueLight light = this.lights[i];
+            lightIds[i] = light.getId();
+            colors.set(i, pack(light.getColorX(), light.getColorY(), light.isOn() ? light.getBrightness() : 0));
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+        if (group != null && !group.setStreamActiveAsync(true).join()) {
+            throw new IOException("Bridge refused to start streaming to group " + group.getId());
+        }
+        transport.open();
+        running = true;
+        thread = new Thread(this::run, "hue-" + bridge.getUniqueDeviceId() + "-stream");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        LockSupport.unpark(current);
+        try {
+            current.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (group != null) group.setStreamActiveAsync(false);
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Sets the frame rate, up to {@link #MAX_FRAME_RATE}. Bridges render at about 25 Hz; higher rates mainly make up for
+     * lost datagrams.
+     */
+    public void setFrameRate(int frameRate) {
+        if (frameRate < 1 || frameRate > MAX_FRAME_RATE) throw new IllegalArgumentException("Frame rate must be between 1 and " + MAX_FRAME_RATE);
+        this.frameRate = frameRate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public long getSentFrameCount() {
+        return sentFrames;
+    }
+
+    public List<HueLight> getLights() {
+        List<HueLight> list = new ArrayList<>(lights.length);
+        for (HueLight light : lights) {
+            list.add(light);
+        }
+        return list;
+    }
+
+    /**
+     * Sets a light's colour in CIE xy with a brightness from 0 (off) to {@link HueLight#MAX_BRIGHTNESS}.
+     */
+    public HueStream setXY(HueLight light, float x, float y, int brightness) {
+        colors.set(indexOf(light), pack(x, y, brightness));
+        return this;
+    }
+
+    /**
+     * Sets a light's colour from 8-bit sRGB through the light's own {@link HueColorConverter}.
+     */
+    public HueStream setColor(HueLight light, int red, int green, int blue, int brightness) {
+        long xy = light.getColorConverter().toXY(red, green, blue);
+        return setXY(light, HueColorConverter.x(xy), HueColorConverter.y(xy), brightness);
+    }
+
+    /**
+     * Sets every light at once from packed {@code 0xRRGGBB} colours, one per light in the order of {@link #getLights()}.
+     */
+    public HueStream setColors(int[] rgb, int brightness) {
+        if (rgb.length < lights.length) throw new IllegalArgumentException("Expected " + lights.length + " colours");
+        for (int i = 0; i < lights.length; i++) {
+            int color = rgb[i];
+            long xy = lights[i].getColorConverter().toXY((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+            colors.set(i, pack(HueColorConverter.x(xy), HueColorConverter.y(xy), brightness));
+        }
+        return this;
+    }
+
+    private int indexOf(HueLight light) {
+        for (int i = 0; i < lights.length; i++) {
+            if (lights[i] == light) return i;
+        }
+        throw new IllegalArgumentException("Light " + light.getId() + " is not part of this stream");
+    }
+
+    private void run() {
+        long next = System.nanoTime();
+        while (running) {
+            try {
+                sendFrame();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Dropped stream frame: " + e.getMessage());
+            }
+            long period = 1000000000L / frameRate;
+            next += period;
+            long wait;
+            while (running && (wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            // After a stall, carry on from now rather than sending the missed frames in a burst
+            if (System.nanoTime() - next > period) next = System.nanoTime();
+        }
+    }
+
+    private void sendFrame() throws IOException {
+        for (int first = 0; first < lights.length; first += MAX_LIGHTS_PER_FRAME) {
+            int count = Math.min(MAX_LIGHTS_PER_FRAME, lights.length - first);
+            int length = encode(first, count);
+            transport.send(frame, length);
+        }
+        sentFrames++;
+    }
+
+    /**
+     * Writes the header and lights {@code first} to {@code first + count - 1} into the frame buffer and returns its length.
+     */
+    private int encode(int first, int count) {
+        System.arraycopy(PROTOCOL, 0, frame, 0, PROTOCOL.length);
+        frame[9] = 0x01; // Major version
+        frame[10] = 0x00; // Minor version
+        frame[11] = (byte) sequence++;
+        frame[12] = 0x00; // Reserved
+        frame[13] = 0x00;
+        frame[14] = COLOR_SPACE_XY;
+        frame[15] = 0x00; // Reserved
+
+        int offset = HEADER_LENGTH;
+        for (int i = first; i < first + count; i++) {
+            long color = colors.get(i);
+            frame[offset] = DEVICE_TYPE_LIGHT;
+            writeShort(offset + 1, lightIds[i]);
+            writeShort(offset + 3, (int) (color >>> 32));
+            writeShort(offset + 5, (int) (color >>> 16));
+            writeShort(offset + 7, (int) color);
+            offset += LIGHT_LENGTH;
+        }
+        return offset;
+    }
+
+    private void writeShort(int offset, int value) {
+        frame[offset] = (byte) (value >>> 8);
+        frame[offset + 1] = (byte) value;
+    }
+
+    private static long pack(float x, float y, int brightness) {
+        long scaledX = Math.round(Math.max(0f, Math.min(1f, x)) * 0xFFFF);
+        long scaledY = Math.round(Math.max(0f, Math.min(1f, y)) * 0xFFFF);
+        long scaledBrightness = Math.round(Math.max(0, Math.min(HueLight.MAX_BRIGHTNESS, brightness)) * (double) 0xFFFF / HueLight.MAX_BRIGHTNESS);
+        return (scaledX << 32) | (scaledY << 16) | scaledBrightness;
+    }
+}
@@ -0,0 +1,223 @@
+package com.kyleaheron;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The receiving end of a {@link HueStream} for tests and load tests: it listens for HueStream v1 datagrams on the
+ * loopback interface and measures how evenly they arrive. Point a {@link HueUdpStreamTransport} at
+ * {@link #getAddress()}.
+ *
+ * A frame is one pass over the stream's lights, which takes several datagrams for more than ten lights; a new frame
+ * starts with each datagram that carries the first light of the first datagram seen. The receiver reports the frame
+ * rate, the mean and largest gap between frames and the jitter (the standard deviation of those gaps), counts
+ * datagrams lost or reordered by their sequence number, and keeps the last colour received for each light.
+ */
+public class HueStreamReceiver implements Closeable {
+
+    static Logger logger = Logger.getLogger(HueStreamReceiver.class.getName());
+
+    private static final byte[] PROTOCOL = "HueStream".getBytes(StandardCharsets.US_ASCII);
+
+    private final DatagramChannel channel;
+    private final Thread thread;
+
+    // Guarded by this
+    private final Map<Integer, long[]> colors = new HashMap<>();
+    private int firstLightId = -1;
+    private int lastSequence = -1;
+    private long datagrams;
+    private long malformedDatagrams;
+    private long lostDatagrams;
+    private long frames;
+    private long firstFrameAt;
+    private long lastFrameAt;
+    private double meanInterval;
+    private double intervalSquares;
+    private long maxInterval;
+
+    public HueStreamReceiver() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread = new Thread(this::receive, "hue-stream-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Forgets everything measured so far, e.g. once a stream has warmed up. The colours received are kept.
+     */
+    public synchronized void reset() {
+        lastSequence = -1;
+        datagrams = 0;
+        malformedDatagrams = 0;
+        lostDatagrams = 0;
+        frames = 0;
+        meanInterval = 0;
+        intervalSquares = 0;
+        maxInterval = 0;
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                channel.receive(buffer);
+                long now = System.nanoTime();
+                buffer.flip();
+                datagramReceived(buffer, now);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Stream receiver failed", e);
+                return;
+            }
+        }
+    }
+
+    private synchronized void datagramReceived(ByteBuffer datagram, long now) {
+        int length = datagram.remaining();
+        if (length < HueStream.HEADER_LENGTH || (length - HueStream.HEADER_LENGTH) % HueStream.LIGHT_LENGTH != 0
+                || !hasProtocol(datagram) || datagram.get(9) != 0x01) {
+            malformedDatagrams++;
+            return;
+        }
+        datagrams++;
+        int sequence = datagram.get(11) & 0xFF;
+        if (lastSequence >= 0) {
+            // Sequence numbers are one byte and wrap
+            lostDatagrams += (sequence - lastSequence - 1) & 0xFF;
+        }
+        lastSequence = sequence;
+
+        for (int offset = HueStream.HEADER_LENGTH; offset < length; offset += HueStream.LIGHT_LENGTH) {
+            int lightId = datagram.getShort(offset + 1) & 0xFFFF;
+            if (offset == HueStream.HEADER_LENGTH) {
+                if (firstLightId < 0) firstLightId = lightId;
+                if (lightId == firstLightId) frameStarted(now);
+            }
+            long[] color = colors.get(lightId);
+            if (color == null) {
+                color = new long[3];
+                colors.put(lightId, color);
+            }
+            color[0] = datagram.getShort(offset + 3) & 0xFFFF;
+            color[1] = datagram.getShort(offset + 5) & 0xFFFF;
+            color[2] = datagram.getShort(offset + 7) & 0xFFFF;
+        }
+    }
+
+    private static boolean hasProtocol(ByteBuffer datagram) {
+        for (int i = 0; i < PROTOCOL.length; i++) {
+            if (datagram.get(i) != PROTOCOL[i]) return false;
+        }
+        return true;
+    }
+
+    private void frameStarted(long now) {
+        frames++;
+        if (frames == 1) {
+            firstFrameAt = now;
+        } else {
+            // Welford's running mean and sum of squares
+            long interval = now - lastFrameAt;
+            double delta = interval - meanInterval;
+            meanInterval += delta / (frames - 1);
+            intervalSquares += delta * (interval - meanInterval);
+            maxInterval = Math.max(maxInterval, interval);
+        }
+        lastFrameAt = now;
+    }
+
+    public synchronized long getDatagramCount() {
+        return datagrams;
+    }
+
+    /**
+     * Datagrams that were not HueStream v1 messages.
+     */
+    public synchronized long getMalformedDatagramCount() {
+        return malformedDatagrams;
+    }
+
+    /**
+     * Datagrams missing from the sequence; a reordered datagram counts as nearly a full wrap of 255.
+     */
+    public synchronized long getLostDatagramCount() {
+        return lostDatagrams;
+    }
+
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Frames per second between the first and last frame received.
+     */
+    public synchronized double getFrameRate() {
+        return frames < 2 ? 0 : (frames - 1) * 1e9 / (lastFrameAt - firstFrameAt);
+    }
+
+    public synchronized long getMeanFrameInterval() {
+        return Math.round(meanInterval);
+    }
+
+    public synchronized long getMaxFrameInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * The standard deviation of the gap between frames, in nanoseconds.
+     */
+    public synchronized long getJitter() {
+        return frames < 3 ? 0 : Math.round(Math.sqrt(intervalSquares / (frames - 2)));
+    }
+
+    /**
+     * Whether a colour has been received for {@code lightId}.
+     */
+    public synchronized boolean hasLight(int lightId) {
+        return colors.containsKey(lightId);
+    }
+
+    public synchronized float getX(int lightId) {
+        return colors.get(lightId)[0] / (float) 0xFFFF;
+    }
+
+    public synchronized float getY(int lightId) {
+        return colors.get(lightId)[1] / (float) 0xFFFF;
+    }
+
+    public synchronized int getBrightness(int lightId) {
+        return (int) Math.round(colors.get(lightId)[2] * (double) HueLight.MAX_BRIGHTNESS / 0xFFFF);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
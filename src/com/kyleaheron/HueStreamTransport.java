@@ -0,0 +1,19 @@
+package com.kyleaheron;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Carries streaming frames from a {@link HueStream} to one bridge. Frames are fire-and-forget datagrams; a lost frame
+ * is simply superseded by the next one. Bridges expect the stream to be DTLS encrypted, which an implementation can
+ * add by wrapping {@link HueUdpStreamTransport} or replacing it.
+ */
+public interface HueStreamTransport extends Closeable {
+
+    void open() throws IOException;
+
+    /**
+     * Sends the first {@code length} bytes of {@code frame} as one datagram. The array may be reused once this returns.
+     */
+    void send(byte[] frame, int length) throws IOException;
+}
@@ -0,0 +1,22 @@
+package com.kyleaheron;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Moves a single HTTP exchange between the library and one bridge. Every {@link HueBridge} owns its own
+ * transport, so an implementation only ever talks to one host and is free to keep connections open between calls.
+ */
+public interface HueTransport extends Closeable {
+
+    /**
+     * Sends {@code length} bytes of {@code body} to {@code path} (e.g. {@code /api/<user>/lights}) and hands the
+     * response body to {@code handler}. The stream passed to the handler is only valid until it returns.
+     */
+    <T> T exchange(String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException;
+
+    interface ResponseHandler<T> {
+        T handle(int status, InputStream body) throws IOException;
+    }
+}
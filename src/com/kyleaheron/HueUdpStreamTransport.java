@@ -0,0 +1,52 @@
+package com.kyleaheron;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends streaming frames as plain UDP datagrams over a connected {@link DatagramChannel}.
+ */
+public class HueUdpStreamTransport implements HueStreamTransport {
+
+    public static final int DEFAULT_PORT = 2100;
+
+    private final SocketAddress address;
+    private DatagramChannel channel;
+    // Streams send from one reused array, so its wrapper is kept as well
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+    public HueUdpStreamTransport(String host, int port) {
+        this(new InetSocketAddress(host, port));
+    }
+
+    public HueUdpStreamTransport(SocketAddress address) {
+        this.address = address;
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (channel != null) return;
+        channel = DatagramChannel.open();
+        channel.connect(address);
+    }
+
+    @Override
+    public void send(byte[] frame, int length) throws IOException {
+        DatagramChannel current = channel;
+        if (current == null) throw new IOException("Stream transport is not open");
+        if (buffer.array() != frame) buffer = ByteBuffer.wrap(frame);
+        buffer.limit(length).position(0);
+        current.write(buffer);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
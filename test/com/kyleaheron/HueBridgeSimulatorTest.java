@@ -0,0 +1,193 @@
+package com.kyleaheron;
+
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HueBridgeSimulatorTest {
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+
+    @After
+    public void tearDown() {
+        if (bridge != null) bridge.close();
+        simulator.close();
+    }
+
+    @Test
+    public void pairingWaitsForTheLinkButton() throws Exception {
+        simulator = new HueBridgeSimulator(1);
+        simulator.setLinkButtonPressed(false);
+        bridge = simulator.createBridge();
+        CompletableFuture<Boolean> connected = bridge.connect();
+        Thread.sleep(300);
+        assertFalse(connected.isDone());
+        simulator.setLinkButtonPressed(true);
+        assertTrue(connected.get(5, TimeUnit.SECONDS));
+        assertNotNull(bridge.getUsername());
+    }
+
+    @Test
+    public void writesReachTheBridgeOverHttp() throws IOException {
+        simulator = new HueBridgeSimulator(3);
+        bridge = simulator.createHttpBridge();
+        assertTrue(bridge.whenSynchronized().join());
+        assertEquals(3, bridge.getLights().size());
+        simulator.clearRequests();
+
+        HueLight light = bridge.getLight(2);
+        light.setOn(false).setBrightness(77).show();
+
+        JsonObject state = simulator.getLightState(2);
+        assertFalse(state.get("on").getAsBoolean());
+        assertEquals(77, state.get("bri").getAsInt());
+        assertFalse(light.isOn());
+        assertEquals(77, light.getBrightness());
+        assertTrue(simulator.getLightState(1).get("on").getAsBoolean());
+
+        List<HueBridgeSimulator.Request> requests = simulator.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("PUT", requests.get(0).getMethod());
+        assertEquals("/api/" + bridge.getUsername() + "/lights/2/state", requests.get(0).getPath());
+        assertEquals(200, requests.get(0).getStatus());
+    }
+
+    @Test
+    public void groupActionReachesEveryMember() throws IOException {
+        simulator = new HueBridgeSimulator(3);
+        int kitchen = simulator.addGroup("Kitchen", "Room", Arrays.asList(1, 2));
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+
+        HueGroup group = bridge.getGroup(kitchen);
+        assertEquals(Arrays.asList(1, 2), group.getLightIds());
+        group.setOn(false).show();
+
+        assertFalse(simulator.getLightState(1).get("on").getAsBoolean());
+        assertFalse(simulator.getLightState(2).get("on").getAsBoolean());
+        assertTrue(simulator.getLightState(3).get("on").getAsBoolean());
+    }
+
+    @Test
+    public void colorTemperatureAndAlertReachTheBridge() throws IOException {
+        simulator = new HueBridgeSimulator(3);
+        int kitchen = simulator.addGroup("Kitchen", "Room", Arrays.asList(1, 2));
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+
+        HueLight light = bridge.getLight(3);
+        light.setColorTemperature(300).setAlert(HueLight.HueAlert.SELECT).show();
+        assertEquals(300, simulator.getLightState(3).get("ct").getAsInt());
+        assertEquals("select", simulator.getLightState(3).get("alert").getAsString());
+        assertEquals(300, light.getColorTemperature());
+        assertEquals(HueLight.HueAlert.SELECT, light.getAlertEffect());
+
+        // Out of range, so nothing is queued
+        long submitted = light.getSubmittedUpdateCount();
+        light.setColorTemperature(HueLight.MAX_COLOR_TEMPERATURE + 1);
+        assertEquals(submitted, light.getSubmittedUpdateCount());
+
+        bridge.getGroup(kitchen).setColorTemperature(450).setAlert(HueLight.HueAlert.LSELECT).show();
+        assertEquals(450, simulator.getLightState(1).get("ct").getAsInt());
+        assertEquals(450, simulator.getLightState(2).get("ct").getAsInt());
+        assertEquals("lselect", simulator.getLightState(2).get("alert").getAsString());
+    }
+
+    @Test
+    public void alertIsNotRetried() throws Exception {
+        simulator = new HueBridgeSimulator(1);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+        simulator.clearRequests();
+        simulator.injectError(HueErrorType.INTERNAL_ERROR, 1);
+
+        bridge.getLight(1).setAlert(HueLight.HueAlert.SELECT).setBrightness(99).showAsync();
+        awaitStateWrites(2);
+        simulator.injectError(null, 0);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (simulator.getLightState(1).get("bri").getAsInt() != 99 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(99, simulator.getLightState(1).get("bri").getAsInt());
+        assertEquals("none", simulator.getLightState(1).get("alert").getAsString());
+        List<HueBridgeSimulator.Request> requests = simulator.getRequests();
+        assertTrue(requests.get(0).getBody(), requests.get(0).getBody().contains("\"alert\":\"select\""));
+        for (HueBridgeSimulator.Request retry : requests.subList(1, requests.size())) {
+            assertFalse(retry.getBody(), retry.getBody().contains("alert"));
+        }
+    }
+
+    @Test
+    public void retriesInternalErrorsUntilTheBridgeRecovers() throws Exception {
+        simulator = new HueBridgeSimulator(1);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+        simulator.clearRequests();
+        simulator.injectError(HueErrorType.INTERNAL_ERROR, 1);
+
+        bridge.getLight(1).setBrightness(99).showAsync();
+        // The first retry comes at least 125 ms after the first attempt and the second 250 ms after that
+        awaitStateWrites(2);
+        simulator.injectError(null, 0);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (simulator.getLightState(1).get("bri").getAsInt() != 99 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(99, simulator.getLightState(1).get("bri").getAsInt());
+        assertEquals(3, stateWrites());
+        assertEquals(99, bridge.getLight(1).getBrightness());
+    }
+
+    @Test
+    public void givesUpAfterTheLastRetry() throws Exception {
+        simulator = new HueBridgeSimulator(1);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+        simulator.clearRequests();
+        simulator.injectError(HueErrorType.INTERNAL_ERROR, 1);
+
+        bridge.getLight(1).setBrightness(99).showAsync();
+        // Retries wait at most 250, 500 and 1000 ms
+        Thread.sleep(2500);
+        assertEquals(1 + HueCommandScheduler.MAX_RETRIES, stateWrites());
+        assertEquals(HueLight.MAX_BRIGHTNESS, simulator.getLightState(1).get("bri").getAsInt());
+    }
+
+    @Test
+    public void slowsDownWhenTheBridgeIsOverloaded() throws Exception {
+        simulator = new HueBridgeSimulator(1);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+        HueCommandScheduler scheduler = bridge.getCommandScheduler();
+        scheduler.setLightCommandRate(20, 5);
+        simulator.injectStatus(503, 1);
+
+        bridge.getLight(1).setBrightness(99).showAsync().get(1, TimeUnit.SECONDS);
+        assertEquals(10, scheduler.getLightCommandRate(), 0.001);
+    }
+
+    private void awaitStateWrites(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (stateWrites() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, stateWrites());
+    }
+
+    private int stateWrites() {
+        int writes = 0;
+        for (HueBridgeSimulator.Request request : simulator.getRequests()) {
+            if (request.getMethod().equals("PUT")) writes++;
+        }
+        return writes;
+    }
+}
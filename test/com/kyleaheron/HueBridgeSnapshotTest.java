@@ -0,0 +1,111 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HueBridgeSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+    private HueBridge restored;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator("snapshot-test", 3);
+        simulator.addGroup("Kitchen", "Room", Arrays.asList(1, 2));
+        bridge = simulator.createBridge();
+        file = folder.newFile("bridge.snapshot");
+        bridge.setSnapshotFile(file);
+        // Groups load after the lights, so wait for all of it before saving
+        assertTrue(bridge.whenSynchronized().join());
+        bridge.getLight(2).setOn(false).setBrightness(40).setHue(12000).setSaturation(200).show();
+        bridge.getLight(3).setXY(0.3f, 0.4f).show();
+        bridge.saveSnapshot();
+        restored = new HueBridge("127.0.0.1", "snapshot-test", simulator);
+    }
+
+    @After
+    public void tearDown() {
+        bridge.close();
+        restored.close();
+        simulator.close();
+    }
+
+    @Test
+    public void restoresWhatWasSaved() throws IOException {
+        HueBridgeSnapshot snapshot = HueBridgeSnapshot.read(restored, file);
+        assertNotNull(snapshot);
+        assertEquals(bridge.getUsername(), snapshot.username);
+        assertEquals(bridge.getName(), snapshot.name);
+        assertEquals(bridge.getMacAddress(), snapshot.macAddress);
+
+        List<HueLight> lights = bridge.getLights();
+        assertEquals(lights.size(), snapshot.lights.size());
+        for (int i = 0; i < lights.size(); i++) {
+            HueLight saved = lights.get(i);
+            HueLight read = snapshot.lights.get(i);
+            assertEquals(saved.getId(), read.getId());
+            assertEquals(saved.getName(), read.getName());
+            assertEquals(saved.getType(), read.getType());
+            assertEquals(saved.getModelId(), read.getModelId());
+            assertEquals(saved.isOn(), read.isOn());
+            assertEquals(saved.getBrightness(), read.getBrightness());
+            assertEquals(saved.getHue(), read.getHue());
+            assertEquals(saved.getSaturation(), read.getSaturation());
+            assertEquals(saved.getColorX(), read.getColorX(), 0);
+            assertEquals(saved.getColorY(), read.getColorY(), 0);
+            assertEquals(saved.getColorTemperature(), read.getColorTemperature());
+        }
+        assertFalse(snapshot.lights.get(1).isOn());
+        assertEquals(40, snapshot.lights.get(1).getBrightness());
+
+        assertEquals(bridge.getGroups().size(), snapshot.groups.size());
+        HueGroup kitchen = snapshot.groups.get(snapshot.groups.size() - 1);
+        assertEquals("Kitchen", kitchen.getName());
+        assertEquals(Arrays.asList(1, 2), kitchen.getLightIds());
+        assertEquals(bridge.getScenes().size(), snapshot.scenes.size());
+    }
+
+    @Test
+    public void truncatedSnapshotIsIgnoredWithoutLeakingSlots() throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        File truncated = folder.newFile("truncated.snapshot");
+        for (int length = 0; length < bytes.length; length++) {
+            Files.write(truncated.toPath(), Arrays.copyOf(bytes, length));
+            assertNull("read " + length + " of " + bytes.length + " bytes", HueBridgeSnapshot.read(restored, truncated));
+        }
+        // Every light built from a partial read gave its slot back, so one full read needs no more than that
+        assertNotNull(HueBridgeSnapshot.read(restored, file));
+        assertEquals(bridge.getLights().size(), restored.getLightStateStore().getSlotCount());
+    }
+
+    @Test
+    public void snapshotOfAnotherBridgeIsIgnored() throws IOException {
+        HueBridge other = new HueBridge("127.0.0.1", "another-bridge", simulator);
+        try {
+            assertNull(HueBridgeSnapshot.read(other, file));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void missingSnapshotIsIgnored() throws IOException {
+        assertNull(HueBridgeSnapshot.read(restored, new File(folder.getRoot(), "missing.snapshot")));
+    }
+}
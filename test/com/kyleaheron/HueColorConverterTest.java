@@ -0,0 +1,137 @@
+package com.kyleaheron;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HueColorConverterTest {
+
+    private static final HueColorConverter FULL = HueColorConverter.forGamut(HueColorConverter.Gamut.FULL);
+
+    @Test
+    public void convertsPrimariesToTheirReferenceValues() {
+        assertXY(0.3227f, 0.3290f, FULL.toXY(255, 255, 255));
+        assertXY(0.7006f, 0.2993f, FULL.toXY(255, 0, 0));
+        assertXY(0.1724f, 0.7468f, FULL.toXY(0, 255, 0));
+        assertXY(0.1355f, 0.0399f, FULL.toXY(0, 0, 255));
+        assertXY(0.6112f, 0.3750f, FULL.toXY(255, 128, 0));
+        // Black takes the white point
+        assertXY(0.3227f, 0.3290f, FULL.toXY(0, 0, 0));
+    }
+
+    @Test
+    public void linearisationTableMatchesTheSrgbCurve() {
+        for (int level = 1; level < 256; level++) {
+            double linear = srgbToLinear(level);
+            double bigX = linear * 0.664511 + 0.162028;
+            double bigY = linear * 0.283881 + 0.047685;
+            double bigZ = linear * 0.000088 + 0.986039;
+            double sum = bigX + bigY + bigZ;
+            // Blue at full keeps the sum away from zero, so red's level shows in every channel of the result
+            long xy = FULL.toXY(level, 0, 255);
+            assertEquals("level " + level, bigX / sum, HueColorConverter.x(xy), 1e-5);
+            assertEquals("level " + level, bigY / sum, HueColorConverter.y(xy), 1e-5);
+        }
+    }
+
+    @Test
+    public void pointsInsideTheGamutAreKept() {
+        for (HueColorConverter.Gamut gamut : HueColorConverter.Gamut.values()) {
+            assertXY(0.3227f, 0.3290f, HueColorConverter.forGamut(gamut).clamp(0.3227f, 0.3290f));
+        }
+    }
+
+    @Test
+    public void pointsOutsideEachGamutClampOntoTheNearestEdge() {
+        for (HueColorConverter.Gamut gamut : new HueColorConverter.Gamut[]{
+                HueColorConverter.Gamut.A, HueColorConverter.Gamut.B, HueColorConverter.Gamut.C}) {
+            HueColorConverter converter = HueColorConverter.forGamut(gamut);
+            float[][] corners = {
+                    {gamut.redX, gamut.redY}, {gamut.greenX, gamut.greenY}, {gamut.blueX, gamut.blueY}};
+            float centreX = (gamut.redX + gamut.greenX + gamut.blueX) / 3;
+            float centreY = (gamut.redY + gamut.greenY + gamut.blueY) / 3;
+            for (int i = 0; i < 3; i++) {
+                float[] a = corners[i];
+                float[] b = corners[(i + 1) % 3];
+                // The middle of the edge, pushed outwards along its normal
+                float midX = (a[0] + b[0]) / 2;
+                float midY = (a[1] + b[1]) / 2;
+                float normalX = b[1] - a[1];
+                float normalY = a[0] - b[0];
+                float length = (float) Math.hypot(normalX, normalY);
+                if (normalX * (midX - centreX) + normalY * (midY - centreY) < 0) length = -length;
+                long clamped = converter.clamp(midX + 0.05f * normalX / length, midY + 0.05f * normalY / length);
+                assertXY(midX, midY, clamped);
+
+                // Beyond a corner, away from both of its edges, lands on the corner
+                float outX = a[0] + (a[0] - centreX);
+                float outY = a[1] + (a[1] - centreY);
+                assertXY(a[0], a[1], converter.clamp(outX, outY));
+            }
+        }
+    }
+
+    @Test
+    public void saturatedRedIsClampedForNarrowerGamuts() {
+        long red = HueColorConverter.forGamut(HueColorConverter.Gamut.B).toXY(255, 0, 0);
+        assertTrue(HueColorConverter.x(red) < 0.7006f);
+        assertTrue(HueColorConverter.forGamut(HueColorConverter.Gamut.B)
+                .clamp(HueColorConverter.x(red), HueColorConverter.y(red)) == red);
+    }
+
+    @Test
+    public void bulkConversionMatchesSingleConversion() {
+        Random random = new Random(42);
+        int[] rgb = new int[1000];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = random.nextInt();
+        }
+        for (HueColorConverter.Gamut gamut : HueColorConverter.Gamut.values()) {
+            HueColorConverter converter = HueColorConverter.forGamut(gamut);
+            float[] xy = new float[rgb.length * 2];
+            converter.convert(rgb, xy);
+            for (int i = 0; i < rgb.length; i++) {
+                long expected = converter.toXY((rgb[i] >> 16) & 0xFF, (rgb[i] >> 8) & 0xFF, rgb[i] & 0xFF);
+                assertEquals(HueColorConverter.x(expected), xy[i * 2], 0);
+                assertEquals(HueColorConverter.y(expected), xy[i * 2 + 1], 0);
+            }
+
+            float[] offset = new float[12];
+            converter.convert(rgb, 10, offset, 2, 5);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(xy[(10 + i) * 2], offset[2 + i * 2], 0);
+                assertEquals(xy[(10 + i) * 2 + 1], offset[2 + i * 2 + 1], 0);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bulkConversionRejectsAShortOutput() {
+        FULL.convert(new int[4], new float[7]);
+    }
+
+    @Test
+    public void roundTripsThroughXY() {
+        int[] colors = {0xFFFFFF, 0xFF0000, 0x00FF00, 0x0000FF, 0xFF8000, 0x80FF40, 0x2040FF, 0xFF00FF};
+        for (int color : colors) {
+            long xy = FULL.toXY((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF);
+            int back = FULL.toRGB(HueColorConverter.x(xy), HueColorConverter.y(xy), HueLight.MAX_BRIGHTNESS);
+            for (int shift = 0; shift <= 16; shift += 8) {
+                assertEquals(String.format("%06X came back as %06X", color, back),
+                        (color >> shift) & 0xFF, (back >> shift) & 0xFF, 2);
+            }
+        }
+    }
+
+    private static double srgbToLinear(int level) {
+        double ratio = level / 255.0;
+        return ratio > 0.04045 ? Math.pow((ratio + 0.055) / 1.055, 2.4) : ratio / 12.92;
+    }
+
+    private static void assertXY(float x, float y, long xy) {
+        assertEquals(x, HueColorConverter.x(xy), 1e-4);
+        assertEquals(y, HueColorConverter.y(xy), 1e-4);
+    }
+}
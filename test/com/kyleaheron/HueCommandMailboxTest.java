@@ -0,0 +1,231 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class HueCommandMailboxTest {
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+    private HueCommandMailbox mailbox;
+    // Dispatches handed to the scheduler, run by the test when it chooses
+    private final List<Supplier<Boolean>> queued = new ArrayList<>();
+    private final List<HueStateUpdate> sent = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator(1);
+        bridge = simulator.createBridge();
+        mailbox = new HueCommandMailbox(bridge.getMetrics());
+    }
+
+    @After
+    public void tearDown() {
+        bridge.close();
+        simulator.close();
+    }
+
+    @Test
+    public void mergesChangesUntilTheDispatchRuns() {
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(10));
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(true));
+        CompletableFuture<Boolean> first = dispatch();
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(20));
+        assertSame(first, dispatch());
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(30));
+
+        assertEquals(1, queued.size());
+        assertTrue(runQueued(0));
+        assertEquals(1, sent.size());
+        HueStateUpdate update = sent.get(0);
+        assertEquals(HueStateUpdate.ON | HueStateUpdate.BRIGHTNESS, update.dirty);
+        assertTrue(update.on);
+        assertEquals(30, update.brightness);
+        assertEquals(4, mailbox.getSubmittedUpdateCount());
+        assertEquals(2, mailbox.getMergedUpdateCount());
+        assertEquals(1, mailbox.getSentCommandCount());
+        assertTrue(mailbox.isEmpty());
+    }
+
+    @Test
+    public void nothingPendingSendsNothing() {
+        assertFalse(dispatch().join());
+        assertTrue(queued.isEmpty());
+    }
+
+    @Test
+    public void changesAfterADrainGoInTheNextDispatch() {
+        mailbox.update(HueStateUpdate.HUE, update -> update.withHue(100));
+        dispatch();
+        runQueued(0);
+        mailbox.update(HueStateUpdate.HUE, update -> update.withHue(200));
+        dispatch();
+        assertEquals(2, queued.size());
+        runQueued(1);
+        assertEquals(2, sent.size());
+        assertEquals(100, sent.get(0).hue);
+        assertEquals(200, sent.get(1).hue);
+    }
+
+    @Test
+    public void overlappingDispatchesSendInDrainOrder() throws Exception {
+        CountDownLatch firstSending = new CountDownLatch(1);
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        HueCommandMailbox.Sender sender = (update, sequence) -> {
+            if (update.brightness == 1) {
+                firstSending.countDown();
+                await(releaseFirst);
+            }
+            order.add(update.brightness);
+            return true;
+        };
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(1));
+        CompletableFuture<Boolean> first = mailbox.dispatch(CompletableFuture::supplyAsync, sender);
+        assertTrue(firstSending.await(1, TimeUnit.SECONDS));
+
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(2));
+        CompletableFuture<Boolean> second = mailbox.dispatch(CompletableFuture::supplyAsync, sender);
+        assertNotSame(first, second);
+        try {
+            second.get(100, TimeUnit.MILLISECONDS);
+            fail("The newer update must wait for the older one to reach the bridge");
+        } catch (TimeoutException expected) {
+            // Expected
+        }
+        releaseFirst.countDown();
+        assertTrue(second.get(1, TimeUnit.SECONDS));
+        assertTrue(first.get(1, TimeUnit.SECONDS));
+        assertEquals(2, order.size());
+        assertEquals(1, (int) order.get(0));
+        assertEquals(2, (int) order.get(1));
+    }
+
+    @Test
+    public void unchangedValueIsSkippedWhenNothingElseIsPending() {
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(true), true);
+        assertTrue(mailbox.isEmpty());
+        assertEquals(0, mailbox.getSubmittedUpdateCount());
+    }
+
+    @Test
+    public void unchangedValueReplacesAPendingOne() {
+        // The light is on: turning it off and straight back on must not leave "off" queued
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(false), false);
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(true), true);
+        dispatch();
+        runQueued(0);
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0).on);
+    }
+
+    @Test
+    public void unchangedValueIsSentWhileAnOlderOneIsInFlight() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HueCommandMailbox.Sender sender = (update, sequence) -> {
+            sending.countDown();
+            await(release);
+            return true;
+        };
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(false), false);
+        CompletableFuture<Boolean> off = mailbox.dispatch(CompletableFuture::supplyAsync, sender);
+        assertTrue(sending.await(1, TimeUnit.SECONDS));
+        // The bridge has not confirmed "off" yet, so the cached state still says on
+        mailbox.update(HueStateUpdate.ON, update -> update.withOn(true), true);
+        assertFalse(mailbox.isEmpty());
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(5), true);
+        release.countDown();
+        off.get(1, TimeUnit.SECONDS);
+
+        dispatch();
+        runQueued(0);
+        assertEquals(HueStateUpdate.ON, sent.get(0).dirty);
+        assertTrue(sent.get(0).on);
+    }
+
+    @Test
+    public void requeuesOnlyAttributesNotSentSince() {
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(10));
+        mailbox.update(HueStateUpdate.HUE, update -> update.withHue(100));
+        dispatch();
+        runQueued(0);
+        HueStateUpdate failed = sent.get(0);
+
+        mailbox.update(HueStateUpdate.HUE, update -> update.withHue(200));
+        dispatch();
+        runQueued(1);
+
+        assertEquals(1, mailbox.requeue(failed, 1, HueCommandScheduler.MAX_RETRIES));
+        dispatch();
+        runQueued(2);
+        assertEquals(HueStateUpdate.BRIGHTNESS, sent.get(2).dirty);
+        assertEquals(10, sent.get(2).brightness);
+        assertEquals(0, mailbox.requeue(failed, 1, HueCommandScheduler.MAX_RETRIES));
+    }
+
+    @Test
+    public void alertsAreNeverRequeued() {
+        mailbox.update(HueStateUpdate.ALERT, update -> update.withAlert(HueLight.HueAlert.SELECT));
+        mailbox.update(HueStateUpdate.BRIGHTNESS, update -> update.withBrightness(10));
+        dispatch();
+        runQueued(0);
+
+        assertEquals(1, mailbox.requeue(sent.get(0), 1, HueCommandScheduler.MAX_RETRIES));
+        dispatch();
+        runQueued(1);
+        assertEquals(HueStateUpdate.BRIGHTNESS, sent.get(1).dirty);
+
+        mailbox.update(HueStateUpdate.ALERT, update -> update.withAlert(HueLight.HueAlert.LSELECT));
+        dispatch();
+        runQueued(2);
+        assertEquals(0, mailbox.requeue(sent.get(2), 3, HueCommandScheduler.MAX_RETRIES));
+        assertTrue(mailbox.isEmpty());
+    }
+
+    @Test
+    public void lightDoesNotLeaveAnUndoneChangeQueued() throws IOException {
+        assertTrue(bridge.connect().join());
+        HueLight light = bridge.getLight(1);
+        light.setOn(true).show();
+        simulator.clearRequests();
+
+        light.setOn(false).setOn(true).show();
+        assertTrue(simulator.getLightState(1).get("on").getAsBoolean());
+        for (HueBridgeSimulator.Request request : simulator.getRequests()) {
+            if (request.getMethod().equals("PUT")) assertFalse(request.getBody(), request.getBody().contains("\"on\":false"));
+        }
+    }
+
+    private CompletableFuture<Boolean> dispatch() {
+        return mailbox.dispatch(task -> {
+            queued.add(task);
+            return new CompletableFuture<>();
+        }, (update, sequence) -> sent.add(update));
+    }
+
+    private boolean runQueued(int index) {
+        return queued.get(index).get();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
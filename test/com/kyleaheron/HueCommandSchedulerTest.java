@@ -0,0 +1,112 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HueCommandSchedulerTest {
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+    private HueCommandScheduler scheduler;
+    private final List<String> ran = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator(1);
+        bridge = simulator.createBridge();
+        scheduler = bridge.getCommandScheduler();
+        scheduler.setAdaptiveRate(false);
+    }
+
+    @After
+    public void tearDown() {
+        bridge.close();
+        simulator.close();
+    }
+
+    @Test
+    public void spacesCommandsAtTheConfiguredRate() {
+        scheduler.setLightCommandRate(50, 1);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            results.add(scheduler.submit(HueCommandScheduler.CommandClass.LIGHT, HueCommandScheduler.Priority.NORMAL,
+                    "light", System::nanoTime));
+        }
+        long first = results.get(0).join() - start;
+        long last = results.get(10).join() - start;
+        // An idle bucket lets the first command straight through, and the other ten wait 20 ms each
+        assertTrue("first command waited " + first + " ns", first < TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue("ten commands took " + last + " ns", last >= TimeUnit.MILLISECONDS.toNanos(180));
+        assertEquals(0, scheduler.getQueuedCommandCount());
+    }
+
+    @Test
+    public void burstPassesWithoutWaiting() throws Exception {
+        scheduler.setLightCommandRate(1, 5);
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(submit(HueCommandScheduler.Priority.NORMAL, "light", "command " + i));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(500, TimeUnit.MILLISECONDS);
+        assertEquals(5, ran.size());
+    }
+
+    @Test
+    public void higherPriorityLanesGoFirst() {
+        scheduler.setLightCommandRate(20, 1);
+        // Takes the only token, so the rest queue up behind it
+        submit(HueCommandScheduler.Priority.NORMAL, "light", "first").join();
+        ran.clear();
+        CompletableFuture<String> low = submit(HueCommandScheduler.Priority.LOW, "light", "low");
+        submit(HueCommandScheduler.Priority.NORMAL, "light", "normal");
+        submit(HueCommandScheduler.Priority.HIGH, "light", "high");
+        low.join();
+        assertEquals(Arrays.asList("high", "normal", "low"), ran);
+    }
+
+    @Test
+    public void busyTargetTakesTurnsWithTheOthers() {
+        scheduler.setLightCommandRate(50, 1);
+        submit(HueCommandScheduler.Priority.NORMAL, "kitchen", "first").join();
+        ran.clear();
+        submit(HueCommandScheduler.Priority.NORMAL, "kitchen", "kitchen 1");
+        submit(HueCommandScheduler.Priority.NORMAL, "kitchen", "kitchen 2");
+        submit(HueCommandScheduler.Priority.NORMAL, "kitchen", "kitchen 3");
+        CompletableFuture<String> hall = submit(HueCommandScheduler.Priority.NORMAL, "hall", "hall 1");
+        submit(HueCommandScheduler.Priority.NORMAL, "kitchen", "kitchen 4").join();
+        hall.join();
+        assertEquals(Arrays.asList("kitchen 1", "hall 1", "kitchen 2", "kitchen 3", "kitchen 4"), ran);
+    }
+
+    @Test
+    public void classesHaveSeparateBuckets() throws Exception {
+        scheduler.setLightCommandRate(1, 1);
+        scheduler.setGroupCommandRate(1, 1);
+        submit(HueCommandScheduler.Priority.NORMAL, "light", "light 1").join();
+        CompletableFuture<String> light = submit(HueCommandScheduler.Priority.NORMAL, "light", "light 2");
+        // The light bucket is empty for a second, which must not hold up a group command
+        String group = scheduler.submit(HueCommandScheduler.CommandClass.GROUP, HueCommandScheduler.Priority.NORMAL,
+                "group", () -> "group 1").get(500, TimeUnit.MILLISECONDS);
+        assertEquals("group 1", group);
+        assertFalse(light.isDone());
+    }
+
+    private CompletableFuture<String> submit(HueCommandScheduler.Priority priority, Object target, String name) {
+        return scheduler.submit(HueCommandScheduler.CommandClass.LIGHT, priority, target, () -> {
+            ran.add(name);
+            return name;
+        });
+    }
+}
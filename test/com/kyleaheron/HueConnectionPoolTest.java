@@ -0,0 +1,181 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HueConnectionPoolTest {
+
+    private ScriptedBridge bridge;
+    private HueConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        bridge = new ScriptedBridge();
+        pool = new HueConnectionPool("127.0.0.1", bridge.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.close();
+        bridge.close();
+    }
+
+    @Test
+    public void reusesIdleConnections() throws IOException {
+        for (int i = 1; i <= 5; i++) {
+            assertEquals("[{\"success\":" + i + "}]", get("/api/user/lights/1"));
+        }
+        assertEquals(1, bridge.connections.get());
+        assertEquals(1, pool.getIdleConnectionCount());
+    }
+
+    @Test
+    public void retriesRepeatableRequestWhenIdleConnectionWasClosed() throws IOException {
+        bridge.closeAfterResponse = true;
+        assertEquals("[{\"success\":1}]", get("/api/user/lights/1"));
+        assertEquals("[{\"success\":2}]", put("/api/user/lights/1/state", "{\"on\":true}"));
+        assertEquals(2, bridge.connections.get());
+        assertEquals(2, bridge.requests.size());
+    }
+
+    @Test
+    public void doesNotResendPostThatMayHaveBeenProcessed() throws IOException {
+        assertEquals("[{\"success\":1}]", get("/api/config"));
+        // The bridge takes the pairing request and drops the connection before answering
+        bridge.dropWithoutAnswer = 2;
+        try {
+            exchange("POST", "/api", "{\"devicetype\":\"test\"}");
+            fail("A POST with no response must fail rather than be sent again");
+        } catch (IOException expected) {
+            // Expected
+        }
+        assertEquals(2, bridge.requests.size());
+        assertEquals("POST /api", bridge.requests.get(1));
+        assertEquals(1, bridge.connections.get());
+    }
+
+    @Test
+    public void retriesPutThatGotNoAnswer() throws IOException {
+        assertEquals("[{\"success\":1}]", get("/api/config"));
+        bridge.dropWithoutAnswer = 2;
+        assertEquals("[{\"success\":3}]", put("/api/user/lights/1/state", "{\"bri\":10}"));
+        assertEquals(3, bridge.requests.size());
+        assertEquals(2, bridge.connections.get());
+    }
+
+    private String get(String path) throws IOException {
+        return exchange("GET", path, "");
+    }
+
+    private String put(String path, String json) throws IOException {
+        return exchange("PUT", path, json);
+    }
+
+    private String exchange(String method, String path, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        return pool.exchange(method, path, body, body.length, (status, in) -> {
+            assertEquals(200, status);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                response.write(buffer, 0, read);
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        });
+    }
+
+    /**
+     * A keep-alive HTTP server that numbers the requests it reads and can misbehave the way a bridge does.
+     */
+    private static class ScriptedBridge implements Closeable {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final AtomicInteger connections = new AtomicInteger();
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        volatile boolean closeAfterResponse;
+        // The number of the request to read and then drop without an answer
+        volatile int dropWithoutAnswer;
+
+        ScriptedBridge() throws IOException {
+            Thread acceptor = new Thread(this::accept, "scripted-bridge");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    Thread handler = new Thread(() -> serve(socket), "scripted-bridge-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket connection = socket) {
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                OutputStream out = connection.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    int contentLength = 0;
+                    String header;
+                    while ((header = readLine(in)) != null && !header.isEmpty()) {
+                        if (header.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(header.substring(15).trim());
+                        }
+                    }
+                    for (int i = 0; i < contentLength; i++) {
+                        in.read();
+                    }
+                    String[] parts = requestLine.split(" ");
+                    requests.add(parts[0] + " " + parts[1]);
+                    int number = requests.size();
+                    if (number == dropWithoutAnswer) return;
+                    byte[] body = ("[{\"success\":" + number + "}]").getBytes(StandardCharsets.UTF_8);
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length
+                            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                    if (closeAfterResponse) return;
+                }
+            } catch (IOException e) {
+                // Client went away
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (b != '\r') line.append((char) b);
+            }
+            return b < 0 && line.length() == 0 ? null : line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
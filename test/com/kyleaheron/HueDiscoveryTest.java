@@ -0,0 +1,127 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class HueDiscoveryTest {
+
+    private final List<HueBridge> bridges = new ArrayList<>();
+    private HueBridgeSimulator simulator;
+    private DatagramSocket ssdp;
+
+    @After
+    public void tearDown() {
+        for (HueBridge bridge : bridges) {
+            bridge.close();
+        }
+        if (simulator != null) simulator.close();
+        if (ssdp != null) ssdp.close();
+    }
+
+    @Test
+    public void probeFindsBridgeAnsweringConfig() throws IOException {
+        simulator = new HueBridgeSimulator("001788FFFE0000AA", 1);
+        int port = simulator.start();
+        List<HueBridge> reported = new CopyOnWriteArrayList<>();
+        // 127.0.0.2 is loopback too, with nothing listening on the port
+        HueDiscovery discovery = local()
+                .setSsdpEnabled(false)
+                .setProbeHosts(Arrays.asList(InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2")))
+                .setPort(port);
+        List<HueBridge> found = discovered(discovery.discoverAsync(reported::add).join());
+
+        assertEquals(1, found.size());
+        assertEquals("001788fffe0000aa", found.get(0).getUniqueDeviceId());
+        assertEquals("127.0.0.1:" + port, found.get(0).getIpAddress());
+        assertEquals(found, reported);
+    }
+
+    @Test
+    public void ssdpReportsOnlyBridges() throws IOException {
+        ssdp = new SsdpResponder(
+                "HTTP/1.1 200 OK\r\nST: upnp:rootdevice\r\nLOCATION: http://127.0.0.1:1400/xml/device.xml\r\n\r\n",
+                "HTTP/1.1 200 OK\r\nhue-bridgeid: 001788FFFE0000BB\r\n"
+                        + "LOCATION: http://127.0.0.1:8080/description.xml\r\n\r\n").socket;
+        HueDiscovery discovery = local()
+                .setProbeEnabled(false)
+                .setSsdpTarget((InetSocketAddress) ssdp.getLocalSocketAddress());
+        List<HueBridge> found = discovered(discovery.discover());
+
+        assertEquals(1, found.size());
+        assertEquals("001788fffe0000bb", found.get(0).getUniqueDeviceId());
+        assertEquals("127.0.0.1:8080", found.get(0).getIpAddress());
+    }
+
+    @Test
+    public void bridgeFoundByBothSearchesIsReportedOnce() throws IOException {
+        simulator = new HueBridgeSimulator("001788FFFE0000CC", 1);
+        int port = simulator.start();
+        ssdp = new SsdpResponder("HTTP/1.1 200 OK\r\nhue-bridgeid: 001788FFFE0000CC\r\n"
+                + "LOCATION: http://127.0.0.1:" + port + "/description.xml\r\n\r\n").socket;
+        HueDiscovery discovery = local()
+                .setSsdpTarget((InetSocketAddress) ssdp.getLocalSocketAddress())
+                .setProbeHosts(Arrays.asList(InetAddress.getByName("127.0.0.1")))
+                .setPort(port);
+        List<HueBridge> found = discovered(discovery.discover());
+
+        assertEquals(1, found.size());
+        assertEquals("001788fffe0000cc", found.get(0).getUniqueDeviceId());
+    }
+
+    private static HueDiscovery local() {
+        return new HueDiscovery()
+                .setTimeout(1000)
+                .setProbeTimeout(250)
+                .setCloudFallback(false);
+    }
+
+    private List<HueBridge> discovered(List<HueBridge> found) {
+        bridges.addAll(found);
+        return found;
+    }
+
+    /**
+     * Answers every M-SEARCH on loopback with the given responses.
+     */
+    private static class SsdpResponder {
+        final DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+
+        SsdpResponder(String... responses) throws IOException {
+            Thread thread = new Thread(() -> answer(responses), "ssdp-responder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void answer(String[] responses) {
+            byte[] buffer = new byte[2048];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket search = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(search);
+                    if (!new String(search.getData(), 0, search.getLength(), StandardCharsets.US_ASCII).startsWith("M-SEARCH")) {
+                        continue;
+                    }
+                    for (String response : responses) {
+                        byte[] bytes = response.getBytes(StandardCharsets.US_ASCII);
+                        socket.send(new DatagramPacket(bytes, bytes.length, search.getSocketAddress()));
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HueEventStreamTest {
+
+    private static final String HEAD = "HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+            + "Transfer-Encoding: chunked\r\n\r\n";
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+    private EventServer server;
+    private final BlockingQueue<HueLight> changes = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator(2);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.connect().join());
+        bridge.addLightListener(changes::add);
+        server = new EventServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        bridge.close();
+        simulator.close();
+        server.close();
+    }
+
+    @Test
+    public void appliesEventsSplitAcrossChunks() throws Exception {
+        start();
+        String event = event("e1", light(2, "\"dimming\":{\"brightness\":50.0}"));
+        int split = event.length() / 2;
+        server.send(chunk(": connected\n\n"));
+        server.send(chunk(event.substring(0, split)));
+        server.send(chunk(event.substring(split)));
+
+        HueLight changed = changes.poll(2, TimeUnit.SECONDS);
+        assertSame(bridge.getLight(2), changed);
+        assertEquals(127, changed.getBrightness());
+        assertEquals(HueLight.MAX_BRIGHTNESS, bridge.getLight(1).getBrightness());
+    }
+
+    @Test
+    public void joinsDataLinesOfOneEvent() throws Exception {
+        start();
+        server.send(chunk("id: e1\ndata: [{\"type\":\"update\",\ndata: \"data\":[" + light(1, "\"on\":{\"on\":false}")
+                + "]}]\n\n"));
+        HueLight changed = changes.poll(2, TimeUnit.SECONDS);
+        assertSame(bridge.getLight(1), changed);
+        assertFalse(changed.isOn());
+    }
+
+    @Test
+    public void doesNotReportEchoesOfOwnCommands() throws Exception {
+        HueLight light = bridge.getLight(1);
+        light.setBrightness(200).show();
+        start();
+        // 200 of 254 is 78.74%, the bridge's echo of the command just sent
+        server.send(chunk(event("e1", light(1, "\"dimming\":{\"brightness\":78.74}"))));
+
+        // An update still on its way to the bridge is echoed too, possibly before the response
+        simulator.setLatency(500, 0);
+        light.setBrightness(100);
+        light.showAsync();
+        Thread.sleep(100);
+        server.send(chunk(event("e2", light(1, "\"dimming\":{\"brightness\":39.37}"))));
+
+        // Someone at the wall switch
+        server.send(chunk(event("e3", light(1, "\"on\":{\"on\":false}"))));
+        assertSame(light, changes.poll(2, TimeUnit.SECONDS));
+        assertFalse(light.isOn());
+        assertNull(changes.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reconnectsNoSoonerThanTheBridgeAsked() throws Exception {
+        start();
+        server.send(chunk("retry: 1500\n\n"));
+        server.send(chunk(event("e1", light(1, "\"on\":{\"on\":false}"))));
+        assertNotNull(changes.poll(2, TimeUnit.SECONDS));
+        server.disconnect();
+
+        // The event in between must not have cut the wait back to the default second
+        assertTrue(server.awaitConnection(2, 5, TimeUnit.SECONDS));
+        long gap = server.connectedAt.get(1) - server.disconnectedAt;
+        assertTrue("reconnected after " + TimeUnit.NANOSECONDS.toMillis(gap) + " ms",
+                gap >= TimeUnit.MILLISECONDS.toNanos(1400));
+        assertTrue(server.requests.get(1), server.requests.get(1).contains("Last-Event-ID: e1\r\n"));
+        assertFalse(server.requests.get(0).contains("Last-Event-ID"));
+    }
+
+    private void start() throws IOException, InterruptedException {
+        bridge.startEventStream(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()),
+                HueEventStream.EVENT_STREAM_PATH);
+        assertTrue(server.awaitConnection(1, 2, TimeUnit.SECONDS));
+        server.send(HEAD);
+    }
+
+    private static String light(int id, String fields) {
+        return "{\"id_v1\":\"/lights/" + id + "\",\"type\":\"light\"," + fields + "}";
+    }
+
+    private static String event(String id, String resource) {
+        return "id: " + id + "\ndata: [{\"type\":\"update\",\"data\":[" + resource + "]}]\n\n";
+    }
+
+    private static String chunk(String data) {
+        int length = data.getBytes(StandardCharsets.UTF_8).length;
+        return Integer.toHexString(length) + "\r\n" + data + "\r\n";
+    }
+
+    /**
+     * Accepts event stream connections and writes whatever the test sends to the latest one.
+     */
+    private static class EventServer implements Closeable {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<Long> connectedAt = new CopyOnWriteArrayList<>();
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        volatile long disconnectedAt;
+        private volatile Socket current;
+
+        EventServer() throws IOException {
+            Thread acceptor = new Thread(this::accept, "event-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    long now = System.nanoTime();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                    StringBuilder request = new StringBuilder();
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        request.append(line).append("\r\n");
+                    }
+                    current = socket;
+                    requests.add(request.toString());
+                    connectedAt.add(now);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        boolean awaitConnection(int count, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (connectedAt.size() < count) {
+                if (System.nanoTime() > deadline) return false;
+                Thread.sleep(10);
+            }
+            return true;
+        }
+
+        void send(String data) throws IOException {
+            OutputStream out = current.getOutputStream();
+            out.write(data.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        void disconnect() throws IOException {
+            current.close();
+            disconnectedAt = System.nanoTime();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            Socket socket = current;
+            if (socket != null) socket.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HueFederationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HueBridgeSimulator simulator;
+    private RefusingTransport transport;
+    private HueBridge bridge;
+    private HueFederation federation;
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator("federation-test", 2);
+        transport = new RefusingTransport(simulator);
+        bridge = new HueBridge("127.0.0.1", "federation-test", transport);
+        bridge.setSnapshotFile(folder.newFile("bridge.snapshot"));
+        assertTrue(bridge.whenSynchronized().join());
+        federation = new HueFederation(Collections.singletonList(bridge));
+    }
+
+    @After
+    public void tearDown() {
+        federation.close();
+        simulator.close();
+    }
+
+    @Test
+    public void unreachableBridgeRecoversWithoutHealthChecks() throws Exception {
+        List<HueLight> lights = federation.getLights();
+        transport.refusing = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (federation.getHealth(bridge) != HueFederation.Health.UNREACHABLE && System.nanoTime() < deadline) {
+            federation.apply(lights, light -> light.setOn(!light.isOn())).get(2, TimeUnit.SECONDS);
+        }
+        assertEquals(HueFederation.Health.UNREACHABLE, federation.getHealth(bridge));
+
+        // The batch is skipped, and pings the bridge on its way
+        transport.refusing = false;
+        assertFalse(federation.apply(lights, light -> light.setBrightness(42)).get(1, TimeUnit.SECONDS));
+        awaitHealth(HueFederation.Health.HEALTHY);
+
+        assertTrue(federation.apply(lights, light -> light.setBrightness(42)).get(2, TimeUnit.SECONDS));
+        assertEquals(42, simulator.getLightState(1).get("bri").getAsInt());
+        assertEquals(42, simulator.getLightState(2).get("bri").getAsInt());
+    }
+
+    @Test
+    public void overloadedBridgeIsDegradedButStillGetsBatches() throws Exception {
+        List<HueLight> lights = federation.getLights();
+        simulator.injectStatus(503, 1);
+        for (int i = 0; i < 5; i++) {
+            federation.apply(lights, light -> light.setOn(!light.isOn())).get(5, TimeUnit.SECONDS);
+            assertEquals(HueFederation.Health.DEGRADED, federation.getHealth(bridge));
+        }
+
+        simulator.injectStatus(0, 0);
+        assertTrue(federation.apply(lights, light -> light.setBrightness(42)).get(5, TimeUnit.SECONDS));
+        assertEquals(HueFederation.Health.HEALTHY, federation.getHealth(bridge));
+        assertEquals(42, simulator.getLightState(1).get("bri").getAsInt());
+    }
+
+    private void awaitHealth(HueFederation.Health health) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (federation.getHealth(bridge) != health && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(health, federation.getHealth(bridge));
+    }
+
+    /**
+     * Passes requests to the simulator, or refuses them as a bridge that has dropped off the network would.
+     */
+    private static class RefusingTransport implements HueTransport {
+        private final HueTransport delegate;
+        volatile boolean refusing;
+
+        RefusingTransport(HueTransport delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <T> T exchange(String method, String path, byte[] body, int length, ResponseHandler<T> handler) throws IOException {
+            if (refusing) throw new ConnectException("Connection refused");
+            return delegate.exchange(method, path, body, length, handler);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
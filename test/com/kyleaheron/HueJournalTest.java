@@ -0,0 +1,110 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HueJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator(3);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+        file = folder.newFile("bridge.journal");
+        bridge.startRecording(file);
+        bridge.getLight(1).setBrightness(77).show();
+        bridge.getLight(3).setOn(false).show();
+        bridge.stopRecording();
+    }
+
+    @After
+    public void tearDown() {
+        bridge.close();
+        simulator.close();
+    }
+
+    @Test
+    public void readsBackWhatWasRecorded() throws IOException {
+        List<HueJournal.Entry> entries = HueJournal.read(file);
+        assertEquals(2, entries.size());
+
+        HueJournal.Entry first = entries.get(0);
+        assertEquals("PUT", first.getMethod());
+        assertEquals("/api/" + bridge.getUsername() + "/lights/1/state", first.getPath());
+        assertEquals("{\"bri\":77}", new String(first.getBody(), StandardCharsets.UTF_8));
+        assertEquals(200, first.getStatus());
+        assertTrue(first.getLatencyNanos() > 0);
+
+        HueJournal.Entry second = entries.get(1);
+        assertEquals("/api/" + bridge.getUsername() + "/lights/3/state", second.getPath());
+        assertEquals("{\"on\":false}", new String(second.getBody(), StandardCharsets.UTF_8));
+        assertTrue(second.getTimeNanos() >= first.getTimeNanos() + first.getLatencyNanos());
+    }
+
+    @Test
+    public void truncatedJournalReadsUpToTheLastCompleteRecord() throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        File truncated = folder.newFile("truncated.journal");
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        List<HueJournal.Entry> entries = HueJournal.read(truncated);
+        assertEquals(1, entries.size());
+        assertEquals("/api/" + bridge.getUsername() + "/lights/1/state", entries.get(0).getPath());
+    }
+
+    @Test
+    public void fullJournalStopsRecordingAndStillReads() throws IOException {
+        File small = folder.newFile("small.journal");
+        byte[] body = "{\"bri\":77}".getBytes(StandardCharsets.UTF_8);
+        // Each record takes 63 bytes after the 16 byte header, so three fit
+        try (HueJournal journal = HueJournal.create(small, 240)) {
+            for (int i = 0; i < 10; i++) {
+                journal.record("PUT", "/api/user/lights/" + i + "/state", body, body.length, System.nanoTime(), 1000, 200);
+            }
+            assertEquals(3, journal.getRecordCount());
+        }
+        List<HueJournal.Entry> entries = HueJournal.read(small);
+        assertEquals(3, entries.size());
+        assertEquals("/api/user/lights/2/state", entries.get(2).getPath());
+        assertTrue(small.length() <= 240);
+    }
+
+    @Test
+    public void replayRepeatsTheRecordedCommands() throws Exception {
+        List<HueJournal.Entry> entries = HueJournal.read(file);
+        HueBridgeSimulator target = HueJournalReplay.simulatorFor(entries);
+        try {
+            HueJournalReplay replay = new HueJournalReplay(entries, target);
+            replay.setSpeed(Double.POSITIVE_INFINITY);
+            replay.setThreads(1);
+            HueJournalReplay.Report report = replay.run();
+
+            assertEquals(2, report.getRequestCount());
+            assertEquals(0, report.getFailureCount());
+            assertEquals(0, report.getBridgeErrorCount());
+            assertEquals(77, target.getLightState(1).get("bri").getAsInt());
+            assertFalse(target.getLightState(3).get("on").getAsBoolean());
+            assertTrue(target.getLightState(2).get("on").getAsBoolean());
+        } finally {
+            target.close();
+        }
+    }
+}
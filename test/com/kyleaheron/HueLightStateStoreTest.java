@@ -0,0 +1,174 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HueLightStateStoreTest {
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+    private HueLightStateStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator(4);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.whenSynchronized().join());
+        store = bridge.getLightStateStore();
+    }
+
+    @After
+    public void tearDown() {
+        bridge.close();
+        simulator.close();
+    }
+
+    @Test
+    public void captureCopiesEveryLight() {
+        bridge.getLight(2).setOn(false).setBrightness(40).setHue(12000).setSaturation(200).show();
+        HueLightStateStore.Snapshot snapshot = store.newSnapshot();
+        store.capture(snapshot);
+
+        assertEquals(store.getSlotCount(), snapshot.size());
+        for (HueLight light : bridge.getLights()) {
+            int slot = light.getSlot();
+            assertTrue(snapshot.isPresent(slot));
+            assertEquals(light.isOn(), snapshot.isOn(slot));
+            assertEquals(light.getBrightness(), snapshot.getBrightness(slot));
+            assertEquals(light.getHue(), snapshot.getHue(slot));
+            assertEquals(light.getSaturation(), snapshot.getSaturation(slot));
+            assertEquals(light.getColorX(), snapshot.getColorX(slot), 0);
+            assertEquals(light.getColorY(), snapshot.getColorY(slot), 0);
+            assertEquals(light.getEffect(), snapshot.getEffect(slot));
+        }
+        assertFalse(snapshot.isOn(bridge.getLight(2).getSlot()));
+        assertEquals(40, snapshot.getBrightness(bridge.getLight(2).getSlot()));
+    }
+
+    @Test
+    public void diffListsTheChangedSlots() {
+        HueLightStateStore.Snapshot before = store.newSnapshot();
+        HueLightStateStore.Snapshot after = store.newSnapshot();
+        store.capture(before);
+        bridge.getLight(1).setBrightness(10).show();
+        bridge.getLight(3).setEffect(HueLight.HueEffect.COLORLOOP).show();
+        store.capture(after);
+
+        int[] changed = new int[store.getSlotCount()];
+        int count = after.diff(before, changed);
+        assertEquals(2, count);
+        assertEquals(bridge.getLight(1).getSlot(), changed[0]);
+        assertEquals(bridge.getLight(3).getSlot(), changed[1]);
+        assertEquals(0, before.diff(before, changed));
+    }
+
+    @Test
+    public void captureGrowsTheSnapshotForNewLights() {
+        HueLightStateStore.Snapshot before = store.newSnapshot();
+        store.capture(before);
+        int lights = store.getSlotCount();
+
+        // More lights than the snapshot was sized for
+        HueLight[] added = new HueLight[lights];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = new HueLight(bridge, 100 + i);
+        }
+        HueLightStateStore.Snapshot after = store.newSnapshot();
+        HueLightStateStore.Snapshot grown = new HueLightStateStore.Snapshot(0);
+        store.capture(after);
+        store.capture(grown);
+        assertEquals(2 * lights, grown.size());
+        assertEquals(0, grown.diff(after, new int[grown.size()]));
+
+        int[] changed = new int[grown.size()];
+        assertEquals(lights, grown.diff(before, changed));
+        for (int i = 0; i < lights; i++) {
+            assertEquals(added[i].getSlot(), changed[i]);
+            assertTrue(grown.isPresent(added[i].getSlot()));
+        }
+        for (HueLight light : added) {
+            light.release();
+        }
+    }
+
+    @Test
+    public void releasedSlotIsReusedWithClearedState() {
+        HueLight light = new HueLight(bridge, 100);
+        int slot = light.getSlot();
+        store.setBrightness(slot, 99);
+        store.setOn(slot, true);
+        light.release();
+        assertNull(store.getLight(slot));
+
+        HueLightStateStore.Snapshot snapshot = store.newSnapshot();
+        store.capture(snapshot);
+        assertFalse(snapshot.isPresent(slot));
+
+        HueLight reused = new HueLight(bridge, 101);
+        assertEquals(slot, reused.getSlot());
+        assertSame(reused, store.getLight(slot));
+        assertFalse(reused.isOn());
+        assertEquals(0, reused.getBrightness());
+        reused.release();
+    }
+
+    @Test
+    public void flagWritersDoNotOverwriteEachOther() throws InterruptedException {
+        int slot = bridge.getLight(1).getSlot();
+        AtomicInteger lost = new AtomicInteger();
+        // Each thread owns one flag, so its flag only ever holds what it last wrote
+        Thread on = new Thread(() -> {
+            for (int i = 0; i < 500000; i++) {
+                boolean value = i % 2 == 0;
+                store.setOn(slot, value);
+                if (store.isOn(slot) != value) lost.incrementAndGet();
+            }
+        });
+        Thread effect = new Thread(() -> {
+            for (int i = 0; i < 500000; i++) {
+                HueLight.HueEffect value = i % 2 == 0 ? HueLight.HueEffect.COLORLOOP : HueLight.HueEffect.NONE;
+                store.setEffect(slot, value);
+                if (store.getEffect(slot) != value) lost.incrementAndGet();
+            }
+        });
+        on.start();
+        effect.start();
+        on.join();
+        effect.join();
+        assertEquals(0, lost.get());
+    }
+
+    @Test
+    public void applySendsOnlyTheLightsThatDiffer() {
+        HueLightStateStore.Snapshot target = store.newSnapshot();
+        store.capture(target);
+        List<HueLight> lights = bridge.getLights();
+        int[] slots = new int[lights.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = lights.get(i).getSlot();
+        }
+        target.setBrightness(lights.get(0).getSlot(), 42);
+        target.setOn(lights.get(2).getSlot(), false);
+        simulator.clearRequests();
+
+        assertEquals(2, store.apply(target, slots, slots.length));
+        for (HueLight light : lights) {
+            light.showAsync().join();
+        }
+        List<HueBridgeSimulator.Request> requests = simulator.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals(42, simulator.getLightState(lights.get(0).getId()).get("bri").getAsInt());
+        assertFalse(simulator.getLightState(lights.get(2).getId()).get("on").getAsBoolean());
+        assertTrue(simulator.getLightState(lights.get(1).getId()).get("on").getAsBoolean());
+
+        // Now that the bridge matches, applying again sends nothing
+        assertEquals(0, store.apply(target, slots, slots.length));
+    }
+}
@@ -0,0 +1,69 @@
+package com.kyleaheron;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HueMetricsTest {
+
+    @Test
+    public void smallLatenciesHaveABucketEach() {
+        for (int micros = 0; micros < 4; micros++) {
+            assertEquals(micros, HueMetrics.Histogram.bucket(micros));
+            assertEquals(micros + 1, HueMetrics.Histogram.upperBound(micros));
+        }
+    }
+
+    @Test
+    public void eachPowerOfTwoIsSplitInFour() {
+        // 4 to 7 one microsecond apart, then 8 to 15 two apart
+        int[] expected = {4, 5, 6, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12};
+        for (int micros = 4; micros <= 16; micros++) {
+            assertEquals("bucket of " + micros, expected[micros - 4], HueMetrics.Histogram.bucket(micros));
+        }
+        assertEquals(5, HueMetrics.Histogram.upperBound(4));
+        assertEquals(8, HueMetrics.Histogram.upperBound(7));
+        assertEquals(10, HueMetrics.Histogram.upperBound(8));
+        assertEquals(16, HueMetrics.Histogram.upperBound(11));
+    }
+
+    @Test
+    public void everyValueIsBelowItsBucketsBoundAndWithinAQuarterOfIt() {
+        for (long micros = 4; micros < 1 << 20; micros += 1 + micros / 97) {
+            int bucket = HueMetrics.Histogram.bucket(micros);
+            long upper = HueMetrics.Histogram.upperBound(bucket);
+            long lower = HueMetrics.Histogram.upperBound(bucket - 1);
+            assertTrue(micros + " in bucket " + bucket, micros >= lower && micros < upper);
+            assertTrue(micros + " reported as " + upper, upper <= micros * 1.25 + 1);
+        }
+    }
+
+    @Test
+    public void longLatenciesClampToTheTopBucket() {
+        int top = HueMetrics.Histogram.bucket(Long.MAX_VALUE);
+        assertEquals(top, HueMetrics.Histogram.bucket(1L << 27));
+        assertEquals(top, HueMetrics.Histogram.bucket(TimeUnit.HOURS.toMicros(1)));
+        assertEquals(top - 1, HueMetrics.Histogram.bucket((1L << 27) - (1L << 24) - 1));
+        assertEquals(1L << 27, HueMetrics.Histogram.upperBound(top));
+    }
+
+    @Test
+    public void percentilesOfAKnownDistribution() {
+        HueMetrics.Histogram histogram = new HueMetrics.Histogram();
+        assertEquals(0, histogram.percentile(50));
+        // 1 to 100 ms, one of each
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        assertEquals(100, histogram.count.sum());
+        assertEquals(5050000, histogram.totalMicros.sum());
+        // 50 ms falls in 49152 to 57344, 90 ms in 81920 to 98304, 100 ms in 98304 to 114688
+        assertEquals(57344, histogram.percentile(50));
+        assertEquals(98304, histogram.percentile(90));
+        assertEquals(114688, histogram.percentile(99));
+        assertEquals(114688, histogram.percentile(100));
+        assertEquals(HueMetrics.Histogram.upperBound(HueMetrics.Histogram.bucket(1000)), histogram.percentile(0));
+    }
+}
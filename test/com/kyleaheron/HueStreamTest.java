@@ -0,0 +1,84 @@
+package com.kyleaheron;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HueStreamTest {
+
+    // Two datagrams per frame
+    private static final int LIGHTS = 12;
+
+    private HueBridgeSimulator simulator;
+    private HueBridge bridge;
+    private HueStreamReceiver receiver;
+    private HueStream stream;
+
+    @Before
+    public void setUp() throws IOException {
+        simulator = new HueBridgeSimulator(LIGHTS);
+        bridge = simulator.createBridge();
+        assertTrue(bridge.connect().join());
+        receiver = new HueStreamReceiver();
+        stream = bridge.createStream(bridge.getLights(), new HueUdpStreamTransport(receiver.getAddress()));
+    }
+
+    @After
+    public void tearDown() {
+        stream.close();
+        receiver.close();
+        bridge.close();
+        simulator.close();
+    }
+
+    @Test
+    public void sendsFramesAtAnEvenRate() throws Exception {
+        stream.setFrameRate(50);
+        stream.start();
+        Thread.sleep(200);
+        receiver.reset();
+        Thread.sleep(2000);
+        stream.stop();
+
+        long frames = receiver.getFrameCount();
+        double rate = receiver.getFrameRate();
+        long jitter = receiver.getJitter();
+        String measured = String.format("%d frames at %.1f Hz, mean gap %.1f ms, max %.1f ms, jitter %.2f ms", frames,
+                rate, receiver.getMeanFrameInterval() / 1e6, receiver.getMaxFrameInterval() / 1e6, jitter / 1e6);
+        assertEquals(measured, 50, rate, 5);
+        assertEquals(measured, 2 * frames, receiver.getDatagramCount(), 2);
+        assertTrue(measured, jitter < TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(measured, receiver.getMaxFrameInterval() < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, receiver.getLostDatagramCount());
+        assertEquals(0, receiver.getMalformedDatagramCount());
+    }
+
+    @Test
+    public void framesCarryTheLatestColours() throws Exception {
+        List<HueLight> lights = bridge.getLights();
+        stream.start();
+        for (int i = 0; i < lights.size(); i++) {
+            stream.setXY(lights.get(i), 0.1f + i * 0.05f, 0.2f, 10 * i + 1);
+        }
+        receiver.reset();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (receiver.getFrameCount() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        stream.stop();
+
+        for (int i = 0; i < lights.size(); i++) {
+            int id = lights.get(i).getId();
+            assertTrue("no colour for light " + id, receiver.hasLight(id));
+            assertEquals(0.1f + i * 0.05f, receiver.getX(id), 0.0001f);
+            assertEquals(0.2f, receiver.getY(id), 0.0001f);
+            assertEquals(10 * i + 1, receiver.getBrightness(id));
+        }
+    }
+}